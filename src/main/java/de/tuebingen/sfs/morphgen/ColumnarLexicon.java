@@ -0,0 +1,441 @@
+package de.tuebingen.sfs.morphgen;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An unfolded lexicon stored column by column in a compact binary file. The rows are sorted by form and grouped
+ * into blocks of a fixed number of rows. Within a block, forms are front-coded, i.e. stored as the number of bytes
+ * shared with the previous one and the remaining bytes, segmented forms are stored as the morpheme separators
+ * inserted into the form and their positions, and prefixes, translations and suffixes are stored as variable-length
+ * ids into two dictionaries, one for glosses and one for translations, in which frequent values have small ids. A
+ * block index holds the start of each block in each column, so a lookup only decodes the blocks the form occurs in.
+ * The file is mapped as a single buffer and thus cannot exceed 2GB.
+ */
+public class ColumnarLexicon implements Iterable<String[]> {
+
+    // Marks the beginning of a lexicon file
+    private static final int MAGIC = 0x434c5831;
+    // Number of columns: form, segmented form, prefixes, translations and suffixes
+    private static final int COLUMNS = UnfoldedLexicon.FIELDS + 1;
+    // Number of ints in the header
+    private static final int HEADER = 6 + COLUMNS;
+    // Number of rows per block
+    private static final int BLOCK_SIZE = 64;
+    // Morpheme separators that segmented forms consist of in addition to the form
+    private static final String SEPARATORS = "|&<>";
+
+    private ByteBuffer buffer;
+    // Number of rows
+    private int rows;
+    // Number of distinct forms
+    private int words;
+    private int blocks;
+    private String[] glosses;
+    private String[] translations;
+    // Offset of the block index and of each column
+    private int index;
+    private int[] columns = new int[COLUMNS];
+    // First form of each block
+    private String[] firstForms;
+
+    private ColumnarLexicon(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < 4 * HEADER || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a lexicon file");
+        rows = buffer.getInt(4);
+        words = buffer.getInt(8);
+        blocks = buffer.getInt(12);
+        int dictionaries = buffer.getInt(16);
+        index = buffer.getInt(20);
+        for (int c = 0; c < COLUMNS; c++)
+            columns[c] = buffer.getInt(24 + 4 * c);
+        buffer.position(dictionaries);
+        glosses = readDictionary(buffer);
+        translations = readDictionary(buffer);
+        firstForms = new String[blocks];
+        for (int b = 0; b < blocks; b++) {
+            buffer.position(columns[0] + blockStart(b, 0));
+            // The first form of a block shares nothing with a previous one
+            readVarInt(buffer);
+            byte[] bytes = new byte[readVarInt(buffer)];
+            buffer.get(bytes);
+            firstForms[b] = new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Map a lexicon file into memory.
+     * @param lexiconFile Path to a file written by {@link #compile(String, String)}
+     * @return The lexicon
+     * @throws IOException If the file cannot be read or is not a lexicon file
+     */
+    public static ColumnarLexicon open(String lexiconFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(lexiconFile), StandardOpenOption.READ)) {
+            return new ColumnarLexicon(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Compile the output of {@link MorphGen#unfoldVocabulary(String, String)} into a lexicon file.
+     * @param unfoldedFile Path to the unfolded lexicon
+     * @param lexiconFile Path to write the lexicon file to
+     * @throws IOException If a file cannot be read or written
+     */
+    public static void compile(String unfoldedFile, String lexiconFile) throws IOException {
+        write(UnfoldedLexicon.read(unfoldedFile), lexiconFile);
+    }
+
+    /**
+     * @return The number of distinct forms in the lexicon
+     */
+    public int size() {
+        return words;
+    }
+
+    /**
+     * @return The number of rows in the lexicon, i.e. of distinct analyses of all forms
+     */
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * @param form A form
+     * @return True if the form is in the lexicon
+     */
+    public boolean contains(String form) {
+        return get(form) != null;
+    }
+
+    /**
+     * @param form A form
+     * @return Its analyses as returned by {@link ReverseTrie#get(String)}, null if the form is not in the lexicon
+     */
+    public List<String[]> get(String form) {
+        // The rows of the form may begin in the block before the first one starting with it or a later form
+        int lo = 0;
+        int hi = blocks;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (firstForms[mid].compareTo(form) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        int b = Math.max(0, lo - 1);
+        List<String[]> result = new ArrayList<>();
+        for (; b < blocks; b++) {
+            for (String[] row : block(b)) {
+                int c = row[0].compareTo(form);
+                if (c > 0)
+                    return (result.isEmpty()) ? null : result;
+                if (c == 0)
+                    result.add(Arrays.copyOfRange(row, 1, COLUMNS));
+            }
+        }
+        return (result.isEmpty()) ? null : result;
+    }
+
+    /**
+     * Iterate over all rows in order of their forms. Each row consists of the form, segmented form, prefixes,
+     * translations and suffixes, as the lines of an unfolded lexicon.
+     * @return An iterator over the rows
+     */
+    @Override
+    public Iterator<String[]> iterator() {
+        return new Iterator<String[]>() {
+            private int b = 0;
+            private String[][] block = new String[0][];
+            private int r = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (r >= block.length && b < blocks) {
+                    block = block(b++);
+                    r = 0;
+                }
+                return r < block.length;
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return block[r++];
+            }
+        };
+    }
+
+    /**
+     * @param b Index of a block
+     * @param c Index of a column
+     * @return Position of the block in the column
+     */
+    private int blockStart(int b, int c) {
+        return buffer.getInt(index + 4 * (b * COLUMNS + c));
+    }
+
+    /**
+     * Decode the rows of a block.
+     * @param b Index of the block
+     * @return The rows
+     */
+    private String[][] block(int b) {
+        String[][] block = new String[Math.min(BLOCK_SIZE, rows - b * BLOCK_SIZE)][COLUMNS];
+        ByteBuffer column = buffer.duplicate();
+        for (int c = 0; c < COLUMNS; c++) {
+            column.position(columns[c] + blockStart(b, c));
+            if (c == 0) {
+                byte[] prev = new byte[0];
+                for (String[] row : block) {
+                    int shared = readVarInt(column);
+                    byte[] bytes = Arrays.copyOf(prev, shared + readVarInt(column));
+                    column.get(bytes, shared, bytes.length - shared);
+                    row[c] = new String(bytes, StandardCharsets.UTF_8);
+                    prev = bytes;
+                }
+            }
+            else if (c == 1) {
+                // Forms are decoded first, as the segmented forms are stored relative to them
+                for (String[] row : block)
+                    row[c] = readSegmented(column, row[0]);
+            }
+            else {
+                String[] dictionary = (c == 3) ? translations : glosses;
+                for (String[] row : block)
+                    row[c] = dictionary[readVarInt(column)];
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Write a lexicon file.
+     * @param lexicon The lines of the unfolded lexicon
+     * @param lexiconFile Path to write the lexicon file to
+     * @throws IOException If the file cannot be written
+     */
+    static void write(UnfoldedLexicon lexicon, String lexiconFile) throws IOException {
+        String[] forms = lexicon.forms();
+        String[] pool = lexicon.pool();
+        int[] rows = lexicon.sortedRows(forms);
+        int words = 0;
+        for (int r = 0; r < rows.length; r++)
+            if (r == 0 || !forms[rows[r]].equals(forms[rows[r - 1]]))
+                words++;
+
+        // Number the glosses and translations by decreasing frequency
+        int[] glossCounts = new int[pool.length];
+        int[] translationCounts = new int[pool.length];
+        for (int row : rows) {
+            glossCounts[lexicon.field(row, 1)]++;
+            translationCounts[lexicon.field(row, 2)]++;
+            glossCounts[lexicon.field(row, 3)]++;
+        }
+        int[] glossIds = new int[pool.length];
+        int[] translationIds = new int[pool.length];
+        String[] glosses = dictionary(pool, glossCounts, glossIds);
+        String[] translations = dictionary(pool, translationCounts, translationIds);
+
+        int blocks = (rows.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        ByteArrayOutputStream[] columns = new ByteArrayOutputStream[COLUMNS];
+        for (int c = 0; c < COLUMNS; c++)
+            columns[c] = new ByteArrayOutputStream();
+        int[] index = new int[blocks * COLUMNS];
+        byte[] prev = null;
+        for (int r = 0; r < rows.length; r++) {
+            if (r % BLOCK_SIZE == 0) {
+                for (int c = 0; c < COLUMNS; c++)
+                    index[r / BLOCK_SIZE * COLUMNS + c] = columns[c].size();
+                prev = new byte[0];
+            }
+            prev = writeFrontCoded(columns[0], prev, forms[rows[r]]);
+            writeSegmented(columns[1], forms[rows[r]], pool[lexicon.field(rows[r], 0)]);
+            writeVarInt(columns[2], glossIds[lexicon.field(rows[r], 1)]);
+            writeVarInt(columns[3], translationIds[lexicon.field(rows[r], 2)]);
+            writeVarInt(columns[4], glossIds[lexicon.field(rows[r], 3)]);
+        }
+        ByteArrayOutputStream dictionaries = new ByteArrayOutputStream();
+        writeDictionary(dictionaries, glosses);
+        writeDictionary(dictionaries, translations);
+
+        int[] header = new int[HEADER];
+        int offset = 4 * HEADER;
+        header[0] = MAGIC;
+        header[1] = rows.length;
+        header[2] = words;
+        header[3] = blocks;
+        header[4] = offset;
+        offset += dictionaries.size();
+        header[5] = offset;
+        offset += 4 * index.length;
+        for (int c = 0; c < COLUMNS; c++) {
+            header[6 + c] = offset;
+            offset += columns[c].size();
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(lexiconFile)))) {
+            for (int h : header)
+                out.writeInt(h);
+            dictionaries.writeTo(out);
+            for (int i : index)
+                out.writeInt(i);
+            for (ByteArrayOutputStream column : columns)
+                column.writeTo(out);
+        }
+    }
+
+    /**
+     * Collect the pool values occurring in a column, most frequent first.
+     * @param pool The pool
+     * @param counts The number of occurrences of each pool value in the column
+     * @param ids Receives the id of each pool value in the dictionary
+     * @return The dictionary
+     */
+    private static String[] dictionary(String[] pool, int[] counts, int[] ids) {
+        List<Integer> used = new ArrayList<>();
+        for (int p = 0; p < pool.length; p++)
+            if (counts[p] > 0)
+                used.add(p);
+        used.sort((a, b) -> Integer.compare(counts[b], counts[a]));
+        String[] dictionary = new String[used.size()];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = pool[used.get(i)];
+            ids[used.get(i)] = i;
+        }
+        return dictionary;
+    }
+
+    private static void writeDictionary(ByteArrayOutputStream out, String[] dictionary) {
+        writeVarInt(out, dictionary.length);
+        for (String s : dictionary) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static String[] readDictionary(ByteBuffer in) {
+        String[] dictionary = new String[readVarInt(in)];
+        for (int i = 0; i < dictionary.length; i++) {
+            byte[] bytes = new byte[readVarInt(in)];
+            in.get(bytes);
+            dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Write a string as the number of UTF-8 bytes it shares with the previous one, the number of remaining bytes and
+     * the remaining bytes.
+     * @param out The stream to write to
+     * @param prev The UTF-8 bytes of the previous string
+     * @param s The string
+     * @return The UTF-8 bytes of the string
+     */
+    private static byte[] writeFrontCoded(ByteArrayOutputStream out, byte[] prev, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int shared = 0;
+        while (shared < bytes.length && shared < prev.length && bytes[shared] == prev[shared])
+            shared++;
+        writeVarInt(out, shared);
+        writeVarInt(out, bytes.length - shared);
+        out.write(bytes, shared, bytes.length - shared);
+        return bytes;
+    }
+
+    /**
+     * Write a segmented form as the number of separators plus one, followed by the number of characters of the form
+     * before each separator (since the previous one) and the separator, packed into a single int. Segmented forms
+     * that do not consist of the form and separators are written as a zero followed by their UTF-8 bytes.
+     * @param out The stream to write to
+     * @param form The form
+     * @param segmented The segmented form
+     */
+    private static void writeSegmented(ByteArrayOutputStream out, String form, String segmented) {
+        ByteArrayOutputStream separators = new ByteArrayOutputStream();
+        int count = 0;
+        int f = 0;
+        int gap = 0;
+        for (int i = 0; i < segmented.length(); i++) {
+            char c = segmented.charAt(i);
+            int sep = SEPARATORS.indexOf(c);
+            if (sep >= 0) {
+                writeVarInt(separators, (gap << 2) | sep);
+                count++;
+                gap = 0;
+            }
+            else if (f < form.length() && form.charAt(f) == c) {
+                f++;
+                gap++;
+            }
+            else {
+                f = -1;
+                break;
+            }
+        }
+        if (f == form.length()) {
+            writeVarInt(out, count + 1);
+            byte[] bytes = separators.toByteArray();
+            out.write(bytes, 0, bytes.length);
+        }
+        else {
+            byte[] bytes = segmented.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, 0);
+            writeVarInt(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Read a segmented form written by {@link #writeSegmented(ByteArrayOutputStream, String, String)}.
+     * @param in The buffer to read from
+     * @param form The form
+     * @return The segmented form
+     */
+    private static String readSegmented(ByteBuffer in, String form) {
+        int count = readVarInt(in) - 1;
+        if (count < 0) {
+            byte[] bytes = new byte[readVarInt(in)];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        StringBuilder segmented = new StringBuilder(form.length() + count);
+        int f = 0;
+        for (int i = 0; i < count; i++) {
+            int sep = readVarInt(in);
+            segmented.append(form, f, f + (sep >>> 2)).append(SEPARATORS.charAt(sep & 3));
+            f += sep >>> 2;
+        }
+        return segmented.append(form, f, form.length()).toString();
+    }
+
+    /**
+     * Write a non-negative int in 7-bit groups, lowest first, with the high bit set on all but the last.
+     * @param out The stream to write to
+     * @param n The int
+     */
+    private static void writeVarInt(ByteArrayOutputStream out, int n) {
+        while ((n & ~0x7f) != 0) {
+            out.write((n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.write(n);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int n = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            n |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return n;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package de.tuebingen.sfs.morphgen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A compact set of the inflected forms of a previously unfolded dictionary, against which further entries are
+ * checked when appending to it. The forms read from the previous output are stored as UTF-8 in a single sorted
+ * array and looked up by binary search, which takes a fraction of the memory of a hash set of strings. Forms added
+ * afterwards, which are few when appending a small batch of entries, are kept in a hash set.
+ */
+class FormSet extends AbstractSet<String> {
+
+    // Maximum length of the arrays
+    private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    // Sorted distinct forms read from the output, concatenated
+    private byte[] data;
+    // Start of each form in the data, followed by the end of the last one
+    private int[] starts;
+    // Forms added later
+    private Set<String> added = new HashSet<>();
+
+    private FormSet(byte[] data, int[] starts) {
+        this.data = data;
+        this.starts = starts;
+    }
+
+    /**
+     * Collect the inflected forms of previously unfolded entries, i.e. the forms of all lines whose segmented form
+     * contains morpheme boundaries, while streaming over the output once.
+     * @param read The output of a previous run
+     * @return The forms
+     * @throws IOException If the output cannot be read or holds more than 2 GB of forms
+     */
+    static FormSet read(BufferedReader read) throws IOException {
+        byte[] data = new byte[1 << 16];
+        int[] starts = new int[1 << 12];
+        int n = 0;
+        int size = 0;
+        for (String line = read.readLine(); line != null; line = read.readLine()) {
+            int tab = line.indexOf('\t');
+            if (tab < 0)
+                continue;
+            int end = line.indexOf('\t', tab + 1);
+            if (end < 0)
+                end = line.length();
+            int bar = line.indexOf('|', tab + 1);
+            int seg = line.indexOf("<>", tab + 1);
+            if ((bar < 0 || bar >= end) && (seg < 0 || seg + 2 > end))
+                continue;
+            byte[] form = line.substring(0, tab).getBytes(StandardCharsets.UTF_8);
+            // Lines of the same form mostly follow each other
+            if (n > 0 && compare(data, starts[n-1], size, form, 0, form.length) == 0)
+                continue;
+            // Arrays cannot quite reach Integer.MAX_VALUE elements
+            if ((long) size + form.length > MAX_ARRAY || n + 1 >= MAX_ARRAY)
+                throw new IOException("Too many inflected forms in previous output");
+            if (size + form.length > data.length)
+                data = Arrays.copyOf(data, (int) Math.min(MAX_ARRAY, Math.max(2L * data.length, size + form.length)));
+            if (n + 1 >= starts.length)
+                starts = Arrays.copyOf(starts, (int) Math.min(MAX_ARRAY, 2L * starts.length));
+            starts[n++] = size;
+            System.arraycopy(form, 0, data, size, form.length);
+            size += form.length;
+        }
+        starts[n] = size;
+
+        // Sort the forms and copy them without duplicates
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        sort(order, new int[n], 0, n, data, starts);
+        byte[] sorted = new byte[size];
+        int[] sortedStarts = new int[n + 1];
+        int m = 0;
+        int pos = 0;
+        for (int i = 0; i < n; i++) {
+            int f = order[i];
+            int len = starts[f+1] - starts[f];
+            if (m > 0 && compare(sorted, sortedStarts[m-1], pos, data, starts[f], starts[f+1]) == 0)
+                continue;
+            sortedStarts[m++] = pos;
+            System.arraycopy(data, starts[f], sorted, pos, len);
+            pos += len;
+        }
+        sortedStarts[m] = pos;
+        return new FormSet(Arrays.copyOf(sorted, pos), Arrays.copyOf(sortedStarts, m + 1));
+    }
+
+    /**
+     * Merge sort the indices of forms.
+     * @param order The indices to sort
+     * @param tmp Scratch space of the same size
+     * @param from Start of the range to sort
+     * @param to End of the range to sort
+     * @param data The concatenated forms
+     * @param starts Start of each form in the data
+     */
+    private static void sort(int[] order, int[] tmp, int from, int to, byte[] data, int[] starts) {
+        if (to - from < 2)
+            return;
+        int mid = (from + to) >>> 1;
+        sort(order, tmp, from, mid, data, starts);
+        sort(order, tmp, mid, to, data, starts);
+        if (compare(data, order[mid-1], order[mid], starts) <= 0)
+            return;
+        System.arraycopy(order, from, tmp, from, to - from);
+        for (int i = from, l = from, r = mid; i < to; i++)
+            order[i] = (r >= to || (l < mid && compare(data, tmp[l], tmp[r], starts) <= 0)) ? tmp[l++] : tmp[r++];
+    }
+
+    private static int compare(byte[] data, int a, int b, int[] starts) {
+        return compare(data, starts[a], starts[a+1], data, starts[b], starts[b+1]);
+    }
+
+    /**
+     * Compare two byte ranges as unsigned bytes, which orders UTF-8 strings by code points.
+     */
+    private static int compare(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo) {
+        int n = Math.min(aTo - aFrom, bTo - bFrom);
+        for (int i = 0; i < n; i++) {
+            int c = (a[aFrom + i] & 0xff) - (b[bFrom + i] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return (aTo - aFrom) - (bTo - bFrom);
+    }
+
+    /**
+     * @param form A form
+     * @return True if the form was read from the previous output
+     */
+    private boolean isRead(String form) {
+        byte[] key = form.getBytes(StandardCharsets.UTF_8);
+        int lo = 0;
+        int hi = starts.length - 2;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(data, starts[mid], starts[mid+1], key, 0, key.length);
+            if (c < 0)
+                lo = mid + 1;
+            else if (c > 0)
+                hi = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof String && (added.contains(o) || isRead((String) o));
+    }
+
+    @Override
+    public boolean add(String form) {
+        return !isRead(form) && added.add(form);
+    }
+
+    @Override
+    public int size() {
+        return starts.length - 1 + added.size();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        Iterator<String> rest = added.iterator();
+        return new Iterator<String>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < starts.length - 1 || rest.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (next < starts.length - 1) {
+                    String form = new String(data, starts[next], starts[next+1] - starts[next],
+                            StandardCharsets.UTF_8);
+                    next++;
+                    return form;
+                }
+                return rest.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,156 @@
+package de.tuebingen.sfs.morphgen;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache for generation results, evicting the least recently used entries once the total number of
+ * cached words exceeds a limit. The cache is split into independently locked segments, so it can be shared between
+ * threads. Cached sets are unmodifiable.
+ */
+public class GenerationCache {
+
+    private static final int SEGMENTS = 16;
+
+    private Segment[] segments;
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxWeight Maximum total number of words in all cached sets
+     */
+    public GenerationCache(long maxWeight) {
+        segments = new Segment[SEGMENTS];
+        for (int s = 0; s < SEGMENTS; s++)
+            segments[s] = new Segment(Math.max(1, maxWeight / SEGMENTS));
+    }
+
+    /**
+     * Look up the result for a key, computing and caching it if it is not cached yet. The result is computed
+     * without holding a lock, so concurrent misses for the same key may compute it more than once.
+     * @param key The key, e.g. an input gloss
+     * @param loader Computes the result if it is not cached
+     * @return The (unmodifiable) result
+     */
+    public Set<GlossedWord> get(Object key, Supplier<Set<GlossedWord>> loader) {
+        Segment segment = segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+        Set<GlossedWord> value = segment.get(key);
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+        misses.increment();
+        value = Collections.unmodifiableSet(loader.get());
+        segment.put(key, value);
+        return value;
+    }
+
+    /**
+     * @return How often a result was found in the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return How often a result had to be computed
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return How many entries were removed to make room for new ones
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of cached entries
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    /**
+     * @return The total number of words in all cached sets
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments)
+            weight += segment.weight();
+        return weight;
+    }
+
+    /**
+     * Remove all entries (but keep the counters).
+     */
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "GenerationCache[entries=" + size() + ", weight=" + getWeight() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+
+    /**
+     * A part of the cache with its own lock and a share of the weight limit.
+     */
+    private class Segment {
+        // Entries in order of access, least recently used first
+        private LinkedHashMap<Object, Set<GlossedWord>> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long maxWeight;
+        private long weight;
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized Set<GlossedWord> get(Object key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(Object key, Set<GlossedWord> value) {
+            // Results too large for the segment would only flush it
+            if (value.size() > maxWeight)
+                return;
+            Set<GlossedWord> old = entries.put(key, value);
+            if (old != null)
+                weight -= old.size();
+            weight += value.size();
+            Iterator<Map.Entry<Object, Set<GlossedWord>>> it = entries.entrySet().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                Map.Entry<Object, Set<GlossedWord>> eldest = it.next();
+                weight -= eldest.getValue().size();
+                it.remove();
+                evictions.increment();
+            }
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long weight() {
+            return weight;
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            weight = 0;
+        }
+    }
+}
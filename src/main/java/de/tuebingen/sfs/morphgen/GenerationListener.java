@@ -0,0 +1,46 @@
+package de.tuebingen.sfs.morphgen;
+
+/**
+ * A listener that is notified about the steps of a generation run. All methods do nothing by default, so
+ * implementations only need to override the events they are interested in.
+ */
+public interface GenerationListener {
+
+    /**
+     * Called before a rule is tried on an input.
+     * @param rule The rule
+     * @param in The input word
+     */
+    default void ruleAttempted(Rule rule, GlossedWord in) {}
+
+    /**
+     * Called when a rule matched an input.
+     * @param rule The rule
+     * @param in The input word
+     * @param outputs The forms produced by the rule
+     */
+    default void ruleMatched(Rule rule, GlossedWord in, String[] outputs) {}
+
+    /**
+     * Called after a rule has been tried on an input, whether it matched or not.
+     * @param rule The rule
+     * @param in The input word
+     * @param matched True if the rule matched
+     * @param nanos Time spent applying the rule, in nanoseconds
+     * @param steps Number of matcher steps taken
+     */
+    default void ruleFinished(Rule rule, GlossedWord in, boolean matched, long nanos, long steps) {}
+
+    /**
+     * Called after a rule has been applied to all words of the current generation stage.
+     * @param rule The rule
+     * @param size The number of words after the stage
+     */
+    default void stageFinished(Rule rule, int size) {}
+
+    /**
+     * Called when a generated word is discarded because its form still contains glosses.
+     * @param out The discarded word
+     */
+    default void formFiltered(GlossedWord out) {}
+}
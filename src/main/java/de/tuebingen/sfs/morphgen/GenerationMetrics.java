@@ -0,0 +1,208 @@
+package de.tuebingen.sfs.morphgen;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A listener collecting per-rule statistics of generation runs: attempts, matches, fan-out, time, matcher steps
+ * and stage sizes, plus the number of forms rejected by the gloss filter. Safe to share between threads.
+ */
+public class GenerationMetrics implements GenerationListener {
+
+    // Upper bounds of the fan-out histogram buckets (outputs per match), the last bucket is open
+    private static final int[] FANOUT_BUCKETS = {1, 2, 3, 4, 8};
+
+    // The rules, in order of application
+    private List<Rule> rules;
+    // Position of each rule in the list
+    private Map<Rule, Integer> ruleIds;
+
+    private AtomicLongArray attempts;
+    private AtomicLongArray matches;
+    private AtomicLongArray nanos;
+    private AtomicLongArray steps;
+    private AtomicLongArray fanout;
+    private AtomicLongArray stages;
+    private AtomicLongArray stageTotal;
+    private AtomicLongArray stageMax;
+    private AtomicLong filtered;
+
+    /**
+     * @param rules The rules of the generator to be observed, in order of application
+     */
+    public GenerationMetrics(List<Rule> rules) {
+        this.rules = new ArrayList<>(rules);
+        this.ruleIds = new IdentityHashMap<>();
+        for (int r = 0; r < rules.size(); r++)
+            ruleIds.put(rules.get(r), r);
+        int n = rules.size();
+        attempts = new AtomicLongArray(n);
+        matches = new AtomicLongArray(n);
+        nanos = new AtomicLongArray(n);
+        steps = new AtomicLongArray(n);
+        fanout = new AtomicLongArray(n * (FANOUT_BUCKETS.length + 1));
+        stages = new AtomicLongArray(n);
+        stageTotal = new AtomicLongArray(n);
+        stageMax = new AtomicLongArray(n);
+        filtered = new AtomicLong();
+    }
+
+    @Override
+    public void ruleAttempted(Rule rule, GlossedWord in) {
+        Integer r = ruleIds.get(rule);
+        if (r != null)
+            attempts.incrementAndGet(r);
+    }
+
+    @Override
+    public void ruleMatched(Rule rule, GlossedWord in, String[] outputs) {
+        Integer r = ruleIds.get(rule);
+        if (r != null) {
+            matches.incrementAndGet(r);
+            int b = 0;
+            while (b < FANOUT_BUCKETS.length && outputs.length > FANOUT_BUCKETS[b])
+                b++;
+            fanout.incrementAndGet(r * (FANOUT_BUCKETS.length + 1) + b);
+        }
+    }
+
+    @Override
+    public void ruleFinished(Rule rule, GlossedWord in, boolean matched, long nanos, long steps) {
+        Integer r = ruleIds.get(rule);
+        if (r != null) {
+            this.nanos.addAndGet(r, nanos);
+            this.steps.addAndGet(r, steps);
+        }
+    }
+
+    @Override
+    public void stageFinished(Rule rule, int size) {
+        Integer r = ruleIds.get(rule);
+        if (r != null) {
+            stages.incrementAndGet(r);
+            stageTotal.addAndGet(r, size);
+            long max = stageMax.get(r);
+            while (size > max && !stageMax.compareAndSet(r, max, size))
+                max = stageMax.get(r);
+        }
+    }
+
+    @Override
+    public void formFiltered(GlossedWord out) {
+        filtered.incrementAndGet();
+    }
+
+    /**
+     * @param rule A rule
+     * @return How often the rule was attempted
+     */
+    public long getAttempts(Rule rule) {
+        Integer r = ruleIds.get(rule);
+        return (r == null) ? 0 : attempts.get(r);
+    }
+
+    /**
+     * @param rule A rule
+     * @return How often the rule matched
+     */
+    public long getMatches(Rule rule) {
+        Integer r = ruleIds.get(rule);
+        return (r == null) ? 0 : matches.get(r);
+    }
+
+    /**
+     * @param rule A rule
+     * @return Total time spent applying the rule, in nanoseconds
+     */
+    public long getNanos(Rule rule) {
+        Integer r = ruleIds.get(rule);
+        return (r == null) ? 0 : nanos.get(r);
+    }
+
+    /**
+     * @param rule A rule
+     * @return Total number of matcher steps taken by the rule
+     */
+    public long getSteps(Rule rule) {
+        Integer r = ruleIds.get(rule);
+        return (r == null) ? 0 : steps.get(r);
+    }
+
+    /**
+     * @return The number of generated forms rejected because they still contained glosses
+     */
+    public long getFiltered() {
+        return filtered.get();
+    }
+
+    /**
+     * @return All rules that were never matched so far
+     */
+    public List<Rule> getUnusedRules() {
+        List<Rule> unused = new ArrayList<>();
+        for (int r = 0; r < rules.size(); r++)
+            if (matches.get(r) == 0)
+                unused.add(rules.get(r));
+        return unused;
+    }
+
+    /**
+     * Reset all counters to zero.
+     */
+    public void reset() {
+        for (int r = 0; r < rules.size(); r++) {
+            attempts.set(r, 0);
+            matches.set(r, 0);
+            nanos.set(r, 0);
+            steps.set(r, 0);
+            stages.set(r, 0);
+            stageTotal.set(r, 0);
+            stageMax.set(r, 0);
+        }
+        for (int b = 0; b < fanout.length(); b++)
+            fanout.set(b, 0);
+        filtered.set(0);
+    }
+
+    /**
+     * Create a report of all rules that were attempted, sorted by the time spent on them, followed by the rules
+     * that never matched.
+     * @return The report
+     */
+    public String report() {
+        List<Integer> order = new ArrayList<>();
+        for (int r = 0; r < rules.size(); r++)
+            if (attempts.get(r) > 0)
+                order.add(r);
+        order.sort((r1, r2) -> Long.compare(nanos.get(r2), nanos.get(r1)));
+
+        StringBuilder rep = new StringBuilder();
+        rep.append("rule\tattempts\tmatches\ttime(ms)\tsteps\tfanout(1/2/3/4/<=8/>8)\tstage(avg/max)\tname\n");
+        for (int r : order) {
+            rep.append(r).append('\t')
+                    .append(attempts.get(r)).append('\t')
+                    .append(matches.get(r)).append('\t')
+                    .append(String.format("%.3f", nanos.get(r) / 1e6)).append('\t')
+                    .append(steps.get(r)).append('\t');
+            for (int b = 0; b <= FANOUT_BUCKETS.length; b++) {
+                if (b > 0)
+                    rep.append('/');
+                rep.append(fanout.get(r * (FANOUT_BUCKETS.length + 1) + b));
+            }
+            long st = stages.get(r);
+            rep.append('\t')
+                    .append((st == 0) ? 0 : stageTotal.get(r) / st).append('/').append(stageMax.get(r)).append('\t')
+                    .append(rules.get(r).getName().replace('\t', ' ')).append('\n');
+        }
+        rep.append("Never matched:\n");
+        for (int r = 0; r < rules.size(); r++)
+            if (matches.get(r) == 0)
+                rep.append(r).append('\t').append(rules.get(r).getName().replace('\t', ' ')).append('\n');
+        rep.append("Filtered forms with leftover glosses: ").append(filtered.get()).append('\n');
+        return rep.toString();
+    }
+}
@@ -0,0 +1,71 @@
+package de.tuebingen.sfs.morphgen;
+
+import de.tuebingen.sfs.utils.AhoCorasick;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A filter recognizing generated forms that still contain glosses (or two adjacent separators), i.e. forms that
+ * at least one rule should have applied to but none did. Each form is scanned once, with an automaton over the
+ * gloss vocabulary.
+ */
+public class GlossFilter implements Predicate<String> {
+
+    /**
+     * A filter that never matches, for generators without paradigms.
+     */
+    public static final GlossFilter NONE = new GlossFilter();
+
+    // Automaton recognizing the glosses, null if the filter never matches
+    private AhoCorasick glosses;
+    // The glosses as given, null if the filter never matches
+    private String[] vocabulary;
+
+    private GlossFilter() {}
+
+    /**
+     * @param glosses The gloss vocabulary; glosses are matched as literal strings, with underscores standing for
+     *                spaces
+     */
+    public GlossFilter(Collection<String> glosses) {
+        this.vocabulary = glosses.toArray(new String[0]);
+        Set<String> patterns = new LinkedHashSet<>();
+        for (String gloss : glosses)
+            if (!gloss.isEmpty())
+                patterns.add(gloss.replace('_', ' '));
+        this.glosses = new AhoCorasick(patterns.toArray(new String[0]));
+    }
+
+    /**
+     * @return The gloss vocabulary the filter was created with, null for {@link #NONE}
+     */
+    String[] vocabulary() {
+        return vocabulary;
+    }
+
+    /**
+     * @param form A generated form
+     * @return True if the form contains a gloss or two adjacent separators
+     */
+    @Override
+    public boolean test(String form) {
+        if (glosses == null)
+            return false;
+        int state = glosses.start();
+        boolean sep = false;
+        for (int i = 0; i < form.length(); i++) {
+            char c = form.charAt(i);
+            boolean isSep = c == '|' || c == '&' || c == '<' || c == '>';
+            if (isSep && sep)
+                return true;
+            sep = isSep;
+            state = glosses.step(state, c);
+            if (glosses.isMatch(state))
+                return true;
+        }
+        return false;
+    }
+}
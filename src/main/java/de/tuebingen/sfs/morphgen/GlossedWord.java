@@ -7,6 +7,9 @@ public class GlossedWord {
 
     private String gloss;
     private String form;
+    // Literal signature of the form, cached for the rule index that computed it. Words are shared between threads,
+    // so index and signature are published together through a single reference.
+    private volatile Signature signature;
 
     public GlossedWord(String gloss, String form) {
         this.gloss = gloss;
@@ -31,6 +34,20 @@ public class GlossedWord {
         return form;
     }
 
+    /**
+     * Get the literal signature of the form with respect to a rule index, computing it if necessary.
+     * @param index A rule index
+     * @return The signature of the form
+     */
+    long[] getSignature(RuleIndex index) {
+        Signature sig = signature;
+        if (sig == null || sig.index != index) {
+            sig = new Signature(index, index.signature(form));
+            signature = sig;
+        }
+        return sig.bits;
+    }
+
     @Override
     public String toString() {
         return gloss + "\t" + form;
@@ -49,4 +66,17 @@ public class GlossedWord {
     public int hashCode() {
         return 13 + 7 * form.hashCode() + 11 * gloss.hashCode();
     }
+
+    /**
+     * The literal signature of a form together with the rule index it was computed for.
+     */
+    private static class Signature {
+        final RuleIndex index;
+        final long[] bits;
+
+        Signature(RuleIndex index, long[] bits) {
+            this.index = index;
+            this.bits = bits;
+        }
+    }
 }
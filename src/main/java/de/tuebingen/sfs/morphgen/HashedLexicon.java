@@ -0,0 +1,308 @@
+package de.tuebingen.sfs.morphgen;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A lexicon of unfolded forms for exact lookups, stored in a binary file that is queried through a memory mapping.
+ * The forms are not stored themselves: a perfect hash function maps each form to its own slot, which holds a
+ * fingerprint of the form and points to its analyses. The table has a few more slots than forms, so that the last
+ * buckets still find free slots quickly; empty slots hold the fingerprint 0 and no analyses. Looking up a form thus
+ * reads the displacement of its bucket, the slot and the analyses, regardless of the size of the lexicon. A word
+ * that is not in the lexicon is only recognized by its fingerprint, so with a probability of about 2^-32 it is
+ * mistaken for a form. Like a {@link MappedLexicon}, it is limited to files of 2GB.
+ */
+public class HashedLexicon {
+
+    // Marks the beginning of a lexicon file
+    private static final int MAGIC = 0x484c5832;
+    // Number of pooled fields per analysis: segmented form, prefixes, translations and suffixes
+    private static final int FIELDS = UnfoldedLexicon.FIELDS;
+    // Number of ints in the header
+    private static final int HEADER = 11;
+    // Average number of forms per bucket
+    private static final int BUCKET_SIZE = 4;
+    // Maximum ratio of forms to slots
+    private static final double LOAD_FACTOR = 0.9;
+    // Number of displacements tried for a bucket before starting over with another seed
+    private static final int MAX_DISPLACEMENT = 1 << 20;
+    // Number of seeds tried before giving up
+    private static final int MAX_SEEDS = 64;
+
+    private ByteBuffer buffer;
+    // Number of forms
+    private int words;
+    // Number of slots
+    private int size;
+    private int buckets;
+    private long seed;
+    // Offsets of the sections
+    private int displacements;
+    private int slots;
+    private int analyses;
+    private int poolOffsets;
+    private int poolData;
+
+    private HashedLexicon(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < 4 * HEADER || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a lexicon file");
+        words = buffer.getInt(4);
+        size = buffer.getInt(8);
+        buckets = buffer.getInt(12);
+        seed = ((long) buffer.getInt(16) << 32) | (buffer.getInt(20) & 0xffffffffL);
+        displacements = buffer.getInt(24);
+        slots = buffer.getInt(28);
+        analyses = buffer.getInt(32);
+        poolOffsets = buffer.getInt(36);
+        poolData = buffer.getInt(40);
+    }
+
+    /**
+     * Map a lexicon file into memory.
+     * @param lexiconFile Path to a file written by {@link #compile(String, String)}
+     * @return The lexicon
+     * @throws IOException If the file cannot be read or is not a lexicon file
+     */
+    public static HashedLexicon open(String lexiconFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(lexiconFile), StandardOpenOption.READ)) {
+            return new HashedLexicon(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Compile the output of {@link MorphGen#unfoldVocabulary(String, String)} into a lexicon file.
+     * @param unfoldedFile Path to the unfolded lexicon
+     * @param lexiconFile Path to write the lexicon file to
+     * @throws IOException If a file cannot be read or written
+     */
+    public static void compile(String unfoldedFile, String lexiconFile) throws IOException {
+        write(UnfoldedLexicon.read(unfoldedFile), lexiconFile);
+    }
+
+    /**
+     * @return The number of forms in the lexicon
+     */
+    public int size() {
+        return words;
+    }
+
+    /**
+     * @param form A form
+     * @return True if the form is in the lexicon
+     */
+    public boolean contains(String form) {
+        return slot(form) >= 0;
+    }
+
+    /**
+     * @param form A form
+     * @return Its analyses as returned by {@link ReverseTrie#get(String)}, null if the form is not in the lexicon
+     */
+    public List<String[]> get(String form) {
+        int slot = slot(form);
+        if (slot < 0)
+            return null;
+        int from = buffer.getInt(slots + 8 * slot + 4);
+        int to = buffer.getInt(slots + 8 * (slot + 1) + 4);
+        List<String[]> result = new ArrayList<>(to - from);
+        for (int a = from; a < to; a++) {
+            String[] analysis = new String[FIELDS];
+            for (int f = 0; f < FIELDS; f++)
+                analysis[f] = UnfoldedLexicon.poolString(buffer, poolOffsets, poolData,
+                        buffer.getInt(analyses + 4 * (a * FIELDS + f)));
+            result.add(analysis);
+        }
+        return result;
+    }
+
+    /**
+     * @param form A form
+     * @return The slot of the form, -1 if the form is not in the lexicon
+     */
+    private int slot(String form) {
+        if (words == 0)
+            return -1;
+        long hash = hash(form, seed);
+        int slot = slot(hash, buffer.getInt(displacements + 4 * bucket(hash, buckets)), size);
+        // Empty slots have no analyses, so they do not match words whose fingerprint happens to be 0
+        return (buffer.getInt(slots + 8 * slot) == fingerprint(hash)
+                && buffer.getInt(slots + 8 * (slot + 1) + 4) > buffer.getInt(slots + 8 * slot + 4)) ? slot : -1;
+    }
+
+    private static long hash(String s, long seed) {
+        long h = seed ^ (s.length() * 0x9e3779b97f4a7c15L);
+        for (int i = 0; i < s.length(); i++)
+            h = mix(h ^ s.charAt(i));
+        return mix(h);
+    }
+
+    // Finalizer of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int bucket(long hash, int buckets) {
+        return (int) Long.remainderUnsigned(hash, buckets);
+    }
+
+    private static int slot(long hash, int displacement, int size) {
+        return (int) Long.remainderUnsigned(mix(hash + displacement * 0x9e3779b97f4a7c15L), size);
+    }
+
+    private static int fingerprint(long hash) {
+        return (int) (hash >>> 32);
+    }
+
+    /**
+     * Write a lexicon file.
+     * @param lexicon The lines of the unfolded lexicon
+     * @param lexiconFile Path to write the lexicon file to
+     * @throws IOException If the file cannot be written or no perfect hash function was found for the forms
+     */
+    static void write(UnfoldedLexicon lexicon, String lexiconFile) throws IOException {
+        String[] forms = lexicon.forms();
+        int[] rows = lexicon.sortedRows(forms);
+        List<String> distinct = new ArrayList<>();
+        List<Integer> firstRows = new ArrayList<>();
+        for (int r = 0; r < rows.length; r++) {
+            if (r == 0 || !forms[rows[r]].equals(forms[rows[r - 1]])) {
+                distinct.add(forms[rows[r]]);
+                firstRows.add(r);
+            }
+        }
+        firstRows.add(rows.length);
+        int words = distinct.size();
+        int size = Math.max(1, (int) Math.min(Integer.MAX_VALUE, (long) Math.ceil(words / LOAD_FACTOR)));
+        int buckets = Math.max(1, (words + BUCKET_SIZE - 1) / BUCKET_SIZE);
+        long seed = 0;
+        int[] displacement = null;
+        int[] slotOf = null;
+        // Starting over is only needed if two forms have the same hash, or by very bad luck
+        for (int s = 0; slotOf == null; s++) {
+            if (s == MAX_SEEDS)
+                throw new IOException("No perfect hash function found for " + words
+                        + " forms, they may contain duplicate hashes");
+            seed = mix(seed + 1);
+            displacement = new int[buckets];
+            slotOf = place(distinct, seed, displacement, size);
+        }
+
+        // Lay out the analyses in order of the slots
+        int[] formOf = new int[size];
+        Arrays.fill(formOf, -1);
+        for (int w = 0; w < words; w++)
+            formOf[slotOf[w]] = w;
+        int[] header = new int[HEADER];
+        int offset = 4 * HEADER;
+        header[0] = MAGIC;
+        header[1] = words;
+        header[2] = size;
+        header[3] = buckets;
+        header[4] = (int) (seed >>> 32);
+        header[5] = (int) seed;
+        header[6] = offset;
+        offset += 4 * buckets;
+        header[7] = offset;
+        offset += 8 * (size + 1);
+        header[8] = offset;
+        offset += 4 * FIELDS * rows.length;
+        header[9] = offset;
+        offset += lexicon.poolHeaderSize();
+        header[10] = offset;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(lexiconFile)))) {
+            for (int h : header)
+                out.writeInt(h);
+            for (int d : displacement)
+                out.writeInt(d);
+            int analysisOffset = 0;
+            for (int slot = 0; slot < size; slot++) {
+                int w = formOf[slot];
+                out.writeInt((w < 0) ? 0 : fingerprint(hash(distinct.get(w), seed)));
+                out.writeInt(analysisOffset);
+                if (w >= 0)
+                    analysisOffset += firstRows.get(w + 1) - firstRows.get(w);
+            }
+            out.writeInt(0);
+            out.writeInt(analysisOffset);
+            for (int slot = 0; slot < size; slot++) {
+                int w = formOf[slot];
+                if (w < 0)
+                    continue;
+                for (int r = firstRows.get(w); r < firstRows.get(w + 1); r++)
+                    for (int f = 0; f < FIELDS; f++)
+                        out.writeInt(lexicon.field(rows[r], f));
+            }
+            lexicon.writePool(out);
+        }
+    }
+
+    /**
+     * Find a displacement for each bucket such that all forms end up in different slots. The buckets are placed in
+     * order of decreasing size, while there are still many free slots to try.
+     * @param forms The distinct forms
+     * @param seed The seed of the hash function
+     * @param displacement The displacement of each bucket, to be filled by this method
+     * @param size The number of slots
+     * @return The slot of each form, null if no displacements were found
+     */
+    private static int[] place(List<String> forms, long seed, int[] displacement, int size) {
+        int words = forms.size();
+        int buckets = displacement.length;
+        long[] hashes = new long[words];
+        List<List<Integer>> members = new ArrayList<>(buckets);
+        for (int b = 0; b < buckets; b++)
+            members.add(new ArrayList<>());
+        for (int w = 0; w < words; w++) {
+            hashes[w] = hash(forms.get(w), seed);
+            members.get(bucket(hashes[w], buckets)).add(w);
+        }
+        Integer[] order = new Integer[buckets];
+        for (int b = 0; b < buckets; b++)
+            order[b] = b;
+        Arrays.sort(order, (a, b) -> Integer.compare(members.get(b).size(), members.get(a).size()));
+
+        int[] slotOf = new int[words];
+        BitSet taken = new BitSet(size);
+        int[] candidate = new int[0];
+        for (int b : order) {
+            List<Integer> bucket = members.get(b);
+            if (bucket.isEmpty())
+                break;
+            if (candidate.length < bucket.size())
+                candidate = new int[bucket.size()];
+            boolean placed = false;
+            for (int d = 0; !placed && d < MAX_DISPLACEMENT; d++) {
+                placed = true;
+                for (int i = 0; placed && i < bucket.size(); i++) {
+                    candidate[i] = slot(hashes[bucket.get(i)], d, size);
+                    if (taken.get(candidate[i]))
+                        placed = false;
+                    for (int j = 0; placed && j < i; j++)
+                        if (candidate[j] == candidate[i])
+                            placed = false;
+                }
+                if (placed) {
+                    displacement[b] = d;
+                    for (int i = 0; i < bucket.size(); i++) {
+                        taken.set(candidate[i]);
+                        slotOf[bucket.get(i)] = candidate[i];
+                    }
+                }
+            }
+            if (!placed)
+                return null;
+        }
+        return slotOf;
+    }
+}
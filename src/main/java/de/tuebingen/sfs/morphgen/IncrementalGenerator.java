@@ -0,0 +1,207 @@
+package de.tuebingen.sfs.morphgen;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Generator for the inflections of a word that walks the paradigm automaton instead of running the rules on every
+ * template separately. Templates are built from left to right, with a stand-in character for the part of the
+ * suffix that is not known yet. As long as a rule gives the same result whatever replaces the stand-in, it is
+ * applied only once for all templates sharing the known part; only when it does not, the known part is extended by
+ * the possible next glosses. Templates sharing a prefix of glosses thus share the work of all rules that are decided
+ * before that prefix ends.
+ */
+class IncrementalGenerator {
+
+    // Stand-in for the unknown rest of a template
+    static final char TAIL = '\uE000';
+
+    private static final Pattern SEPARATORS = Pattern.compile("[|&<>]");
+
+    private MorphGen gen;
+    private List<Rule> rules;
+    private RuleIndex ruleIndex;
+    private GlossFilter filter;
+    // Possible rests for each state of each paradigm automaton
+    private Map<ParadigmAutomaton, Rests> rests = new ConcurrentHashMap<>();
+
+    /**
+     * @param gen The generator to fall back on for complete templates
+     * @param rules The rules of the generator
+     * @param ruleIndex The rule index of the generator
+     * @param filter The filter for forms that still contain glosses
+     */
+    IncrementalGenerator(MorphGen gen, List<Rule> rules, RuleIndex ruleIndex, GlossFilter filter) {
+        this.gen = gen;
+        this.rules = rules;
+        this.ruleIndex = ruleIndex;
+        this.filter = filter;
+    }
+
+    /**
+     * Get the inflections of a word with a paradigm.
+     * @param paradigm The paradigm automaton
+     * @param word The word
+     * @return The inflections of the word, null if the word or paradigm are not suitable for incremental generation
+     */
+    Set<GlossedWord> inflect(ParadigmAutomaton paradigm, String word) {
+        if (word.isEmpty() || !word.trim().equals(word) || word.indexOf(TAIL) >= 0)
+            return null;
+        Rests tails = rests.computeIfAbsent(paradigm, this::computeRests);
+        if (tails == Rests.UNSUPPORTED)
+            return null;
+        Set<GlossedWord> out = new HashSet<>();
+        expandPrefix(paradigm, tails, 0, "", word, out);
+        return out;
+    }
+
+    /**
+     * Follow the prefix glosses of the paradigm up to the word and start generating from there.
+     * @param paradigm The paradigm automaton
+     * @param tails Possible rests for each state
+     * @param s The current state
+     * @param prefix The prefix read so far
+     * @param word The word
+     * @param out The generated inflections
+     */
+    private void expandPrefix(ParadigmAutomaton paradigm, Rests tails, int s, String prefix, String word,
+                              Set<GlossedWord> out) {
+        for (int t = paradigm.firstTransition(s); t < paradigm.endTransition(s); t++) {
+            int label = paradigm.label(t);
+            if (label == ParadigmAutomaton.ROOT) {
+                String head = (prefix.isEmpty()) ? word + TAIL : prefix + " " + word + TAIL;
+                expand(paradigm, tails, new GlossedWord(head, head), 0, paradigm.target(t), out);
+            }
+            else {
+                String gloss = paradigm.gloss(label);
+                expandPrefix(paradigm, tails, paradigm.target(t),
+                        (prefix.isEmpty()) ? gloss : prefix + " " + gloss, word, out);
+            }
+        }
+    }
+
+    /**
+     * Apply the rules from some index on to a template with an unknown rest.
+     * @param paradigm The paradigm automaton
+     * @param tails Possible rests for each state
+     * @param w The template, ending in the stand-in
+     * @param from Index of the first rule to apply
+     * @param s The state of the paradigm automaton the rest starts in
+     * @param out The generated inflections
+     */
+    private void expand(ParadigmAutomaton paradigm, Rests tails, GlossedWord w, int from, int s,
+                        Set<GlossedWord> out) {
+        MatchContext ctx = MatchContext.forThread();
+        for (int r = from; r < rules.size(); r++) {
+            if (!ruleIndex.mayApply(r, w, tails.signatures[s]))
+                continue;
+            ctx.rest = tails.texts[s];
+            MorphRuleResult res = gen.applyTail(r, w, ctx);
+            if (ctx.dependent) {
+                // Read the next gloss of the rest and try again
+                if (paradigm.isFinal(s)) {
+                    Set<GlossedWord> ins = new HashSet<>();
+                    ins.add(cut(w, ""));
+                    out.addAll(gen.generate(ins, r));
+                }
+                for (int t = paradigm.firstTransition(s); t < paradigm.endTransition(s); t++)
+                    expand(paradigm, tails, cut(w, " " + paradigm.gloss(paradigm.label(t)) + TAIL), r,
+                            paradigm.target(t), out);
+                return;
+            }
+            if (res != null) {
+                for (String form : res.getResults())
+                    expand(paradigm, tails, new GlossedWord(res.getOrig(), form), r + 1, s, out);
+                return;
+            }
+        }
+        // Any gloss left in the rest makes the form fail the filter
+        if (paradigm.isFinal(s)) {
+            GlossedWord done = cut(w, "");
+            if (!filter.test(done.getForm()))
+                out.add(done);
+        }
+    }
+
+    /**
+     * @param w A template ending in the stand-in
+     * @param rest The replacement for the stand-in
+     * @return The template with the stand-in replaced in both gloss and form
+     */
+    private static GlossedWord cut(GlossedWord w, String rest) {
+        String gloss = w.getGloss();
+        String form = w.getForm();
+        return new GlossedWord(gloss.substring(0, gloss.length() - 1) + rest,
+                form.substring(0, form.length() - 1) + rest);
+    }
+
+    /**
+     * Check whether a paradigm automaton is suitable for incremental generation and collect, for each state, the
+     * glosses of the rests that can follow it.
+     * @param paradigm The paradigm automaton
+     * @return The rests of each state, UNSUPPORTED if the paradigm is not suitable
+     */
+    private Rests computeRests(ParadigmAutomaton paradigm) {
+        for (int label = 0; label < paradigm.labelCount(); label++) {
+            if (label == ParadigmAutomaton.ROOT)
+                continue;
+            String gloss = paradigm.gloss(label);
+            // Rests must not end in separators, and glosses left over must be filtered out
+            if (gloss.indexOf(TAIL) >= 0 || "|&<>".indexOf(gloss.charAt(gloss.length() - 1)) >= 0
+                    || !filter.test(gloss))
+                return Rests.UNSUPPORTED;
+        }
+        int states = paradigm.size();
+        BitSet[] reachable = new BitSet[states];
+        Rests tails = new Rests(states);
+        for (int s = 0; s < states; s++) {
+            List<String> glosses = new ArrayList<>();
+            StringBuilder text = new StringBuilder();
+            BitSet labels = reachableLabels(paradigm, s, reachable);
+            for (int label = labels.nextSetBit(0); label >= 0; label = labels.nextSetBit(label + 1)) {
+                if (label != ParadigmAutomaton.ROOT) {
+                    glosses.add(paradigm.gloss(label));
+                    text.append(' ').append(SEPARATORS.matcher(paradigm.gloss(label)).replaceAll(""));
+                }
+            }
+            tails.signatures[s] = ruleIndex.tailSignature(glosses);
+            tails.texts[s] = text.toString();
+        }
+        return tails;
+    }
+
+    private static BitSet reachableLabels(ParadigmAutomaton paradigm, int s, BitSet[] reachable) {
+        if (reachable[s] == null) {
+            BitSet labels = new BitSet();
+            for (int t = paradigm.firstTransition(s); t < paradigm.endTransition(s); t++) {
+                labels.set(paradigm.label(t));
+                labels.or(reachableLabels(paradigm, paradigm.target(t), reachable));
+            }
+            reachable[s] = labels;
+        }
+        return reachable[s];
+    }
+
+    /**
+     * What can follow each state of a paradigm automaton.
+     */
+    private static class Rests {
+        static final Rests UNSUPPORTED = new Rests(0);
+
+        // Signature of the rests for the rule index
+        long[][] signatures;
+        // Glosses of the rests without separators, each preceded by a space
+        String[] texts;
+
+        Rests(int states) {
+            signatures = new long[states][];
+            texts = new String[states];
+        }
+    }
+}
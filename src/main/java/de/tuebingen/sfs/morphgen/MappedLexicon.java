@@ -0,0 +1,457 @@
+package de.tuebingen.sfs.morphgen;
+
+import de.tuebingen.sfs.utils.StringUtils;
+import gnu.trove.list.array.TCharArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A lexicon of unfolded forms in a binary file that is queried through a memory mapping, without reading it into
+ * heap objects. The forms are stored in a minimal acyclic automaton that numbers them in lexicographic order, and
+ * the number of a form points to its analyses (as indices into a pool of distinct strings). A second automaton over
+ * the reversed forms answers queries about endings. Since the file is only mapped, several processes can share the
+ * cached pages of the same lexicon, and opening it takes no time. Files are limited to 2GB.
+ */
+public class MappedLexicon {
+
+    // Marks the beginning of a lexicon file
+    private static final int MAGIC = 0x4d4c5831;
+    // Number of pooled fields per analysis: segmented form, prefixes, translations and suffixes
+    private static final int FIELDS = UnfoldedLexicon.FIELDS;
+    // Number of ints in the header
+    private static final int HEADER = 10;
+    // Bytes per state: first transition, number of transitions and final flag
+    private static final int STATE_SIZE = 8;
+    // Bytes per transition: label, padding, target state and number of forms skipped
+    private static final int TRANSITION_SIZE = 12;
+
+    private ByteBuffer buffer;
+    private Automaton forward;
+    private Automaton backward;
+    // Number of forms
+    private int words;
+    // Offsets of the sections
+    private int analysisOffsets;
+    private int analyses;
+    private int poolOffsets;
+    private int poolData;
+
+    private MappedLexicon(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < 4 * HEADER || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a lexicon file");
+        words = buffer.getInt(4);
+        forward = new Automaton(buffer.getInt(8), buffer.getInt(12));
+        backward = new Automaton(buffer.getInt(16), buffer.getInt(20));
+        analysisOffsets = buffer.getInt(24);
+        analyses = buffer.getInt(28);
+        poolOffsets = buffer.getInt(32);
+        poolData = buffer.getInt(36);
+    }
+
+    /**
+     * Map a lexicon file into memory.
+     * @param lexiconFile Path to a file written by {@link #compile(String, String)}
+     * @return The lexicon
+     * @throws IOException If the file cannot be read or is not a lexicon file
+     */
+    public static MappedLexicon open(String lexiconFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(lexiconFile), StandardOpenOption.READ)) {
+            return new MappedLexicon(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Compile the output of {@link MorphGen#unfoldVocabulary(String, String)} into a lexicon file.
+     * @param unfoldedFile Path to the unfolded lexicon
+     * @param lexiconFile Path to write the lexicon file to
+     * @throws IOException If a file cannot be read or written
+     */
+    public static void compile(String unfoldedFile, String lexiconFile) throws IOException {
+        write(UnfoldedLexicon.read(unfoldedFile), lexiconFile);
+    }
+
+    /**
+     * @return The number of forms in the lexicon
+     */
+    public int size() {
+        return words;
+    }
+
+    /**
+     * @param form A form
+     * @return True if the form is in the lexicon
+     */
+    public boolean contains(String form) {
+        return forward.rank(form, false) >= 0;
+    }
+
+    /**
+     * @param form A form
+     * @return Its analyses as returned by {@link ReverseTrie#get(String)}, null if the form is not in the lexicon
+     */
+    public List<String[]> get(String form) {
+        int rank = forward.rank(form, false);
+        if (rank < 0)
+            return null;
+        int from = buffer.getInt(analysisOffsets + 4 * rank);
+        int to = buffer.getInt(analysisOffsets + 4 * (rank + 1));
+        List<String[]> result = new ArrayList<>(to - from);
+        for (int a = from; a < to; a++) {
+            String[] analysis = new String[FIELDS];
+            for (int f = 0; f < FIELDS; f++)
+                analysis[f] = poolString(buffer.getInt(analyses + 4 * (a * FIELDS + f)));
+            result.add(analysis);
+        }
+        return result;
+    }
+
+    /**
+     * @param prefix A string
+     * @return All forms starting with the string, in lexicographic order
+     */
+    public List<String> getWithPrefix(String prefix) {
+        List<String> forms = new ArrayList<>();
+        int state = forward.walk(prefix, false);
+        if (state >= 0)
+            forward.enumerate(state, new StringBuilder(prefix), forms);
+        return forms;
+    }
+
+    /**
+     * @param suffix A string
+     * @return All forms ending in the string, in lexicographic order of their reversals
+     */
+    public List<String> getWithSuffix(String suffix) {
+        List<String> reversed = new ArrayList<>();
+        int state = backward.walk(suffix, true);
+        if (state >= 0)
+            backward.enumerate(state, new StringBuilder(StringUtils.reverse(suffix)), reversed);
+        List<String> forms = new ArrayList<>(reversed.size());
+        for (String form : reversed)
+            forms.add(StringUtils.reverse(form));
+        return forms;
+    }
+
+    /**
+     * @param s A word
+     * @return The start index of the longest suffix of the word that is a form in the lexicon, -1 if there is none
+     */
+    public int suffixSearch(String s) {
+        int state = 0;
+        int longest = backward.isFinal(0) ? s.length() : -1;
+        for (int i = s.length() - 1; i >= 0 && state >= 0; i--) {
+            int t = backward.find(state, s.charAt(i));
+            state = (t < 0) ? -1 : backward.target(t);
+            if (state >= 0 && backward.isFinal(state))
+                longest = i;
+        }
+        return longest;
+    }
+
+    private String poolString(int id) {
+        return UnfoldedLexicon.poolString(buffer, poolOffsets, poolData, id);
+    }
+
+    /**
+     * View of an automaton in the buffer. State 0 is the start state. The transitions of each state are sorted by
+     * their labels and store how many forms are accepted via the preceding transitions (and in the state itself),
+     * so the lexicographic rank of a form is the sum over its path.
+     */
+    private class Automaton {
+        private int states;
+        private int transitions;
+
+        Automaton(int states, int transitions) {
+            this.states = states;
+            this.transitions = transitions;
+        }
+
+        boolean isFinal(int state) {
+            return (buffer.getInt(states + STATE_SIZE * state + 4) & 1) != 0;
+        }
+
+        /**
+         * @param state A state
+         * @param c A label
+         * @return The transition of the state with that label, -1 if there is none
+         */
+        int find(int state, char c) {
+            int lo = buffer.getInt(states + STATE_SIZE * state);
+            int hi = lo + (buffer.getInt(states + STATE_SIZE * state + 4) >>> 1) - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char label = label(mid);
+                if (label < c)
+                    lo = mid + 1;
+                else if (label > c)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        char label(int t) {
+            return buffer.getChar(transitions + TRANSITION_SIZE * t);
+        }
+
+        int target(int t) {
+            return buffer.getInt(transitions + TRANSITION_SIZE * t + 4);
+        }
+
+        int skipped(int t) {
+            return buffer.getInt(transitions + TRANSITION_SIZE * t + 8);
+        }
+
+        /**
+         * @param s A string
+         * @param reversed Read the string from right to left
+         * @return The state reached by reading the string, -1 if there is none
+         */
+        int walk(String s, boolean reversed) {
+            int state = 0;
+            for (int i = 0; i < s.length() && state >= 0; i++) {
+                int t = find(state, s.charAt(reversed ? s.length() - 1 - i : i));
+                state = (t < 0) ? -1 : target(t);
+            }
+            return state;
+        }
+
+        /**
+         * @param s A string
+         * @param reversed Read the string from right to left
+         * @return The rank of the string among the accepted strings, -1 if it is not accepted
+         */
+        int rank(String s, boolean reversed) {
+            int state = 0;
+            int rank = 0;
+            for (int i = 0; i < s.length(); i++) {
+                int t = find(state, s.charAt(reversed ? s.length() - 1 - i : i));
+                if (t < 0)
+                    return -1;
+                rank += skipped(t);
+                state = target(t);
+            }
+            return isFinal(state) ? rank : -1;
+        }
+
+        /**
+         * Collect all strings accepted from a state, in lexicographic order.
+         * @param state The state
+         * @param prefix The string read up to the state, will be restored by this method
+         * @param out The accepted strings
+         */
+        void enumerate(int state, StringBuilder prefix, List<String> out) {
+            if (isFinal(state))
+                out.add(prefix.toString());
+            int first = buffer.getInt(states + STATE_SIZE * state);
+            int count = buffer.getInt(states + STATE_SIZE * state + 4) >>> 1;
+            for (int t = first; t < first + count; t++) {
+                prefix.append(label(t));
+                enumerate(target(t), prefix, out);
+                prefix.setLength(prefix.length() - 1);
+            }
+        }
+    }
+
+    /**
+     * Write a lexicon file.
+     * @param lexicon The lines of the unfolded lexicon
+     * @param lexiconFile Path to write the lexicon file to
+     * @throws IOException If the file cannot be written
+     */
+    static void write(UnfoldedLexicon lexicon, String lexiconFile) throws IOException {
+        String[] forms = lexicon.forms();
+        int[] rows = lexicon.sortedRows(forms);
+        List<String> distinct = new ArrayList<>();
+        TIntArrayList analysisOffsets = new TIntArrayList();
+        for (int r = 0; r < rows.length; r++) {
+            if (r == 0 || !forms[rows[r]].equals(forms[rows[r - 1]])) {
+                analysisOffsets.add(r);
+                distinct.add(forms[rows[r]]);
+            }
+        }
+        int words = distinct.size();
+        analysisOffsets.add(rows.length);
+        String[] reversed = new String[words];
+        for (int w = 0; w < words; w++)
+            reversed[w] = StringUtils.reverse(distinct.get(w));
+        Arrays.sort(reversed);
+        DafsaState[] forwardStates = DafsaState.minimize(distinct);
+        DafsaState[] backwardStates = DafsaState.minimize(Arrays.asList(reversed));
+
+        int[] header = new int[HEADER];
+        int offset = 4 * HEADER;
+        header[0] = MAGIC;
+        header[1] = words;
+        header[2] = offset;
+        offset += STATE_SIZE * forwardStates.length;
+        header[3] = offset;
+        offset += TRANSITION_SIZE * DafsaState.transitionCount(forwardStates);
+        header[4] = offset;
+        offset += STATE_SIZE * backwardStates.length;
+        header[5] = offset;
+        offset += TRANSITION_SIZE * DafsaState.transitionCount(backwardStates);
+        header[6] = offset;
+        offset += 4 * (words + 1);
+        header[7] = offset;
+        offset += 4 * FIELDS * rows.length;
+        header[8] = offset;
+        offset += lexicon.poolHeaderSize();
+        header[9] = offset;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(lexiconFile)))) {
+            for (int h : header)
+                out.writeInt(h);
+            DafsaState.write(forwardStates, out);
+            DafsaState.write(backwardStates, out);
+            for (int w = 0; w <= words; w++)
+                out.writeInt(analysisOffsets.get(w));
+            for (int row : rows)
+                for (int f = 0; f < FIELDS; f++)
+                    out.writeInt(lexicon.field(row, f));
+            lexicon.writePool(out);
+        }
+    }
+
+    /**
+     * A state of a minimal acyclic automaton under construction. States are built from sorted input with the
+     * incremental algorithm of Daciuk et al.: once a state can no longer change, it is replaced by an equivalent
+     * state that has been seen before, if there is one.
+     */
+    private static class DafsaState {
+        private boolean isFinal;
+        private TCharArrayList labels = new TCharArrayList();
+        private List<DafsaState> targets = new ArrayList<>();
+        // Number of the state in the output, -1 if not numbered yet
+        private int id = -1;
+        // Number of strings accepted from this state, -1 if not counted yet
+        private int count = -1;
+
+        /**
+         * Build a minimal automaton.
+         * @param keys Distinct strings in lexicographic order
+         * @return The states of the automaton, numbered in breadth-first order from the start state
+         */
+        static DafsaState[] minimize(List<String> keys) {
+            DafsaState start = new DafsaState();
+            Map<DafsaState, DafsaState> register = new HashMap<>();
+            List<DafsaState> path = new ArrayList<>();
+            path.add(start);
+            String prev = "";
+            for (String key : keys) {
+                int common = 0;
+                while (common < key.length() && common < prev.length() && key.charAt(common) == prev.charAt(common))
+                    common++;
+                replaceOrRegister(path, common, register);
+                for (int i = common; i < key.length(); i++) {
+                    DafsaState next = new DafsaState();
+                    path.get(i).labels.add(key.charAt(i));
+                    path.get(i).targets.add(next);
+                    path.add(next);
+                }
+                path.get(key.length()).isFinal = true;
+                prev = key;
+            }
+            replaceOrRegister(path, 0, register);
+
+            List<DafsaState> states = new ArrayList<>();
+            start.id = 0;
+            states.add(start);
+            for (int s = 0; s < states.size(); s++) {
+                for (DafsaState target : states.get(s).targets) {
+                    if (target.id < 0) {
+                        target.id = states.size();
+                        states.add(target);
+                    }
+                }
+            }
+            start.count();
+            return states.toArray(new DafsaState[0]);
+        }
+
+        /**
+         * @return The number of strings accepted from this state, computed once for each state
+         */
+        private int count() {
+            if (count < 0) {
+                count = isFinal ? 1 : 0;
+                for (DafsaState target : targets)
+                    count += target.count();
+            }
+            return count;
+        }
+
+        /**
+         * Replace the states on the path after some position by equivalent registered states, or register them.
+         * @param path The states on the path of the previous key
+         * @param keep Number of characters of the path to keep
+         * @param register The registered states
+         */
+        private static void replaceOrRegister(List<DafsaState> path, int keep, Map<DafsaState, DafsaState> register) {
+            for (int i = path.size() - 1; i > keep; i--) {
+                DafsaState state = path.remove(i);
+                DafsaState equivalent = register.putIfAbsent(state, state);
+                if (equivalent != null) {
+                    List<DafsaState> siblings = path.get(i - 1).targets;
+                    siblings.set(siblings.size() - 1, equivalent);
+                }
+            }
+        }
+
+        static int transitionCount(DafsaState[] states) {
+            int n = 0;
+            for (DafsaState state : states)
+                n += state.targets.size();
+            return n;
+        }
+
+        static void write(DafsaState[] states, DataOutputStream out) throws IOException {
+            int first = 0;
+            for (DafsaState state : states) {
+                out.writeInt(first);
+                out.writeInt((state.targets.size() << 1) | (state.isFinal ? 1 : 0));
+                first += state.targets.size();
+            }
+            for (DafsaState state : states) {
+                int skipped = state.isFinal ? 1 : 0;
+                for (int t = 0; t < state.targets.size(); t++) {
+                    out.writeChar(state.labels.get(t));
+                    out.writeChar(0);
+                    out.writeInt(state.targets.get(t).id);
+                    out.writeInt(skipped);
+                    skipped += state.targets.get(t).count;
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DafsaState))
+                return false;
+            DafsaState state = (DafsaState) other;
+            if (isFinal != state.isFinal || !labels.equals(state.labels) || targets.size() != state.targets.size())
+                return false;
+            // Targets are already unique, so they can be compared by identity
+            for (int t = 0; t < targets.size(); t++)
+                if (targets.get(t) != state.targets.get(t))
+                    return false;
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = isFinal ? 1 : 0;
+            for (int t = 0; t < targets.size(); t++)
+                hash = 31 * (31 * hash + labels.get(t)) + System.identityHashCode(targets.get(t));
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package de.tuebingen.sfs.morphgen;
+
+import java.util.Arrays;
+
+/**
+ * Mutable state of rule matching: the variables and separators captured by the current match, the (state, position)
+ * pairs known to fail and a counter of the matcher steps taken so far. Variables are stored in numbered slots as
+ * offsets into the input, so matching itself allocates nothing. A context can be reused for any number of
+ * consecutive matches, but not for nested ones.
+ */
+class MatchContext {
+
+    private static final ThreadLocal<MatchContext> CONTEXTS = ThreadLocal.withInitial(MatchContext::new);
+
+    // Start offset of the value of each variable slot
+    int[] starts;
+    // End offset of the value of each variable slot
+    int[] ends;
+    // Separators matched against spaces in the input, in reverse order
+    char[] seps;
+    // Number of separators in the buffer
+    int sepCount;
+    // Buffer for assembling outputs
+    StringBuilder buffer;
+    // Number of automaton states visited
+    long steps;
+    // Position of the stand-in for an unknown rest of the input, Integer.MAX_VALUE if there is none
+    int tail = Integer.MAX_VALUE;
+    // Whether the current match depends on the unknown rest of the input
+    boolean dependent;
+    // Everything the unknown rest can consist of, without separators and with spaces between words, null if unknown
+    String rest;
+    // Bitset of (state, position) pairs that did not match
+    private long[] failed;
+    // Number of positions per state in the bitset
+    private int width;
+
+    MatchContext() {
+        starts = new int[8];
+        ends = new int[8];
+        seps = new char[8];
+        buffer = new StringBuilder(64);
+        failed = new long[16];
+    }
+
+    /**
+     * @return The context of the current thread
+     */
+    static MatchContext forThread() {
+        return CONTEXTS.get();
+    }
+
+    /**
+     * Clear the captures and memoized failures of the previous match (but not the step counter).
+     * @param states Number of states of the automaton to be matched
+     * @param length Length of the input to be matched
+     * @param slots Number of variable slots of the rule to be matched
+     */
+    void reset(int states, int length, int slots) {
+        if (starts.length < slots) {
+            starts = new int[Math.max(slots, 2 * starts.length)];
+            ends = new int[starts.length];
+        }
+        else {
+            Arrays.fill(starts, 0, slots, 0);
+            Arrays.fill(ends, 0, slots, 0);
+        }
+        sepCount = 0;
+        width = length + 1;
+        int n = (states * width + 63) >>> 6;
+        if (failed.length < n)
+            failed = new long[Math.max(n, 2 * failed.length)];
+        else
+            Arrays.fill(failed, 0, n, 0L);
+    }
+
+    /**
+     * Store the value of a variable.
+     * @param slot Slot of the variable
+     * @param start Start offset of the value in the input
+     * @param end End offset of the value in the input
+     */
+    void capture(int slot, int start, int end) {
+        starts[slot] = start;
+        ends[slot] = end;
+    }
+
+    /**
+     * Record a separator matched against a space. Since captures are made while returning from a successful match,
+     * separators arrive from right to left.
+     * @param sep The separator
+     */
+    void addSeparator(char sep) {
+        if (sepCount == seps.length)
+            seps = Arrays.copyOf(seps, 2 * seps.length);
+        seps[sepCount++] = sep;
+    }
+
+    /**
+     * @param required Groups of alternative strings without separators
+     * @return True if none of the strings of some group can occur in the unknown rest of the input
+     */
+    boolean restLacksAny(String[][] required) {
+        if (rest == null)
+            return false;
+        for (String[] alternatives : required) {
+            boolean lacks = true;
+            for (String alt : alternatives)
+                if (rest.indexOf(alt) >= 0)
+                    lacks = false;
+            if (lacks)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param state Id of a state
+     * @param i Position in the input
+     * @return True if the state is known not to match at this position
+     */
+    boolean hasFailed(int state, int i) {
+        int b = state * width + i;
+        return (failed[b >>> 6] & (1L << b)) != 0;
+    }
+
+    /**
+     * Remember that a state does not match at a position.
+     * @param state Id of a state
+     * @param i Position in the input
+     */
+    void setFailed(int state, int i) {
+        int b = state * width + i;
+        failed[b >>> 6] |= 1L << b;
+    }
+}
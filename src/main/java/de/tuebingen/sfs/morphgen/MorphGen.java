@@ -1,11 +1,26 @@
 package de.tuebingen.sfs.morphgen;
 
+import de.tuebingen.sfs.utils.IOUtils;
+import de.tuebingen.sfs.utils.LineReader;
 import de.tuebingen.sfs.utils.StringUtils;
 
 import java.io.*;
-import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.regex.Pattern;
 
 /**
@@ -14,8 +29,6 @@ import java.util.regex.Pattern;
  */
 public class MorphGen {
 
-    // A regex that can never match, default for sWithGloss with paradigms
-    private static final String NEVER_MATCHING = "(?!x)x";
     // A regex that can never match, default for sWithGloss with paradigms
     private static final Pattern SEPARATORS = Pattern.compile("[|&<>]");
     // A regex matching word boundary symbols
@@ -23,12 +36,38 @@ public class MorphGen {
 
     private static final Pattern PARADIGM_SPECIAL_CHARS = Pattern.compile("[()| _]+");
 
+    // Paradigm of words with unknown POS, containing only the word itself
+    private static final Paradigm NO_PARADIGM = new Paradigm("", "");
+
+    // Marks the beginning of a compiled rule set
+    private static final int MAGIC = 0x4d475231;
+    // Version of the compiled rule set format, to be increased whenever the format changes
+    private static final int VERSION = 1;
+    // Types of rules in compiled rule sets
+    private static final byte MORPH_RULE = 0;
+    private static final byte REPLACE_RULE = 1;
+
+    // Number of dictionary entries per thread that are generated ahead of writing them when unfolding
+    private static final int UNFOLD_WINDOW = 8;
+    // Number of paradigm templates generated by a single task when unfolding
+    private static final int UNFOLD_GRAIN = 32;
+
     // The rules to apply, in order
     private List<Rule> rules;
+    // Index of the literals required by the rules
+    private RuleIndex ruleIndex;
     // A map from POS to respective paradigm
     private Map<String, Paradigm> paradigms;
-    // Regex matching strings that still contain glosses, will never match when not given paradigms
-    private Pattern strWithGloss;
+    // Filter matching strings that still contain glosses, will never match when not given paradigms
+    private GlossFilter strWithGloss;
+    // Listeners to notify about generation steps
+    private List<GenerationListener> listeners = new ArrayList<>();
+    // Per-rule statistics, null unless enabled
+    private GenerationMetrics metrics;
+    // Cache for results of generate(String) and getInflections, null unless enabled
+    private GenerationCache cache;
+    // Generator sharing work between templates of a paradigm, null unless enabled
+    private IncrementalGenerator incremental;
 
     /**
      * Create a morph gen with only rules, from a list of pre-created rules.
@@ -36,8 +75,9 @@ public class MorphGen {
      */
     public MorphGen(List<Rule> rules) {
         this.rules = new ArrayList<>(rules);
+        this.ruleIndex = new RuleIndex(this.rules);
         this.paradigms = new HashMap<>();
-        this.strWithGloss = Pattern.compile(NEVER_MATCHING);
+        this.strWithGloss = GlossFilter.NONE;
     }
 
     /**
@@ -47,8 +87,9 @@ public class MorphGen {
     public MorphGen(String ruleFile) {
         this.rules = new ArrayList<>();
         readRules(ruleFile);
+        this.ruleIndex = new RuleIndex(rules);
         this.paradigms = new HashMap<>();
-        this.strWithGloss = Pattern.compile(NEVER_MATCHING);
+        this.strWithGloss = GlossFilter.NONE;
     }
 
     /**
@@ -59,61 +100,126 @@ public class MorphGen {
     public MorphGen(String ruleFile, String paradigmFile) {
         this.rules = new ArrayList<>();
         readRules(ruleFile);
+        this.ruleIndex = new RuleIndex(rules);
         this.paradigms = new HashMap<>();
+        this.strWithGloss = GlossFilter.NONE;
         readParadigms(paradigmFile);
     }
 
+    /**
+     * Create a morph gen with only rules, from a rule file on the file system.
+     * @param ruleFile The rule file
+     * @throws IOException If the file cannot be read
+     */
+    public MorphGen(Path ruleFile) throws IOException {
+        this(ruleFile, null);
+    }
+
+    /**
+     * Create a morph gen with both rules and paradigms, from a rule file and a paradigm file on the file system.
+     * @param ruleFile The rule file
+     * @param paradigmFile The paradigm file, null for a morph gen with only rules
+     * @throws IOException If a file cannot be read
+     */
+    public MorphGen(Path ruleFile, Path paradigmFile) throws IOException {
+        this.rules = new ArrayList<>();
+        try (BufferedReader read = IOUtils.newReader(ruleFile)) {
+            readRules(read);
+        }
+        this.ruleIndex = new RuleIndex(rules);
+        this.paradigms = new HashMap<>();
+        this.strWithGloss = GlossFilter.NONE;
+        if (paradigmFile != null) {
+            try (BufferedReader read = IOUtils.newReader(paradigmFile)) {
+                readParadigms(read);
+            }
+        }
+    }
+
+    /**
+     * Create a morph gen with both rules and paradigms, reading them from readers, which are not closed.
+     * @param ruleReader Reader for the rules
+     * @param paradigmReader Reader for the paradigms, null for a morph gen with only rules
+     * @throws IOException If a reader cannot be read
+     */
+    public MorphGen(Reader ruleReader, Reader paradigmReader) throws IOException {
+        this.rules = new ArrayList<>();
+        readRules(buffered(ruleReader));
+        this.ruleIndex = new RuleIndex(rules);
+        this.paradigms = new HashMap<>();
+        this.strWithGloss = GlossFilter.NONE;
+        if (paradigmReader != null)
+            readParadigms(buffered(paradigmReader));
+    }
+
+    private MorphGen(List<Rule> rules, RuleIndex ruleIndex, Map<String, Paradigm> paradigms,
+                     GlossFilter strWithGloss) {
+        this.rules = rules;
+        this.ruleIndex = ruleIndex;
+        this.paradigms = paradigms;
+        this.strWithGloss = strWithGloss;
+    }
+
     /**
      * Parse the rule file into a list of rules.
      * @param ruleFile The path to the rule file
      */
     private void readRules(String ruleFile) {
-        try (BufferedReader read = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream(ruleFile), StandardCharsets.UTF_8))) {
-            Map<String, String[]> groups = new HashMap<>();
-            for (String line = read.readLine(); line != null; line = read.readLine()) {
-                // Group definition
-                if (line.startsWith("#def")) {
-                    String[] fields = StringUtils.split(line, '\t');
-                    if (fields.length == 3)
-                        groups.put(fields[1], StringUtils.split(fields[2].substring(1, fields[2].length()-1),' '));
-                    else
-                        System.err.println("Unknown group definition format: " + line);
-                }
-                // Rule
-                else if (!line.isEmpty() && !line.startsWith("//")) {
-                    String[] fields = StringUtils.split(line, '\t');
-                    if (fields.length == 2 || fields.length == 1) {
-                        String lhs = fields[0];
-                        String[] rhs = (fields.length == 2) ? StringUtils.split(fields[1], " || ") : new String[]{""};
+        try (BufferedReader read = resource(ruleFile)) {
+            readRules(read);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                        if (lhs.charAt(0) == '*') {
-                            rules.add(new ReplaceRule(lhs.substring(1), rhs, groups, line));
-                        }
-                        else {
-                            // Insert start and end wildcards, if needed, to make sure that previously appended prefixes
-                            // and suffixes are not deleted and can be matched.
-                            String start = getStartWildcard(lhs);
-                            if (start.equals("[§start]"))
-                                lhs = start + lhs;
-                            for (int r = 0; r < rhs.length; r++) {
-                                if (!rhs[r].contains(start))
-                                    rhs[r] = start + rhs[r];
-                                if (!lhs.endsWith("#"))
-                                    rhs[r] = rhs[r] + "[§end]";
-                            }
+    /**
+     * Parse rules into a list of rules.
+     * @param read Reader for the rules
+     * @throws IOException If the rules cannot be read
+     */
+    private void readRules(BufferedReader read) throws IOException {
+        Map<String, String[]> groups = new HashMap<>();
+        for (String line = read.readLine(); line != null; line = read.readLine()) {
+            // Group definition
+            if (line.startsWith("#def")) {
+                String[] fields = StringUtils.split(line, '\t');
+                if (fields.length == 3)
+                    groups.put(fields[1], StringUtils.split(fields[2].substring(1, fields[2].length()-1),' '));
+                else
+                    System.err.println("Unknown group definition format: " + line);
+            }
+            // Rule
+            else if (!line.isEmpty() && !line.startsWith("//")) {
+                String[] fields = StringUtils.split(line, '\t');
+                if (fields.length == 2 || fields.length == 1) {
+                    String lhs = fields[0];
+                    String[] rhs = (fields.length == 2) ? StringUtils.split(fields[1], " || ") : new String[]{""};
+
+                    if (lhs.charAt(0) == '*') {
+                        rules.add(new ReplaceRule(lhs.substring(1), rhs, groups, line));
+                    }
+                    else {
+                        // Insert start and end wildcards, if needed, to make sure that previously appended prefixes
+                        // and suffixes are not deleted and can be matched.
+                        String start = getStartWildcard(lhs);
+                        if (start.equals("[§start]"))
+                            lhs = start + lhs;
+                        for (int r = 0; r < rhs.length; r++) {
+                            if (!rhs[r].contains(start))
+                                rhs[r] = start + rhs[r];
                             if (!lhs.endsWith("#"))
-                                lhs = lhs + "[§end]";
-                            rules.add(new MorphRule(WORD_BOUNDS.matcher(lhs).replaceAll(""), rhs, groups, line));
+                                rhs[r] = rhs[r] + "[§end]";
                         }
+                        if (!lhs.endsWith("#"))
+                            lhs = lhs + "[§end]";
+                        rules.add(new MorphRule(WORD_BOUNDS.matcher(lhs).replaceAll(""), rhs, groups, line));
                     }
-                    else
-                        System.err.println("Unknown rule format: " + line);
                 }
+                else
+                    System.err.println("Unknown rule format: " + line);
             }
         }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
     }
 
     /**
@@ -140,49 +246,282 @@ public class MorphGen {
      * @param paradigmFile The path to the paradigm file
      */
     private void readParadigms(String paradigmFile) {
-        try (BufferedReader read = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream(paradigmFile), StandardCharsets.UTF_8))) {
-            Set<String> glosses = new HashSet<>();
-            for (String line = read.readLine(); line != null; line = read.readLine()) {
-                if (!line.isEmpty()) {
-                    int p = line.indexOf('[');
-                    int s = line.indexOf(']');
-                    if (p >= 0 && s >= 0) {
-                        String prefix = line.substring(0, p);
-                        String suffix = line.substring(s+1);
-                        String pos = line.substring(p+1, s);
-                        Paradigm par = new Paradigm(prefix, suffix);
-                        paradigms.put(pos, par);
-                        for (String gloss : PARADIGM_SPECIAL_CHARS.split(prefix))
-                            glosses.add(gloss);
-                        for (String gloss : PARADIGM_SPECIAL_CHARS.split(suffix))
-                            glosses.add(gloss);
-                    }
-                    else
-                        System.err.println("Wrong format: " + line);
-                }
-            }
-            glosses.remove("");
-            StringBuilder regex = new StringBuilder(".*((");
-            for (String gloss : glosses)
-                regex.append(gloss
-                        .replace('_', ' ')
-                        .replace("+", "\\+")
-                        .replace("*", "\\*"))
-                        .append(")|(");
-            regex.append("[|&<>][|&<>]+)).*");
-            strWithGloss = Pattern.compile(regex.toString());
+        try (BufferedReader read = resource(paradigmFile)) {
+            readParadigms(read);
         }
         catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Parse paradigms into a map from POS label to paradigm and create the gloss filter.
+     * @param read Reader for the paradigms
+     * @throws IOException If the paradigms cannot be read
+     */
+    private void readParadigms(BufferedReader read) throws IOException {
+        Set<String> glosses = new HashSet<>();
+        for (String line = read.readLine(); line != null; line = read.readLine()) {
+            if (!line.isEmpty()) {
+                int p = line.indexOf('[');
+                int s = line.indexOf(']');
+                if (p >= 0 && s >= 0) {
+                    String prefix = line.substring(0, p);
+                    String suffix = line.substring(s+1);
+                    String pos = line.substring(p+1, s);
+                    Paradigm par = new Paradigm(prefix, suffix);
+                    paradigms.put(pos, par);
+                    for (String gloss : PARADIGM_SPECIAL_CHARS.split(prefix))
+                        glosses.add(gloss);
+                    for (String gloss : PARADIGM_SPECIAL_CHARS.split(suffix))
+                        glosses.add(gloss);
+                }
+                else
+                    System.err.println("Wrong format: " + line);
+            }
+        }
+        strWithGloss = new GlossFilter(glosses);
+    }
+
+    /**
+     * Write the parsed rules, paradigms and gloss vocabulary to a binary file, from which a generator can be created
+     * faster than from the original rule and paradigm files, see {@link #read(String)}. Only generators consisting
+     * of {@link MorphRule}s and {@link ReplaceRule}s can be written.
+     * @param binaryFile Path to write the compiled rule set to
+     * @throws IOException If the file cannot be written or the generator contains other rules
+     */
+    public void write(String binaryFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binaryFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rules.size());
+            for (Rule rule : rules) {
+                if (rule instanceof MorphRule) {
+                    out.writeByte(MORPH_RULE);
+                    ((MorphRule) rule).write(out);
+                }
+                else if (rule instanceof ReplaceRule) {
+                    out.writeByte(REPLACE_RULE);
+                    ((ReplaceRule) rule).write(out);
+                }
+                else
+                    throw new IOException("Cannot write rule " + rule.getName() + " of type "
+                            + rule.getClass().getName());
+            }
+            for (String[] literals : RuleIndex.requiredLiterals(rules))
+                writeStrings(out, literals);
+            out.writeInt(paradigms.size());
+            for (Map.Entry<String, Paradigm> paradigm : paradigms.entrySet()) {
+                out.writeUTF(paradigm.getKey());
+                paradigm.getValue().getAutomaton().write(out);
+            }
+            String[] glosses = strWithGloss.vocabulary();
+            out.writeBoolean(glosses != null);
+            if (glosses != null)
+                writeStrings(out, glosses);
+        }
+    }
+
+    /**
+     * Create a generator from a compiled rule set written by {@link #write(String)}. The rules, paradigms and gloss
+     * vocabulary are not parsed again; only the structures for matching them are rebuilt.
+     * @param binaryFile Path to the compiled rule set
+     * @return The generator
+     * @throws IOException If the file cannot be read, is not a compiled rule set or has another version
+     */
+    public static MorphGen read(String binaryFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binaryFile)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a compiled rule set: " + binaryFile);
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported rule set version " + version + ": " + binaryFile);
+            List<Rule> rules = new ArrayList<>();
+            int n = in.readInt();
+            for (int r = 0; r < n; r++) {
+                byte type = in.readByte();
+                if (type == MORPH_RULE)
+                    rules.add(MorphRule.read(in));
+                else if (type == REPLACE_RULE)
+                    rules.add(ReplaceRule.read(in));
+                else
+                    throw new IOException("Unknown rule type " + type + ": " + binaryFile);
+            }
+            String[][] literals = new String[n][];
+            for (int r = 0; r < n; r++)
+                literals[r] = readStrings(in);
+            Map<String, Paradigm> paradigms = new HashMap<>();
+            int p = in.readInt();
+            for (int i = 0; i < p; i++) {
+                String pos = in.readUTF();
+                paradigms.put(pos, new Paradigm(ParadigmAutomaton.read(in)));
+            }
+            GlossFilter strWithGloss = (in.readBoolean()) ? new GlossFilter(Arrays.asList(readStrings(in)))
+                    : GlossFilter.NONE;
+            return new MorphGen(rules, new RuleIndex(literals), paradigms, strWithGloss);
+        }
+    }
+
+    static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String s : strings)
+            out.writeUTF(s);
+    }
+
+    static String[] readStrings(DataInputStream in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = in.readUTF();
+        return strings;
+    }
+
+    /**
+     * @param resource Path to a resource on the class path
+     * @return A reader for the resource
+     */
+    private BufferedReader resource(String resource) {
+        return IOUtils.newReader(getClass().getResourceAsStream(resource));
+    }
+
+    /**
+     * @param reader A reader
+     * @return The reader if it is already buffered, else a buffered reader reading from it
+     */
+    private static BufferedReader buffered(Reader reader) {
+        return (reader instanceof BufferedReader) ? (BufferedReader) reader
+                : new BufferedReader(reader, IOUtils.BUFFER_SIZE);
+    }
+
+    /**
+     * Switch all morphological rules between matching with their automata and with compiled, flat versions of them,
+     * which are faster for long-running generators. Rules that cannot be compiled keep using their automata.
+     * @param compiled True to use compiled rules, false to use the automata
+     * @return The number of rules that are now compiled
+     */
+    public int setCompiled(boolean compiled) {
+        int n = 0;
+        for (Rule rule : rules)
+            if (rule instanceof MorphRule && ((MorphRule) rule).setCompiled(compiled))
+                n++;
+        return n;
+    }
+
+    /**
+     * Switch between generating the inflections of a word template by template and incrementally along the
+     * paradigm, so that rules are applied only once to the part that templates have in common, as long as their
+     * results do not depend on the rest of the templates. Words and paradigms for which this cannot be decided
+     * safely are still generated template by template. The inflections are the same either way. Listeners are
+     * notified of rule applications to partial templates as well, whose forms end in a stand-in for the rest.
+     * @param incremental True to generate inflections incrementally, false to generate them template by template
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = (incremental) ? new IncrementalGenerator(this, rules, ruleIndex, strWithGloss) : null;
+    }
+
+    /**
+     * @return True if inflections are generated incrementally
+     */
+    public boolean isIncremental() {
+        return incremental != null;
+    }
+
+    /**
+     * Register a listener to be notified about rule applications and filtered forms.
+     * @param listener A listener, e.g. a {@link TraceListener} for debugging
+     */
+    public void addListener(GenerationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregister a previously added listener.
+     * @param listener The listener
+     */
+    public void removeListener(GenerationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start collecting per-rule statistics for all following generation runs. A report is printed to standard
+     * error after each run of one of the {@code unfoldVocabulary} methods, but not of the other ways of unfolding a
+     * dictionary, and can be requested at any time via {@link GenerationMetrics#report()}.
+     * @return The statistics
+     */
+    public GenerationMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new GenerationMetrics(rules);
+            addListener(metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Stop collecting per-rule statistics.
+     */
+    public void disableMetrics() {
+        if (metrics != null) {
+            removeListener(metrics);
+            metrics = null;
+        }
+    }
+
+    /**
+     * @return The per-rule statistics, null if not enabled
+     */
+    public GenerationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Start caching the results of {@link #generate(String)} and {@link #getInflections(String, String)}, which
+     * are then returned as unmodifiable sets. Listeners are not notified of results taken from the cache.
+     * @param maxWeight Maximum total number of words in all cached results
+     * @return The cache
+     */
+    public GenerationCache enableCache(long maxWeight) {
+        cache = new GenerationCache(maxWeight);
+        return cache;
+    }
+
+    /**
+     * Stop caching results.
+     */
+    public void disableCache() {
+        cache = null;
+    }
+
+    /**
+     * @return The result cache, null if not enabled
+     */
+    public GenerationCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return The filter rejecting generated forms that still contain glosses
+     */
+    public GlossFilter getGlossFilter() {
+        return strWithGloss;
+    }
+
     /**
      * Generate realizations for input gloss.
      * @param in A glossed word
      * @return Realizations of that word
      */
     public Set<GlossedWord> generate(String in) {
+        GenerationCache cache = this.cache;
+        if (cache != null)
+            return cache.get(in, () -> generateUncached(in));
+        return generateUncached(in);
+    }
+
+    /**
+     * Generate realizations for input gloss, bypassing the cache.
+     * @param in A glossed word
+     * @return Realizations of that word
+     */
+    private Set<GlossedWord> generateUncached(String in) {
         Set<GlossedWord> ins = new HashSet<>();
         ins.add(new GlossedWord(in, in));
 //        for (String realization : allPossibleRealizations(in))
@@ -196,25 +535,269 @@ public class MorphGen {
      * @return Realizations of these words
      */
     public Set<GlossedWord> generate(Set<GlossedWord> ins) {
+        return generate(ins, 0);
+    }
+
+    /**
+     * Generate realizations for input glosses, starting with a given rule.
+     * @param ins A set of glossed words
+     * @param from Index of the first rule to apply
+     * @return Realizations of these words
+     */
+    Set<GlossedWord> generate(Set<GlossedWord> ins, int from) {
+        return generate(ins, from, (listeners.isEmpty()) ? null : listeners);
+    }
+
+    /**
+     * Generate realizations for input glosses, notifying a further listener besides those of the generator.
+     * @param ins A set of glossed words
+     * @param listener The further listener, which only observes this generation
+     * @return Realizations of these words
+     */
+    Set<GlossedWord> generate(Set<GlossedWord> ins, GenerationListener listener) {
+        List<GenerationListener> notify = new ArrayList<>(listeners);
+        notify.add(listener);
+        return generate(ins, 0, notify);
+    }
+
+    /**
+     * Generate realizations for input glosses, starting with a given rule.
+     * @param ins A set of glossed words
+     * @param from Index of the first rule to apply
+     * @param notify The listeners to notify, null if there are none
+     * @return Realizations of these words
+     */
+    private Set<GlossedWord> generate(Set<GlossedWord> ins, int from, List<GenerationListener> notify) {
+        MatchContext ctx = MatchContext.forThread();
         Set<GlossedWord> outs = ins;
-        for (Rule rule : rules) {
+        for (int r = from; r < rules.size(); r++) {
+            Rule rule = rules.get(r);
             ins = outs;
             outs = new HashSet<>();
             for (GlossedWord in : ins) {
-                MorphRuleResult res = rule.apply(in.getGloss(), in.getForm());
+                MorphRuleResult res = apply(r, in, ctx, notify);
                 if (res != null) {
-                    String[] outz = res.getResults();
-                    for (String out : outz)
+                    for (String out : res.getResults())
                         outs.add(new GlossedWord(res.getOrig(), out));
                 }
                 else
                     outs.add(in);
             }
+            if (notify != null)
+                for (GenerationListener listener : notify)
+                    listener.stageFinished(rule, outs.size());
+        }
+        outs.removeIf(out -> hasGloss(out, notify));
+        return outs;
+    }
+
+    /**
+     * Generate realizations for input glosses, keeping track of which inputs each realization comes from. Words
+     * reached from several inputs are processed only once.
+     * @param ins The input words, each with the set of indices of the inputs it stands for
+     * @return The realizations, each with the set of indices of the inputs it was generated from
+     */
+    private Map<GlossedWord, BitSet> generateTagged(Map<GlossedWord, BitSet> ins) {
+        List<GenerationListener> notify = (listeners.isEmpty()) ? null : listeners;
+        MatchContext ctx = MatchContext.forThread();
+        Map<GlossedWord, BitSet> outs = ins;
+        for (int r = 0; r < rules.size(); r++) {
+            Rule rule = rules.get(r);
+            ins = outs;
+            outs = new HashMap<>();
+            for (Map.Entry<GlossedWord, BitSet> in : ins.entrySet()) {
+                MorphRuleResult res = apply(r, in.getKey(), ctx, notify);
+                if (res != null) {
+                    for (String out : res.getResults())
+                        outs.merge(new GlossedWord(res.getOrig(), out), in.getValue(), MorphGen::union);
+                }
+                else
+                    outs.merge(in.getKey(), in.getValue(), MorphGen::union);
+            }
+            if (notify != null)
+                for (GenerationListener listener : notify)
+                    listener.stageFinished(rule, outs.size());
         }
-        outs.removeIf(out -> strWithGloss.matcher(out.getForm()).matches());
+        outs.keySet().removeIf(out -> hasGloss(out, notify));
         return outs;
     }
 
+    private static BitSet union(BitSet a, BitSet b) {
+        BitSet union = (BitSet) a.clone();
+        union.or(b);
+        return union;
+    }
+
+    /**
+     * Generate realizations for input gloss lazily. Each input is pushed through the rules depth-first, so only a
+     * few intermediate forms are held in memory at any time, and realizations are produced as soon as they are
+     * found. Since different intermediate forms can lead to the same realization, the stream may contain
+     * duplicates unless asked not to. Listeners are notified of everything but finished stages.
+     * @param in A glossed word
+     * @param distinct Remove duplicate realizations (which requires remembering all realizations produced so far)
+     * @return Realizations of that word
+     */
+    public Stream<GlossedWord> generateStream(String in, boolean distinct) {
+        return generateStream(Collections.singleton(new GlossedWord(in, in)), distinct);
+    }
+
+    /**
+     * Generate realizations for input glosses lazily, see {@link #generateStream(String, boolean)}.
+     * @param ins A collection of glossed words
+     * @param distinct Remove duplicate realizations
+     * @return Realizations of these words
+     */
+    public Stream<GlossedWord> generateStream(Collection<GlossedWord> ins, boolean distinct) {
+        return stream(new CascadeIterator(ins.iterator()), distinct);
+    }
+
+    /**
+     * @param outs An iterator over generated words
+     * @param distinct Remove duplicate words
+     * @return A stream over the words
+     */
+    private static Stream<GlossedWord> stream(Iterator<GlossedWord> outs, boolean distinct) {
+        Stream<GlossedWord> stream = StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(outs, Spliterator.ORDERED | Spliterator.NONNULL), false);
+        return (distinct) ? stream.distinct() : stream;
+    }
+
+    /**
+     * Apply a rule to a word, unless the rule index rules it out, and notify the listeners.
+     * @param r Index of the rule
+     * @param in The input word
+     * @param ctx Match context for the current thread
+     * @param notify The listeners to notify, null if there are none
+     * @return The result of the rule, null if it did not match
+     */
+    private MorphRuleResult apply(int r, GlossedWord in, MatchContext ctx, List<GenerationListener> notify) {
+        // Skip rules whose literals do not occur in the input
+        if (!ruleIndex.mayApply(r, in))
+            return null;
+        Rule rule = rules.get(r);
+        if (notify == null)
+            return rule.apply(in.getGloss(), in.getForm(), ctx);
+        for (GenerationListener listener : notify)
+            listener.ruleAttempted(rule, in);
+        long steps = ctx.steps;
+        long time = System.nanoTime();
+        MorphRuleResult res = rule.apply(in.getGloss(), in.getForm(), ctx);
+        time = System.nanoTime() - time;
+        for (GenerationListener listener : notify)
+            listener.ruleFinished(rule, in, res != null, time, ctx.steps - steps);
+        if (res != null)
+            for (GenerationListener listener : notify)
+                listener.ruleMatched(rule, in, res.getResults());
+        return res;
+    }
+
+    /**
+     * Apply a rule to a template with an unknown rest, see {@link Rule#applyTail}, and notify the listeners. The
+     * rule index is not consulted, since the rest has to be taken into account.
+     * @param r Index of the rule
+     * @param in The input word, ending in the stand-in for the rest
+     * @param ctx Match context for the current thread, holding the rest
+     * @return The result of the rule, null if it did not match or depends on the rest
+     */
+    MorphRuleResult applyTail(int r, GlossedWord in, MatchContext ctx) {
+        Rule rule = rules.get(r);
+        if (listeners.isEmpty())
+            return rule.applyTail(in.getGloss(), in.getForm(), ctx);
+        for (GenerationListener listener : listeners)
+            listener.ruleAttempted(rule, in);
+        long steps = ctx.steps;
+        long time = System.nanoTime();
+        MorphRuleResult res = rule.applyTail(in.getGloss(), in.getForm(), ctx);
+        time = System.nanoTime() - time;
+        boolean matched = res != null && !ctx.dependent;
+        for (GenerationListener listener : listeners)
+            listener.ruleFinished(rule, in, matched, time, ctx.steps - steps);
+        if (matched)
+            for (GenerationListener listener : listeners)
+                listener.ruleMatched(rule, in, res.getResults());
+        return res;
+    }
+
+    /**
+     * Check whether a generated form still contains glosses and notify the listeners if so.
+     * @param out A generated word
+     * @param notify The listeners to notify, null if there are none
+     * @return True if the word has to be discarded
+     */
+    private boolean hasGloss(GlossedWord out, List<GenerationListener> notify) {
+        if (strWithGloss.test(out.getForm())) {
+            if (notify != null)
+                for (GenerationListener listener : notify)
+                    listener.formFiltered(out);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Iterator pushing words through the rules depth-first. The stack holds the outputs of a rule that still
+     * have to be processed by the following rules, so its size is bounded by the number of rules times the
+     * number of outputs per rule.
+     */
+    private class CascadeIterator implements Iterator<GlossedWord> {
+        // The words still to be generated from
+        private Iterator<GlossedWord> ins;
+        // Intermediate words not processed yet
+        private Deque<GlossedWord> words = new ArrayDeque<>();
+        // Index of the next rule to apply to each intermediate word
+        private Deque<Integer> stages = new ArrayDeque<>();
+        // The next realization, null if not found yet
+        private GlossedWord next;
+
+        CascadeIterator(Iterator<GlossedWord> ins) {
+            this.ins = ins;
+        }
+
+        @Override
+        public boolean hasNext() {
+            List<GenerationListener> notify = (listeners.isEmpty()) ? null : listeners;
+            MatchContext ctx = MatchContext.forThread();
+            while (next == null) {
+                if (words.isEmpty()) {
+                    if (!ins.hasNext())
+                        return false;
+                    words.push(ins.next());
+                    stages.push(0);
+                }
+                GlossedWord word = words.pop();
+                int r = stages.pop();
+                for (; r < rules.size(); r++) {
+                    MorphRuleResult res = apply(r, word, ctx, notify);
+                    if (res != null) {
+                        String[] outs = res.getResults();
+                        if (outs.length == 0) {
+                            word = null;
+                            break;
+                        }
+                        // Push in reverse, so that the outputs are processed in order
+                        for (int o = outs.length - 1; o > 0; o--) {
+                            words.push(new GlossedWord(res.getOrig(), outs[o]));
+                            stages.push(r + 1);
+                        }
+                        word = new GlossedWord(res.getOrig(), outs[0]);
+                    }
+                }
+                if (word != null && !hasGloss(word, notify))
+                    next = word;
+            }
+            return true;
+        }
+
+        @Override
+        public GlossedWord next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            GlossedWord word = next;
+            next = null;
+            return word;
+        }
+    }
+
     /**
      * Get the paradigm of possible glosses for a raw word.
      * @param word A word
@@ -222,13 +805,20 @@ public class MorphGen {
      * @return The complete paradigm for that word
      */
     public Set<String> getParadigm(String word, String pos) {
+        return getParadigm(pos).getParadigm(word);
+    }
+
+    /**
+     * Get the paradigm for a POS, which can be enumerated lazily, counted and indexed without expanding it.
+     * @param pos A POS
+     * @return The paradigm for that POS, a paradigm containing only the word itself if the POS is unknown
+     */
+    public Paradigm getParadigm(String pos) {
         Paradigm par = paradigms.get(pos);
         if (par != null)
-            return par.getParadigm(word);
+            return par;
         System.err.println("Unknown POS: " + pos);
-        Set<String> s = new HashSet<>();
-        s.add(word);
-        return s;
+        return NO_PARADIGM;
     }
 
     /**
@@ -238,13 +828,89 @@ public class MorphGen {
      * @return The complete inflected paradigm for that word
      */
     public Set<GlossedWord> getInflections(String word, String pos) {
-        Set<GlossedWord> inflections = new HashSet<>();
-        Set<String> paradigm = getParadigm(word, pos);
-        for (String template : paradigm)
-            inflections.addAll(generate(template));
+        GenerationCache cache = this.cache;
+        if (cache != null)
+            return cache.get(Arrays.asList(word, pos), () -> inflect(word, pos));
+        return inflect(word, pos);
+    }
+
+    /**
+     * Get the paradigms of possible inflections for several raw words at once. All templates of all words are run
+     * through the rules together in a single pass, so intermediate forms that several templates lead to are only
+     * processed once, and the results are then split up by the words they come from. The cache is bypassed, and in
+     * incremental mode, the words are inflected one by one.
+     * @param entries The words, each given as an array with the word and its POS (further fields are ignored)
+     * @return The complete inflected paradigm for each word, in the same order
+     */
+    public List<Set<GlossedWord>> getInflections(List<String[]> entries) {
+        List<Set<GlossedWord>> inflections = new ArrayList<>(entries.size());
+        if (incremental != null) {
+            for (String[] entry : entries)
+                inflections.add(inflect(entry[0], entry[1]));
+            return inflections;
+        }
+        Map<GlossedWord, BitSet> templates = new HashMap<>();
+        for (int e = 0; e < entries.size(); e++) {
+            inflections.add(new HashSet<>());
+            for (Iterator<String> it = getParadigm(entries.get(e)[1]).iterator(entries.get(e)[0]); it.hasNext(); ) {
+                String template = it.next();
+                templates.computeIfAbsent(new GlossedWord(template, template), t -> new BitSet()).set(e);
+            }
+        }
+        for (Map.Entry<GlossedWord, BitSet> out : generateTagged(templates).entrySet()) {
+            BitSet origins = out.getValue();
+            for (int e = origins.nextSetBit(0); e >= 0; e = origins.nextSetBit(e + 1))
+                inflections.get(e).add(out.getKey());
+        }
         return inflections;
     }
 
+    /**
+     * Get the paradigm of possible inflections for a raw word, bypassing the cache. All templates are run through
+     * the rules together in a single pass.
+     * @param word A word
+     * @param pos The POS of that word
+     * @return The complete inflected paradigm for that word
+     */
+    private Set<GlossedWord> inflect(String word, String pos) {
+        IncrementalGenerator incremental = this.incremental;
+        if (incremental != null) {
+            Set<GlossedWord> inflections = incremental.inflect(getParadigm(pos).getAutomaton(), word);
+            if (inflections != null)
+                return inflections;
+        }
+        Set<GlossedWord> templates = new HashSet<>();
+        for (Iterator<String> it = getParadigm(pos).iterator(word); it.hasNext(); ) {
+            String template = it.next();
+            templates.add(new GlossedWord(template, template));
+        }
+        return generate(templates);
+    }
+
+    /**
+     * Get the paradigm of possible inflections for a raw word lazily, see {@link #generateStream(String, boolean)}.
+     * @param word A word
+     * @param pos The POS of that word
+     * @param distinct Remove duplicate inflections
+     * @return The complete inflected paradigm for that word
+     */
+    public Stream<GlossedWord> getInflectionStream(String word, String pos, boolean distinct) {
+        Iterator<String> templates = getParadigm(pos).iterator(word);
+        Iterator<GlossedWord> ins = new Iterator<GlossedWord>() {
+            @Override
+            public boolean hasNext() {
+                return templates.hasNext();
+            }
+
+            @Override
+            public GlossedWord next() {
+                String template = templates.next();
+                return new GlossedWord(template, template);
+            }
+        };
+        return stream(new CascadeIterator(ins), distinct);
+    }
+
     /**
      * Get all possible forms of the words in a list and print them to a file.
      * @param infile A list with tab-separated lemma, pos and translations in each line
@@ -254,6 +920,17 @@ public class MorphGen {
         unfoldVocabulary(infile, outfile, false);
     }
 
+    /**
+     * Get all possible forms of the words in a list and print them to a file, using several threads. The output is
+     * identical to that of a single-threaded run.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param outfile A list of all possible inflections of the vocabulary, with translations and glosses
+     * @param threads Number of threads to generate the forms with
+     */
+    public void unfoldVocabulary(String infile, String outfile, int threads) {
+        unfoldVocabulary(infile, outfile, false, threads);
+    }
+
     /**
      * Get all possible forms of the words in a list and print them to a file.
      * @param infile A list with tab-separated lemma, pos and translations in each line
@@ -261,83 +938,775 @@ public class MorphGen {
      * @param append Append to outfile instead of overwriting it
      */
     public void unfoldVocabulary(String infile, String outfile, boolean append) {
-        List<String> previous = new ArrayList<>();
+        unfoldVocabulary(infile, outfile, append, 1);
+    }
+
+    /**
+     * Get all possible forms of the words in a list and print them to a file. With more than one thread, entries
+     * are generated ahead of time in a fork-join pool, where the paradigms of large entries are split up between
+     * threads, and written in their original order as soon as they are done. Only a limited number of entries is
+     * kept in memory at once, and the output is identical to that of a single-threaded run.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param outfile A list of all possible inflections of the vocabulary, with translations and glosses
+     * @param append Append to outfile instead of overwriting it
+     * @param threads Number of threads to generate the forms with
+     */
+    public void unfoldVocabulary(String infile, String outfile, boolean append, int threads) {
+        try (BufferedReader read = resource(infile)) {
+            unfoldVocabulary(read, Paths.get(outfile), append, threads);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get all possible forms of the words in a file and print them to a file, see
+     * {@link #unfoldVocabulary(String, String, boolean, int)}.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param outfile A list of all possible inflections of the vocabulary, with translations and glosses
+     * @param append Append to outfile instead of overwriting it
+     * @param threads Number of threads to generate the forms with
+     * @throws IOException If a file cannot be read or written
+     */
+    public void unfoldVocabulary(Path infile, Path outfile, boolean append, int threads) throws IOException {
+        unfoldVocabulary(infile, outfile, append, threads, false);
+    }
+
+    /**
+     * Get all possible forms of the words in a file and print them to a file, see
+     * {@link #unfoldVocabulary(String, String, boolean, int)}.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param outfile A list of all possible inflections of the vocabulary, with translations and glosses
+     * @param append Append to outfile instead of overwriting it
+     * @param threads Number of threads to generate the forms with
+     * @param mapped Read infile through memory mappings, which is faster for very large files
+     * @throws IOException If a file cannot be read or written
+     */
+    public void unfoldVocabulary(Path infile, Path outfile, boolean append, int threads, boolean mapped)
+            throws IOException {
+        try (BufferedReader read = (mapped) ? IOUtils.newMappedReader(infile) : IOUtils.newReader(infile)) {
+            unfoldVocabulary(read, outfile, append, threads);
+        }
+    }
+
+    /**
+     * Get all possible forms of the words read from a stream and write them to a stream, see
+     * {@link #unfoldVocabulary(String, String, boolean, int)}. The streams are not closed.
+     * @param in A list with tab-separated lemma, pos and translations in each line, in UTF-8
+     * @param out Receives a list of all possible inflections of the vocabulary, with translations and glosses, in
+     *            UTF-8
+     * @param threads Number of threads to generate the forms with
+     * @throws IOException If a stream cannot be read or written
+     */
+    public void unfoldVocabulary(InputStream in, OutputStream out, int threads) throws IOException {
+        writeUnfolded(IOUtils.newReader(in), IOUtils.newWriter(out), new HashSet<>(), threads);
+    }
+
+    /**
+     * Get all possible forms of the words read from a reader and write them to a writer, see
+     * {@link #unfoldVocabulary(String, String, boolean, int)}. The reader and writer are not closed.
+     * @param in A list with tab-separated lemma, pos and translations in each line
+     * @param out Receives a list of all possible inflections of the vocabulary, with translations and glosses
+     * @param threads Number of threads to generate the forms with
+     * @throws IOException If the reader cannot be read or the writer cannot be written
+     */
+    public void unfoldVocabulary(Reader in, Writer out, int threads) throws IOException {
+        writeUnfolded(buffered(in), IOUtils.newWriter(out), new HashSet<>(), threads);
+    }
+
+    /**
+     * Unfold a dictionary into a file. When appending, the entries already in the file are not rewritten; the file
+     * is only streamed over once to collect the inflected forms it contains into a compact {@link FormSet}, so that
+     * new entries coinciding with them are skipped, and the new entries are appended to it.
+     * @param read A list with tab-separated lemma, pos and translations in each line
+     * @param outfile The output file
+     * @param append Append to outfile instead of overwriting it
+     * @param threads Number of threads to generate the forms with
+     * @throws IOException If the dictionary cannot be read or the output file cannot be read or written
+     */
+    private void unfoldVocabulary(BufferedReader read, Path outfile, boolean append, int threads) throws IOException {
         Set<String> forms = new HashSet<>();
-        if (append) {
-            try (BufferedReader read = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream(outfile), StandardCharsets.UTF_8))) {
-                for (String line = read.readLine(); line != null; line = read.readLine()) {
-                    if (!line.isEmpty()) {
-                        previous.add(line);
-                        int i = line.indexOf('\t');
-                        if (i >= 0 && (line.contains("|") || line.contains("<>")))
-                            forms.add(line.substring(0, i));
+        if (append && Files.exists(outfile)) {
+            try (BufferedReader previous = IOUtils.newReader(outfile)) {
+                forms = FormSet.read(previous);
+            }
+        }
+        try (PrintWriter writ = IOUtils.newWriter(outfile, append)) {
+            writeUnfolded(read, writ, forms, threads);
+        }
+    }
+
+    /**
+     * Unfold a dictionary and write the output lines.
+     * @param read A list with tab-separated lemma, pos and translations in each line
+     * @param writ Receives the output lines, flushed but not closed
+     * @param forms The inflected forms of all entries unfolded so far, will be updated by this method
+     * @param threads Number of threads to generate the forms with
+     * @throws IOException If the dictionary cannot be read or the output cannot be written
+     */
+    private void writeUnfolded(BufferedReader read, PrintWriter writ, Set<String> forms, int threads)
+            throws IOException {
+        unfold(read, forms, threads, writ::print);
+        if (writ.checkError())
+            throw new IOException("Unfolded vocabulary could not be written");
+        if (metrics != null)
+            System.err.print(metrics.report());
+    }
+
+    /**
+     * Build an analyzer for all possible forms of the words in a list, which maps each form to the same analyses
+     * that {@link #unfoldVocabulary(String, String)} would write for it.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @return A trie from forms to their analyses
+     */
+    public ReverseTrie buildAnalyzer(String infile) {
+        return buildAnalyzer(infile, 1);
+    }
+
+    /**
+     * Build an analyzer for all possible forms of the words in a list, using several threads, see
+     * {@link #buildAnalyzer(String)}.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param threads Number of threads to generate the forms with
+     * @return A trie from forms to their analyses
+     */
+    public ReverseTrie buildAnalyzer(String infile, int threads) {
+        try (BufferedReader read = resource(infile)) {
+            return buildAnalyzer(read, threads);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return new ReverseTrie.Builder().build();
+        }
+    }
+
+    /**
+     * Build an analyzer for all possible forms of the words in a file, see {@link #buildAnalyzer(String)}.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param threads Number of threads to generate the forms with
+     * @return A trie from forms to their analyses
+     * @throws IOException If the file cannot be read
+     */
+    public ReverseTrie buildAnalyzer(Path infile, int threads) throws IOException {
+        try (BufferedReader read = IOUtils.newReader(infile)) {
+            return buildAnalyzer(read, threads);
+        }
+    }
+
+    /**
+     * Build an analyzer for all possible forms of the words read from a reader, see {@link #buildAnalyzer(String)}.
+     * The reader is not closed.
+     * @param in A list with tab-separated lemma, pos and translations in each line
+     * @param threads Number of threads to generate the forms with
+     * @return A trie from forms to their analyses
+     * @throws IOException If the reader cannot be read
+     */
+    public ReverseTrie buildAnalyzer(Reader in, int threads) throws IOException {
+        ReverseTrie.Builder builder = new ReverseTrie.Builder();
+        unfold(buffered(in), new HashSet<>(), threads, builder::addLines);
+        return builder.build();
+    }
+
+    /**
+     * Get all possible forms of the words in a list and write them to a {@link ColumnarLexicon} file instead of a
+     * text file. The lexicon holds the same lines as the output of {@link #unfoldVocabulary(String, String)}, without
+     * duplicates.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param lexiconFile Path to write the lexicon file to
+     * @param threads Number of threads to generate the forms with
+     */
+    public void unfoldColumnar(String infile, String lexiconFile, int threads) {
+        try (BufferedReader read = resource(infile)) {
+            unfoldColumnar(read, lexiconFile, threads);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get all possible forms of the words in a file and write them to a {@link ColumnarLexicon} file, see
+     * {@link #unfoldColumnar(String, String, int)}.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param lexiconFile The lexicon file to write
+     * @param threads Number of threads to generate the forms with
+     * @throws IOException If a file cannot be read or written
+     */
+    public void unfoldColumnar(Path infile, Path lexiconFile, int threads) throws IOException {
+        try (BufferedReader read = IOUtils.newReader(infile)) {
+            unfoldColumnar(read, lexiconFile.toString(), threads);
+        }
+    }
+
+    private void unfoldColumnar(BufferedReader read, String lexiconFile, int threads) throws IOException {
+        UnfoldedLexicon lexicon = new UnfoldedLexicon();
+        unfold(read, new HashSet<>(), threads, lexicon::addLines);
+        ColumnarLexicon.write(lexicon, lexiconFile);
+    }
+
+    /**
+     * Get all possible forms of the words in a list and write them to compressed shards in a directory, see
+     * {@link ShardedWriter}. The shards together hold the same lines as the output of
+     * {@link #unfoldVocabulary(String, String)}, and the lines of each shard are in the same order as there.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param outdir The directory to write the shards and their manifest to
+     * @param shards Number of shards
+     * @param threads Number of threads to generate the forms with
+     */
+    public void unfoldSharded(String infile, String outdir, int shards, int threads) {
+        try (BufferedReader read = resource(infile)) {
+            unfoldSharded(read, Paths.get(outdir), shards, threads);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get all possible forms of the words in a file and write them to compressed shards in a directory, see
+     * {@link #unfoldSharded(String, String, int, int)}.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param outdir The directory to write the shards and their manifest to
+     * @param shards Number of shards
+     * @param threads Number of threads to generate the forms with
+     * @throws IOException If the file cannot be read or the shards cannot be written
+     */
+    public void unfoldSharded(Path infile, Path outdir, int shards, int threads) throws IOException {
+        try (BufferedReader read = IOUtils.newReader(infile)) {
+            unfoldSharded(read, outdir, shards, threads);
+        }
+    }
+
+    private void unfoldSharded(BufferedReader read, Path outdir, int shards, int threads) throws IOException {
+        try (ShardedWriter writer = new ShardedWriter(outdir, shards)) {
+            unfold(read, new HashSet<>(), threads, writer::addLines);
+        }
+    }
+
+    /**
+     * Get all possible forms of the words in a list and print them to a file sorted by form, see
+     * {@link SortedWriter}. The lines of all entries with the same form are merged into one line listing all of its
+     * analyses, so the file holds the same analyses as the output of {@link #unfoldVocabulary(String, String)},
+     * without duplicates. Only a bounded number of lines is kept in memory, the rest is sorted in temporary files
+     * next to the output file.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param outfile A list of all possible inflections of the vocabulary, with translations and glosses
+     * @param threads Number of threads to generate the forms with
+     */
+    public void unfoldSorted(String infile, String outfile, int threads) {
+        try (BufferedReader read = resource(infile)) {
+            unfoldSorted(read, Paths.get(outfile), SortedWriter.DEFAULT_MEMORY, threads);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get all possible forms of the words in a file and print them to a file sorted by form, see
+     * {@link #unfoldSorted(String, String, int)}.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param outfile A list of all possible inflections of the vocabulary, with translations and glosses
+     * @param memory Maximum number of characters of output lines to keep in memory
+     * @param threads Number of threads to generate the forms with
+     * @throws IOException If a file cannot be read or written
+     */
+    public void unfoldSorted(Path infile, Path outfile, long memory, int threads) throws IOException {
+        try (BufferedReader read = IOUtils.newReader(infile)) {
+            unfoldSorted(read, outfile, memory, threads);
+        }
+    }
+
+    private void unfoldSorted(BufferedReader read, Path outfile, long memory, int threads) throws IOException {
+        try (SortedWriter writer = new SortedWriter(outfile, memory)) {
+            unfold(read, new HashSet<>(), threads, writer::addLines);
+        }
+    }
+
+    /**
+     * Get all possible forms of the words in a list and print them to a file like
+     * {@link #unfoldVocabulary(String, String, boolean, int)}, regenerating only what changed since the last
+     * incremental run into the same file. Fingerprints of the rules, paradigms and entries are stored next to the
+     * output file; entries whose fields, paradigm and attempted rules did not change are copied from the previous
+     * output, see {@link UnfoldFingerprints}. The output is identical to that of a complete run.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param outfile A list of all possible inflections of the vocabulary, with translations and glosses
+     * @param threads Number of threads to generate the forms with
+     */
+    public void unfoldIncremental(String infile, String outfile, int threads) {
+        try (BufferedReader read = resource(infile)) {
+            unfoldIncremental(read, Paths.get(outfile), threads);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get all possible forms of the words in a file and print them to a file, regenerating only what changed since
+     * the last incremental run, see {@link #unfoldIncremental(String, String, int)}.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param outfile A list of all possible inflections of the vocabulary, with translations and glosses
+     * @param threads Number of threads to generate the forms with
+     * @return The number of entries that were generated instead of copied
+     * @throws IOException If a file cannot be read or written
+     */
+    public int unfoldIncremental(Path infile, Path outfile, int threads) throws IOException {
+        try (BufferedReader read = IOUtils.newReader(infile)) {
+            return unfoldIncremental(read, outfile, threads);
+        }
+    }
+
+    /**
+     * Unfold a dictionary incrementally. The new output and fingerprints are written to temporary files, which
+     * replace the previous ones at the end.
+     * @param read A list with tab-separated lemma, pos and translations in each line
+     * @param outfile The output file
+     * @param threads Number of threads to generate the forms with
+     * @return The number of entries that were generated instead of copied
+     * @throws IOException If the dictionary or previous output cannot be read or the output cannot be written
+     */
+    private int unfoldIncremental(BufferedReader read, Path outfile, int threads) throws IOException {
+        UnfoldFingerprints fingerprints = new UnfoldFingerprints(rules, paradigms, strWithGloss);
+        UnfoldFingerprints previous = UnfoldFingerprints.read(outfile);
+        if (previous != null && !fingerprints.match(previous))
+            previous = null;
+        UnfoldFingerprints last = previous;
+        Path tmp = outfile.resolveSibling(outfile.getFileName() + ".tmp");
+        Path fpFile = UnfoldFingerprints.path(outfile);
+        Path fpTmp = UnfoldFingerprints.path(tmp);
+        int[] generated = {0};
+        long[] size = {0};
+        try (FileChannel old = (previous == null) ? null : FileChannel.open(outfile, StandardOpenOption.READ);
+             PrintWriter writ = IOUtils.newWriter(tmp, false)) {
+            unfold(read::readLine, () -> -1, new HashSet<>(), threads, writ::print, new EntryHook() {
+                @Override
+                public UnfoldTask task(String[] fields) {
+                    UnfoldFingerprints.Entry entry = (last == null) ? null : fingerprints.reuse(fields, last);
+                    UnfoldTask task = new UnfoldTask(fields, (entry == null) ? fingerprints.trace() : null);
+                    task.previous = entry;
+                    return task;
+                }
+
+                @Override
+                public String copy(UnfoldFingerprints.Entry entry) throws IOException {
+                    return UnfoldFingerprints.lines(old, entry);
+                }
+
+                @Override
+                public void written(UnfoldTask task, String lines) {
+                    UnfoldFingerprints.Entry entry = task.previous;
+                    if (entry == null) {
+                        entry = task.trace.toEntry(task.fields);
+                        generated[0]++;
                     }
+                    int length = lines.getBytes(StandardCharsets.UTF_8).length;
+                    fingerprints.add(entry, size[0], length);
+                    size[0] += length;
                 }
-            }
-            catch (IOException e) {
-                e.printStackTrace();
-            }
+            }, null);
+            writ.flush();
+            if (writ.checkError())
+                throw new IOException("Output could not be written: " + tmp);
+        }
+        fingerprints.write(fpTmp, size[0]);
+        // Without fingerprints, a half-replaced output is regenerated completely by the next run
+        Files.deleteIfExists(fpFile);
+        Files.move(tmp, outfile, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(fpTmp, fpFile, StandardCopyOption.REPLACE_EXISTING);
+        return generated[0];
+    }
+
+    /**
+     * Get all possible forms of the words in a file and print them to a file like
+     * {@link #unfoldVocabulary(String, String, boolean, int)}, saving checkpoints from which the run can be resumed
+     * if it is interrupted. After every given number of entries, the output is flushed to disk and a checkpoint is
+     * written next to it with the position in the dictionary and the length of the output, and the inflected forms
+     * added since the previous checkpoint are appended to a log next to it, see {@link UnfoldCheckpoint}. If a
+     * checkpoint exists when the method is called, the output is truncated to the length it records, dropping
+     * anything written after it, and unfolding continues after the last entry it covers, so the output is identical
+     * to that of an uninterrupted run. The checkpoint and its log are deleted when the run is complete.
+     * @param infile A list with tab-separated lemma, pos and translations in each line
+     * @param outfile A list of all possible inflections of the vocabulary, with translations and glosses
+     * @param threads Number of threads to generate the forms with
+     * @param interval Number of entries between checkpoints
+     * @throws IOException If a file cannot be read or written, or the checkpoint does not fit the files
+     */
+    public void unfoldResumable(Path infile, Path outfile, int threads, int interval) throws IOException {
+        if (interval < 1)
+            throw new IllegalArgumentException("Checkpoint interval must be positive: " + interval);
+        UnfoldCheckpoint checkpoint = UnfoldCheckpoint.read(outfile);
+        long inputSize = Files.size(infile);
+        if (checkpoint == null) {
+            checkpoint = new UnfoldCheckpoint();
+            checkpoint.inputSize = inputSize;
+        }
+        else {
+            if (checkpoint.inputSize != inputSize)
+                throw new IOException("Dictionary has changed since the checkpoint: " + infile);
+            if (!Files.exists(outfile) || Files.size(outfile) < checkpoint.outputOffset)
+                throw new IOException("Output is shorter than at the checkpoint: " + outfile);
+            System.err.println("Resuming after " + checkpoint.entries + " entries");
+        }
+        UnfoldCheckpoint progress = checkpoint;
+        try (LineReader read = new LineReader(infile, checkpoint.inputOffset);
+             FileChannel channel = FileChannel.open(outfile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             PrintWriter writ = IOUtils.newWriter(channel.truncate(checkpoint.outputOffset)
+                     .position(checkpoint.outputOffset))) {
+            unfold(read::readLine, read::offset, checkpoint.forms(), threads, writ::print, null, (offset, forms) -> {
+                progress.inputOffset = offset;
+                if (++progress.entries % interval == 0) {
+                    writ.flush();
+                    if (writ.checkError())
+                        throw new IOException("Output could not be written: " + outfile);
+                    // The output has to be on disk before the checkpoint refers to it
+                    channel.force(false);
+                    progress.outputOffset = channel.size();
+                    progress.write(outfile);
+                }
+            });
+            writ.flush();
+            if (writ.checkError())
+                throw new IOException("Output could not be written: " + outfile);
         }
-        try (BufferedReader read = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream(infile), StandardCharsets.UTF_8));
-             PrintWriter writ = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(outfile)), Charset.forName("UTF-8")))) {
-            for (String oldLine : previous)
-                writ.println(oldLine);
-            for (String line = read.readLine(); line != null; line = read.readLine()) {
-                if (!line.isEmpty()) {
+        UnfoldCheckpoint.delete(outfile);
+    }
+
+    /**
+     * Collect the inflected forms of a copied entry, like {@link #unfoldEntry(String[], Set)} does.
+     * @param lines The output lines of the entry
+     * @return The output lines and the inflected forms whose segmented form contains morpheme boundaries
+     */
+    private static UnfoldedEntry copiedEntry(String lines) {
+        List<String> forms = new ArrayList<>();
+        for (String line : lines.split("\\R")) {
+            String[] fields = StringUtils.split(line, '\t');
+            if (fields.length > 1 && (fields[1].contains("|") || fields[1].contains("<>")))
+                forms.add(fields[0]);
+        }
+        return new UnfoldedEntry(lines, forms.toArray(new String[0]));
+    }
+
+    /**
+     * Unfold the entries of a dictionary one after the other.
+     * @param read A list with tab-separated lemma, pos and translations in each line
+     * @param forms The inflected forms of all entries unfolded so far, will be updated by this method
+     * @param threads Number of threads to generate the forms with
+     * @param out Receives the output lines of each entry
+     * @throws IOException If the dictionary cannot be read
+     */
+    private void unfold(BufferedReader read, Set<String> forms, int threads, Consumer<String> out) throws IOException {
+        unfold(read::readLine, () -> -1, forms, threads, out, null, null);
+    }
+
+    /**
+     * Unfold the entries of a dictionary one after the other, reporting the progress after each entry. With several
+     * threads, the entries of a window ahead of the one being written are generated in the background.
+     * @param read Supplies the lines of a list with tab-separated lemma, pos and translations in each line
+     * @param offset Supplies the position in the dictionary after the last line read
+     * @param forms The inflected forms of all entries unfolded so far, will be updated by this method
+     * @param threads Number of threads to generate the forms with
+     * @param out Receives the output lines of each entry
+     * @param hook Creates the task of each entry and is told about its output, null to generate all entries
+     * @param progress Called after each entry has been written or skipped, null if not needed
+     * @throws IOException If the dictionary or reused output cannot be read or the progress cannot be saved
+     */
+    private void unfold(Lines read, LongSupplier offset, Set<String> forms, int threads, Consumer<String> out,
+                        EntryHook hook, Progress progress) throws IOException {
+        ForkJoinPool pool = (threads > 1) ? new ForkJoinPool(threads) : null;
+        int ahead = (pool == null) ? 1 : UNFOLD_WINDOW * threads;
+        try {
+            Deque<UnfoldTask> window = new ArrayDeque<>();
+            for (String line = read.next(); ; line = read.next()) {
+                if (line != null && !line.isEmpty()) {
                     String[] fields = StringUtils.split(line, '\t');
                     if (fields.length == 3) {
-                        if (!forms.contains(fields[0])) {
-                            Set<GlossedWord> infl = getInflections(fields[0], fields[1]);
-                            Map<String, List<GlossedWord>> splits = new HashMap<>();
-                            for (GlossedWord gw : infl) {
-                                if (!splits.containsKey(gw.getForm()))
-                                    splits.put(gw.getForm(), new ArrayList<>());
-                                splits.get(gw.getForm()).add(gw);
-                            }
-                            for (String form : splits.keySet()) {
-                                String phon = SEPARATORS.matcher(form).replaceAll("");
-                                if ((form.contains("|") || form.contains("<>")))
-                                    forms.add(phon);
-                                String prefixes = "";
-                                String suffixes = "";
-                                for (GlossedWord gw : splits.get(form)) {
-                                    String gloss = gw.getGloss();
-                                    int s = gloss.indexOf(fields[0]);
-                                    prefixes += gloss.substring(0, s) + "/";
-                                    suffixes += gloss.substring(s + fields[0].length()) + "/";
-                                }
-                                writ.println(phon + "\t" + form + "\t"
-                                        + prefixes.substring(0, prefixes.length()-1) + "\t" + fields[2] + "\t"
-                                        + suffixes.substring(0, suffixes.length()-1));
-                            }
-//                            for (GlossedWord gw : infl) {
-//                                String form = gw.getForm();
-//                                String phon = SEPARATORS.matcher(form).replaceAll("");
-//                                String gloss = gw.getGloss();
-//                                if ((form.contains("|") || form.contains("<>")))
-//                                    forms.add(phon);
-//                                int s = gloss.indexOf(fields[0]);
-//                                writ.println(phon + "\t" + form + "\t"
-//                                        + gloss.substring(0, s) + "\t" + fields[2] + "\t"
-//                                        + gloss.substring(s + fields[0].length()));
-////                            for (String transl : fields[2].split("/")) {
-////                                writ.println(phon + "\t" + form + "\t" + gloss.replace(fields[0], transl));
-////                            }
-//                            }
-                        }
-                        else
-                            System.err.println("Entry exists as inflected form: " + fields[0]);
+                        UnfoldTask task = (hook == null) ? new UnfoldTask(fields) : hook.task(fields);
+                        task.end = offset.getAsLong();
+                        // Entries known to be skipped or reused do not need to be generated
+                        if (pool != null && task.previous == null && !forms.contains(fields[0]))
+                            pool.execute(task);
+                        window.add(task);
                     }
                 }
+                // Entries are written as soon as the window is full, and all remaining ones at the end
+                while (!window.isEmpty() && (line == null || window.size() >= ahead))
+                    writeEntry(out, forms, window.poll(), pool != null, hook, progress);
+                if (line == null)
+                    break;
             }
         }
-        catch (IOException e) {
-            e.printStackTrace();
+        finally {
+            if (pool != null) {
+                // Tasks still running after a failure must not go on generating once the method has returned
+                pool.shutdownNow();
+                try {
+                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
     }
 
+    /**
+     * Write the inflections of a dictionary entry, unless the entry is an inflected form of a previous entry, and
+     * report the progress.
+     * @param out Receives the output lines
+     * @param forms The inflected forms of all entries written so far, will be updated by this method
+     * @param task The task generating the entry
+     * @param forked Whether the task was started in the background, otherwise it is run now
+     * @param hook Is told about the output of the entry, null if not needed
+     * @param progress Called after the entry has been written or skipped, null if not needed
+     * @throws IOException If reused output cannot be read or the progress cannot be saved
+     */
+    private void writeEntry(Consumer<String> out, Set<String> forms, UnfoldTask task, boolean forked, EntryHook hook,
+                            Progress progress) throws IOException {
+        if (forms.contains(task.fields[0])) {
+            task.cancel(false);
+            System.err.println("Entry exists as inflected form: " + task.fields[0]);
+        }
+        else {
+            UnfoldedEntry entry;
+            if (task.previous != null)
+                entry = copiedEntry(hook.copy(task.previous));
+            else
+                entry = (forked) ? task.join() : task.invoke();
+            out.accept(entry.lines);
+            Collections.addAll(forms, entry.forms);
+            if (hook != null)
+                hook.written(task, entry.lines);
+        }
+        if (progress != null)
+            progress.entryDone(task.end, forms);
+    }
+
+    /**
+     * Supplies the lines of a dictionary.
+     */
+    private interface Lines {
+        /**
+         * @return The next line, null at the end of the dictionary
+         * @throws IOException If the dictionary cannot be read
+         */
+        String next() throws IOException;
+    }
+
+    /**
+     * Decides for each entry of a dictionary whether it is generated or its previous output reused, and is told
+     * about the output written for it.
+     */
+    private interface EntryHook {
+        /**
+         * @param fields Lemma, pos and translations of an entry
+         * @return The task generating the entry, with the fingerprint of its previous output if that is reused
+         */
+        UnfoldTask task(String[] fields);
+
+        /**
+         * @param entry The fingerprint of an entry whose previous output is reused
+         * @return The previous output lines of the entry
+         * @throws IOException If the previous output cannot be read
+         */
+        String copy(UnfoldFingerprints.Entry entry) throws IOException;
+
+        /**
+         * Called after the output of an entry has been written, in dictionary order.
+         * @param task The task of the entry
+         * @param lines The output lines
+         */
+        void written(UnfoldTask task, String lines);
+    }
+
+    /**
+     * Receives the progress of unfolding a dictionary.
+     */
+    private interface Progress {
+        /**
+         * Called after an entry has been written or skipped, in dictionary order.
+         * @param offset Position in the dictionary after the entry
+         * @param forms The inflected forms of all entries written so far
+         * @throws IOException If the progress cannot be saved
+         */
+        void entryDone(long offset, Set<String> forms) throws IOException;
+    }
+
+    /**
+     * Format the inflections of a dictionary entry as output lines, merging analyses of the same form. Forms and
+     * analyses are sorted, so the lines do not depend on the order in which the inflections were generated.
+     * @param fields Lemma, pos and translations of the entry
+     * @param infl The inflections of the lemma
+     * @return The output lines and the inflected forms that entries must not coincide with
+     */
+    private static UnfoldedEntry unfoldEntry(String[] fields, Set<GlossedWord> infl) {
+        Map<String, List<GlossedWord>> splits = new TreeMap<>();
+        for (GlossedWord gw : infl) {
+            if (!splits.containsKey(gw.getForm()))
+                splits.put(gw.getForm(), new ArrayList<>());
+            splits.get(gw.getForm()).add(gw);
+        }
+        StringBuilder lines = new StringBuilder();
+        List<String> forms = new ArrayList<>();
+        for (String form : splits.keySet()) {
+            String phon = SEPARATORS.matcher(form).replaceAll("");
+            if ((form.contains("|") || form.contains("<>")))
+                forms.add(phon);
+            StringBuilder prefixes = new StringBuilder();
+            StringBuilder suffixes = new StringBuilder();
+            List<GlossedWord> analyses = splits.get(form);
+            analyses.sort(Comparator.comparing(GlossedWord::getGloss));
+            for (int a = 0; a < analyses.size(); a++) {
+                String gloss = analyses.get(a).getGloss();
+                int s = gloss.indexOf(fields[0]);
+                if (a > 0) {
+                    prefixes.append('/');
+                    suffixes.append('/');
+                }
+                prefixes.append(gloss, 0, s);
+                suffixes.append(gloss, s + fields[0].length(), gloss.length());
+            }
+            lines.append(phon).append('\t').append(form).append('\t')
+                    .append(prefixes).append('\t').append(fields[2]).append('\t')
+                    .append(suffixes).append(System.lineSeparator());
+        }
+//        for (GlossedWord gw : infl) {
+//            String form = gw.getForm();
+//            String phon = SEPARATORS.matcher(form).replaceAll("");
+//            String gloss = gw.getGloss();
+//            if ((form.contains("|") || form.contains("<>")))
+//                forms.add(phon);
+//            int s = gloss.indexOf(fields[0]);
+//            writ.println(phon + "\t" + form + "\t"
+//                    + gloss.substring(0, s) + "\t" + fields[2] + "\t"
+//                    + gloss.substring(s + fields[0].length()));
+////        for (String transl : fields[2].split("/")) {
+////            writ.println(phon + "\t" + form + "\t" + gloss.replace(fields[0], transl));
+////        }
+//        }
+        return new UnfoldedEntry(lines.toString(), forms.toArray(new String[0]));
+    }
+
+    /**
+     * The output of unfolding a single dictionary entry.
+     */
+    private static class UnfoldedEntry {
+        // The output lines
+        String lines;
+        // The inflected forms containing morpheme boundaries
+        String[] forms;
+
+        UnfoldedEntry(String lines, String[] forms) {
+            this.lines = lines;
+            this.forms = forms;
+        }
+    }
+
+    /**
+     * Task unfolding a single dictionary entry. The templates of the paradigm are generated by subtasks, whose
+     * results are merged into the same set as getInflections would return. Incrementally generated and traced
+     * entries, and entries not generated in the background, are not split up.
+     */
+    private class UnfoldTask extends RecursiveTask<UnfoldedEntry> {
+        private static final long serialVersionUID = 1L;
+
+        // Lemma, pos and translations of the entry
+        private String[] fields;
+        // Records the generation of the entry, null if it is not traced
+        private UnfoldFingerprints.Trace trace;
+        // Fingerprint of the entry if its previous output is reused instead of generating it
+        private UnfoldFingerprints.Entry previous;
+        // Position in the dictionary after the entry
+        private long end;
+
+        UnfoldTask(String[] fields) {
+            this.fields = fields;
+        }
+
+        UnfoldTask(String[] fields, UnfoldFingerprints.Trace trace) {
+            this.fields = fields;
+            this.trace = trace;
+        }
+
+        @Override
+        protected UnfoldedEntry compute() {
+            if (trace != null)
+                return unfoldEntry(fields, trace.generate(fields[0], getParadigm(fields[1]), MorphGen.this::generate));
+            if (incremental != null || !inForkJoinPool())
+                return unfoldEntry(fields, getInflections(fields[0], fields[1]));
+            Paradigm paradigm = getParadigm(fields[1]);
+            // Templates are indexed by int, larger paradigms are streamed instead
+            if (paradigm.size() > Integer.MAX_VALUE) {
+                Set<GlossedWord> infl = new HashSet<>();
+                getInflectionStream(fields[0], fields[1], false).forEach(infl::add);
+                return unfoldEntry(fields, infl);
+            }
+            int size = (int) paradigm.size();
+            List<Set<GlossedWord>> generated = new ArrayList<>(
+                    Collections.nCopies((size + UNFOLD_GRAIN - 1) / UNFOLD_GRAIN, null));
+            new GenerateTask(paradigm, fields[0], generated, 0, size).invoke();
+            Set<GlossedWord> infl = new HashSet<>();
+            for (Set<GlossedWord> gen : generated)
+                if (gen != null)
+                    infl.addAll(gen);
+            return unfoldEntry(fields, infl);
+        }
+    }
+
+    /**
+     * Task generating the forms for a range of templates, splitting it up if it is too large. The templates of a
+     * range that is not split up are generated in a single pass, and the result is stored at the index of the range,
+     * i.e. of its first template divided by the grain.
+     */
+    private class GenerateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private Paradigm paradigm;
+        private String word;
+        private List<Set<GlossedWord>> generated;
+        private int from;
+        private int to;
+
+        GenerateTask(Paradigm paradigm, String word, List<Set<GlossedWord>> generated, int from, int to) {
+            this.paradigm = paradigm;
+            this.word = word;
+            this.generated = generated;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= UNFOLD_GRAIN) {
+                Set<GlossedWord> templates = new HashSet<>();
+                for (int t = from; t < to; t++) {
+                    String template = paradigm.get(word, t);
+                    templates.add(new GlossedWord(template, template));
+                }
+                generated.set(from / UNFOLD_GRAIN, generate(templates));
+            }
+            else {
+                // Ranges start at multiples of the grain, so each result has a slot of its own
+                int mid = from + Math.max(1, (to - from) / UNFOLD_GRAIN / 2) * UNFOLD_GRAIN;
+                invokeAll(new GenerateTask(paradigm, word, generated, from, mid),
+                        new GenerateTask(paradigm, word, generated, mid, to));
+            }
+        }
+    }
+
+
+    /**
+     * Run the examples, or compile a rule set with arguments {@code compile <rule file> <paradigm file> <output>}.
+     * @param args Command line arguments
+     * @throws IOException If a rule set cannot be compiled
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 4 && args[0].equals("compile")) {
+            new MorphGen(args[1], args[2]).write(args[3]);
+            return;
+        }
 
-    public static void main(String[] args) {
         /// FINNISH ///
         Map<String, String[]> finGroups = new HashMap<>();
         MorphRule finGEN = new MorphRule("[*]{gensg=[genstem]n}[*]|GEN", new String[]{"[genstem]|n"}, finGroups);
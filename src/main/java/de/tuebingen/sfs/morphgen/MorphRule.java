@@ -1,19 +1,39 @@
 package de.tuebingen.sfs.morphgen;
 
-import gnu.trove.list.TCharList;
-import gnu.trove.list.array.TCharArrayList;
 import de.tuebingen.sfs.utils.StringUtils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A morphological rule converting a glossed word into the represented form.
  */
 public class MorphRule extends Rule {
+    // Types of states in the binary format
+    private static final byte FINAL = 0;
+    private static final byte LITERAL = 1;
+    private static final byte DISJUNCTION = 2;
+    private static final byte OPTIONAL = 3;
+    private static final byte VARIABLE = 4;
+
     private RuleState matchStart;
+    private int stateCount;
+    // Number of distinct variables, each of which is stored in its own slot
+    private int slotCount;
+    // Whether some alternative of a variable is empty or contains a space, see applyTail
+    private boolean spacedAlternatives;
+    // Flat version of the automaton, null if not compiled
+    private Program program;
     private String[][] produc;
-    private boolean[][] lookup;
+    // Variable slot of each item of the rhs, -1 for literals
+    private int[][] slots;
 
     /**
      * @param lhs Accepted input of the rule
@@ -25,13 +45,16 @@ public class MorphRule extends Rule {
         super(name);
 
         matchStart = parseRule(lhs, 0, 1, groups);
+        Map<String, Integer> slotNames = numberStates();
+        for (RuleState state = matchStart; state != null; state = state.next())
+            state.required = requiredStrings(state);
 
         int pLen = rhs.length;
         produc = new String[pLen][];
-        lookup = new boolean[pLen][];
+        slots = new int[pLen][];
         for (int i = 0; i < pLen; i++) {
             produc[i] = rhs[i].split("(?=\\[)|(?<=\\])");
-            lookup[i] = getLookup(produc[i]);
+            slots[i] = getSlots(produc[i], slotNames);
         }
     }
 
@@ -44,21 +67,153 @@ public class MorphRule extends Rule {
         this(lhs, rhs, groups, "");
     }
 
+    private MorphRule(String name) {
+        super(name);
+    }
+
+    /**
+     * Number the states of the automaton and assign a slot to each variable.
+     * @return The slot of each variable
+     */
+    private Map<String, Integer> numberStates() {
+        Map<String, Integer> slotNames = new HashMap<>();
+        for (RuleState state = matchStart; state != null; state = state.next()) {
+            state.id = stateCount++;
+            if (state instanceof DisjunctiveState) {
+                DisjunctiveState dis = (DisjunctiveState) state;
+                dis.slot = slotNames.computeIfAbsent(dis.varName, v -> slotNames.size());
+                for (String alt : dis.transitions)
+                    if (alt.isEmpty() || alt.indexOf(' ') >= 0)
+                        spacedAlternatives = true;
+            }
+            else if (state instanceof VariableState) {
+                VariableState var = (VariableState) state;
+                var.slot = slotNames.computeIfAbsent(var.varName, v -> slotNames.size());
+            }
+        }
+        slotCount = slotNames.size();
+        return slotNames;
+    }
+
     /**
-     * Create the lookup array for a split rhs.
+     * Write the parsed rule, i.e. its automaton, the strings required from each state and its split rhs, in the
+     * format read by {@link #read(DataInputStream)}.
+     * @param out The stream to write to
+     * @throws IOException If the rule cannot be written
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeUTF(name);
+        out.writeInt(stateCount);
+        for (RuleState state = matchStart; state != null; state = state.next()) {
+            if (state instanceof LiteralState) {
+                out.writeByte(LITERAL);
+                out.writeChar(((LiteralState) state).transition);
+            }
+            else if (state instanceof DisjunctiveState) {
+                DisjunctiveState dis = (DisjunctiveState) state;
+                out.writeByte((state instanceof OptionalDisjunctiveState) ? OPTIONAL : DISJUNCTION);
+                MorphGen.writeStrings(out, dis.transitions);
+                out.writeUTF(dis.varName);
+            }
+            else if (state instanceof VariableState) {
+                out.writeByte(VARIABLE);
+                out.writeUTF(((VariableState) state).varName);
+            }
+            else
+                out.writeByte(FINAL);
+            out.writeInt(state.required.length);
+            for (String[] alternatives : state.required)
+                MorphGen.writeStrings(out, alternatives);
+        }
+        out.writeInt(produc.length);
+        for (int i = 0; i < produc.length; i++) {
+            MorphGen.writeStrings(out, produc[i]);
+            for (int slot : slots[i])
+                out.writeInt(slot);
+        }
+    }
+
+    /**
+     * Read a rule written by {@link #write(DataOutputStream)}, without parsing it again.
+     * @param in The stream to read from
+     * @return The rule
+     * @throws IOException If the rule cannot be read
+     */
+    static MorphRule read(DataInputStream in) throws IOException {
+        MorphRule rule = new MorphRule(in.readUTF());
+        int n = in.readInt();
+        byte[] kinds = new byte[n];
+        Object[] args = new Object[n];
+        String[][][] required = new String[n][][];
+        for (int i = 0; i < n; i++) {
+            kinds[i] = in.readByte();
+            if (kinds[i] == LITERAL)
+                args[i] = in.readChar();
+            else if (kinds[i] == DISJUNCTION || kinds[i] == OPTIONAL)
+                args[i] = new Object[]{MorphGen.readStrings(in), in.readUTF()};
+            else if (kinds[i] == VARIABLE)
+                args[i] = in.readUTF();
+            required[i] = new String[in.readInt()][];
+            for (int r = 0; r < required[i].length; r++)
+                required[i][r] = MorphGen.readStrings(in);
+        }
+        // States are linked to their successors, so they are created from the last one on
+        RuleState state = null;
+        for (int i = n - 1; i >= 0; i--) {
+            if (kinds[i] == LITERAL)
+                state = rule.new LiteralState((Character) args[i], state);
+            else if (kinds[i] == DISJUNCTION || kinds[i] == OPTIONAL) {
+                Object[] dis = (Object[]) args[i];
+                state = (kinds[i] == OPTIONAL)
+                        ? rule.new OptionalDisjunctiveState((String[]) dis[0], state, (String) dis[1])
+                        : rule.new DisjunctiveState((String[]) dis[0], state, (String) dis[1]);
+            }
+            else if (kinds[i] == VARIABLE)
+                state = rule.new VariableState(state, (String) args[i]);
+            else if (kinds[i] == FINAL)
+                state = rule.new FinalState();
+            else
+                throw new IOException(rule.name + ": Unknown state type " + kinds[i]);
+            state.required = required[i];
+        }
+        rule.matchStart = state;
+        rule.numberStates();
+        int pLen = in.readInt();
+        rule.produc = new String[pLen][];
+        rule.slots = new int[pLen][];
+        for (int i = 0; i < pLen; i++) {
+            rule.produc[i] = MorphGen.readStrings(in);
+            rule.slots[i] = new int[rule.produc[i].length];
+            for (int j = 0; j < rule.slots[i].length; j++)
+                rule.slots[i][j] = in.readInt();
+        }
+        return rule;
+    }
+
+    /**
+     * Create the slot array for a split rhs. Variables that do not occur in the lhs are reported and dropped.
      * @param produc The rhs, split into sequences of literals and variables
-     * @return A boolean array, containing true if the correspoding item in the produc array is a variable, else false
+     * @param slotNames The slot of each variable of the lhs
+     * @return An int array, containing the slot of the corresponding item in the produc array if it is a variable,
+     *         else -1
      */
-    private boolean[] getLookup(String[] produc) {
-        boolean[] lookup = new boolean[produc.length];
+    private int[] getSlots(String[] produc, Map<String, Integer> slotNames) {
+        int[] slots = new int[produc.length];
         for (int i = 0; i < produc.length; i++) {
             String pi = produc[i];
+            slots[i] = -1;
             if (pi.charAt(0) == '[') {
                 produc[i] = pi.substring(1, pi.length() - 1);
-                lookup[i] = true;
+                Integer slot = slotNames.get(produc[i]);
+                if (slot == null) {
+                    System.err.println(name + ": Couldn't find variable " + produc[i]);
+                    produc[i] = "";
+                }
+                else
+                    slots[i] = slot;
             }
         }
-        return lookup;
+        return slots;
     }
 
     /**
@@ -131,41 +286,102 @@ public class MorphRule extends Rule {
      */
     @Override
     public MorphRuleResult apply(String orig, String s) {
-        System.err.println(name + " " + s);
-        Map<String, String> vars = new HashMap<>();
-        TCharList seps = new TCharArrayList();
-        if (matchStart.match(s, 0, vars, seps)) {
-            String[] res = new String[produc.length];
-            for (int i = 0; i < produc.length; i++) {
-                StringBuilder r = new StringBuilder();
-                for (int j = 0; j < produc[i].length; j++) {
-                    if (lookup[i][j]) {
-                        String var = vars.get(produc[i][j]);
-                        if (var == null)
-                            System.err.println(name + ": Couldn't find variable " + produc[i][j]);
-                        else
-                            r.append(var);
-                    }
-                    else
-                        r.append(produc[i][j]);
-                }
-                res[i] = r.toString();
-            }
-            return new MorphRuleResult(fillSeps(orig, seps), s, res);
+        return apply(orig, s, MatchContext.forThread());
+    }
+
+    @Override
+    MorphRuleResult apply(String orig, String s, MatchContext ctx) {
+        boolean matched;
+        if (program != null) {
+            ctx.reset(program.ops.length, s.length(), slotCount);
+            matched = program.match(0, s, 0, ctx);
+        }
+        else {
+            ctx.reset(stateCount, s.length(), slotCount);
+            matched = matchStart.match(s, 0, ctx);
         }
+        if (matched)
+            return result(orig, s, ctx);
         return null;
     }
 
-    private String fillSeps(String word, TCharList seps) {
-        StringBuilder filled = new StringBuilder();
+    /**
+     * Apply the rule to an input whose last character stands for an unknown rest, see
+     * {@link Rule#applyTail(String, String, MatchContext)}. The rest is assumed to be either empty or to start with a
+     * space and not to end in separators. The match on the shortened input is tracked for states visited at or after
+     * the stand-in, which are only safe if they fail (or succeed) no matter what rest replaces the stand-in: literals
+     * and alternatives that cannot match a space there, variables reaching the end of the input and the final
+     * state after such variables. Other states are still safe if the rest (as described by the context) cannot
+     * contain the literals they would have to match. Alternatives that are empty or contain spaces could match
+     * across the stand-in and are never considered safe.
+     */
+    @Override
+    MorphRuleResult applyTail(String orig, String s, MatchContext ctx) {
+        ctx.dependent = spacedAlternatives;
+        if (ctx.dependent)
+            return null;
+        ctx.reset(stateCount, s.length(), slotCount);
+        ctx.tail = s.length() - 1;
+        boolean matched;
+        try {
+            matched = matchStart.match(s, 0, ctx);
+        }
+        finally {
+            ctx.tail = Integer.MAX_VALUE;
+        }
+        if (ctx.dependent || !matched)
+            return null;
+        MorphRuleResult res = result(orig, s, ctx);
+        // Separators inserted into spaces of the rest
+        if (fillsTail(orig, ctx))
+            ctx.dependent = true;
+        // Rest moved, duplicated or deleted
+        char tail = s.charAt(s.length() - 1);
+        for (String out : res.getResults())
+            if (out.indexOf(tail) != out.length() - 1)
+                ctx.dependent = true;
+        return (ctx.dependent) ? null : res;
+    }
+
+    /**
+     * Assemble the outputs of the rule from the captures of a successful match.
+     * @param orig Original input (gloss)
+     * @param s Input string
+     * @param ctx The match context
+     * @return The result of the rule
+     */
+    private MorphRuleResult result(String orig, String s, MatchContext ctx) {
+        String[] res = new String[produc.length];
+        StringBuilder r = ctx.buffer;
+        for (int i = 0; i < produc.length; i++) {
+            r.setLength(0);
+            for (int j = 0; j < produc[i].length; j++) {
+                int slot = slots[i][j];
+                if (slot >= 0)
+                    r.append(s, ctx.starts[slot], ctx.ends[slot]);
+                else
+                    r.append(produc[i][j]);
+            }
+            res[i] = r.toString();
+        }
+        return new MorphRuleResult(fillSeps(orig, ctx), s, res);
+    }
+
+    private String fillSeps(String word, MatchContext ctx) {
+        if (ctx.sepCount == 0)
+            return word;
+        StringBuilder filled = ctx.buffer;
+        filled.setLength(0);
         int i = 0;
-        for (int s = 0; s < seps.size(); s++) {
+        // Separators are stored in reverse order
+        for (int s = ctx.sepCount - 1; s >= 0; s--) {
+            char sep = ctx.seps[s];
             int j = word.indexOf(' ', i);
             if (j >= 0) {
-                filled.append(word, i, j).append(seps.get(s));
-                if (seps.get(s) == '<') {
+                filled.append(word, i, j).append(sep);
+                if (sep == '<') {
                     filled.append('>');
-                    s++;
+                    s--;
                 }
                 i = j + 1;
             }
@@ -173,6 +389,166 @@ public class MorphRule extends Rule {
         return filled.append(word, i, word.length()).toString();
     }
 
+    /**
+     * @param word The original input
+     * @param ctx The match context
+     * @return True if fillSeps runs out of spaces in the input
+     */
+    private static boolean fillsTail(String word, MatchContext ctx) {
+        int i = 0;
+        for (int s = ctx.sepCount - 1; s >= 0; s--) {
+            int j = word.indexOf(' ', i);
+            if (j < 0)
+                return true;
+            if (ctx.seps[s] == '<')
+                s--;
+            i = j + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Switch between matching with the automaton of linked states and a compiled, flat version of it. The compiled
+     * version merges runs of literals into single instructions that are matched by a loop and is executed by a single
+     * method without virtual dispatch between states.
+     * @param compiled True to match with the compiled version, false to use the automaton
+     * @return True if the rule now uses the compiled version, false if it uses the automaton (either because it was
+     *         asked to or because the automaton contains states that cannot be compiled)
+     */
+    public boolean setCompiled(boolean compiled) {
+        if (!compiled)
+            program = null;
+        else if (program == null)
+            program = compile();
+        return program != null;
+    }
+
+    /**
+     * @return True if the rule currently matches with its compiled version
+     */
+    public boolean isCompiled() {
+        return program != null;
+    }
+
+    /**
+     * Translate the automaton into a flat program.
+     * @return The program, null if the automaton contains states that cannot be compiled
+     */
+    private Program compile() {
+        List<Integer> ops = new ArrayList<>();
+        List<Object> args = new ArrayList<>();
+        List<Integer> varSlots = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        for (RuleState state = matchStart; state != null; state = state.next()) {
+            if (state instanceof LiteralState && !isSeparator(((LiteralState) state).transition)) {
+                run.append(((LiteralState) state).transition);
+                continue;
+            }
+            if (run.length() > 0) {
+                ops.add(Program.RUN);
+                args.add(run.toString());
+                varSlots.add(-1);
+                run.setLength(0);
+            }
+            if (state instanceof FinalState) {
+                ops.add(Program.FINAL);
+                args.add(null);
+                varSlots.add(-1);
+            }
+            else if (state instanceof LiteralState) {
+                ops.add(Program.SEPARATOR);
+                args.add(((LiteralState) state).transition);
+                varSlots.add(-1);
+            }
+            else if (state instanceof DisjunctiveState) {
+                DisjunctiveState dis = (DisjunctiveState) state;
+                ops.add((state instanceof OptionalDisjunctiveState) ? Program.OPTIONAL : Program.DISJUNCTION);
+                args.add(dis.transitions);
+                varSlots.add(dis.slot);
+            }
+            else if (state instanceof VariableState) {
+                ops.add(Program.VARIABLE);
+                args.add(null);
+                varSlots.add(((VariableState) state).slot);
+            }
+            else
+                return null;
+        }
+
+        Program prog = new Program(ops.size());
+        for (int pc = 0; pc < ops.size(); pc++) {
+            int op = ops.get(pc);
+            prog.ops[pc] = op;
+            prog.slots[pc] = varSlots.get(pc);
+            if (op == Program.RUN)
+                prog.runs[pc] = (String) args.get(pc);
+            else if (op == Program.SEPARATOR)
+                prog.seps[pc] = (Character) args.get(pc);
+            else if (op == Program.DISJUNCTION || op == Program.OPTIONAL)
+                prog.alts[pc] = (String[]) args.get(pc);
+        }
+        return prog;
+    }
+
+    /**
+     * Collect the maximal runs of consecutive non-separator literals in the lhs. Since literal states skip
+     * separators in the input, each run must occur in the input once its separators are removed.
+     * @return The required literals
+     */
+    @Override
+    String[] requiredLiterals() {
+        Set<String> literals = new LinkedHashSet<>();
+        StringBuilder run = new StringBuilder();
+        for (RuleState state = matchStart; state != null; state = state.next()) {
+            if (state instanceof LiteralState && !isSeparator(((LiteralState) state).transition))
+                run.append(((LiteralState) state).transition);
+            else if (run.length() > 0) {
+                literals.add(run.toString());
+                run.setLength(0);
+            }
+        }
+        return literals.toArray(new String[0]);
+    }
+
+    /**
+     * Collect the strings (without separators) that every match from a state on must contain: runs of literals,
+     * and one of the alternatives of each disjunction that is not optional.
+     * @param from The first state
+     * @return Alternatives of strings, one of each of which is required
+     */
+    private static String[][] requiredStrings(RuleState from) {
+        List<String[]> required = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        for (RuleState state = from; state != null; state = state.next()) {
+            char c = (state instanceof LiteralState) ? ((LiteralState) state).transition : ' ';
+            if (c != ' ' && !isSeparator(c))
+                run.append(c);
+            else if (run.length() > 0) {
+                required.add(new String[]{run.toString()});
+                run.setLength(0);
+            }
+            if (state.getClass() == DisjunctiveState.class) {
+                String[] alternatives = ((DisjunctiveState) state).transitions.clone();
+                boolean nonEmpty = true;
+                for (int a = 0; a < alternatives.length; a++) {
+                    alternatives[a] = removeSeparators(alternatives[a]);
+                    nonEmpty &= !alternatives[a].isEmpty();
+                }
+                if (nonEmpty)
+                    required.add(alternatives);
+            }
+        }
+        return required.toArray(new String[0][]);
+    }
+
+    private static String removeSeparators(String s) {
+        StringBuilder removed = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++)
+            if (!isSeparator(s.charAt(i)))
+                removed.append(s.charAt(i));
+        return removed.toString();
+    }
+
     /**
      * @param c A character
      * @return True if c is a morphological separator
@@ -183,37 +559,91 @@ public class MorphRule extends Rule {
 
 
     /**
-     * Interface for a state in a morphological rule automaton.
+     * A state in a morphological rule automaton. Whether a state accepts the input from a given position depends
+     * on nothing but that position, so failures are memoized per match and every (state, position) pair is
+     * explored at most once, which keeps matching polynomial in the length of the input.
      */
-    private interface RuleState {
+    private abstract class RuleState {
+        // Position of the state in the automaton
+        int id;
+        // Strings that every match from this state on contains (one of each group of alternatives)
+        String[][] required;
+
         /**
          * Determine whether the string at its current position is accepted by this state and create ad-hoc variables.
          * @param s Input string
          * @param i Current index in string
-         * @param vars Accumulator for values of variables declared by rule (that have to be extracted from the input
-         *             string), will be inserted by this method.
+         * @param ctx Accumulator for values of variables declared by rule (that have to be extracted from the input
+         *            string) and matched separators, will be inserted by this method.
          * @return True if string is matched, false if not
          */
-        boolean match(String s, int i, Map<String, String> vars, TCharList seps);
+        boolean match(String s, int i, MatchContext ctx) {
+            ctx.steps++;
+            if (ctx.hasFailed(id, i))
+                return false;
+            if (i >= ctx.tail && !tailSafe(i, ctx.tail)) {
+                // Also fails on the complete input if the rest cannot contain the literals still to be matched
+                if (!ctx.restLacksAny(required))
+                    ctx.dependent = true;
+                ctx.setFailed(id, i);
+                return false;
+            }
+            if (accept(s, i, ctx))
+                return true;
+            ctx.setFailed(id, i);
+            return false;
+        }
+
+        /**
+         * Actually try to match the string at its current position, without consulting the memo.
+         * @param s Input string
+         * @param i Current index in string
+         * @param ctx The match context
+         * @return True if string is matched, false if not
+         */
+        abstract boolean accept(String s, int i, MatchContext ctx);
+
+        /**
+         * @param i Current index in string, at or after the stand-in for the rest of the input
+         * @param tail Index of the stand-in
+         * @return True if visiting this state gives the same result as it would on the complete input
+         */
+        abstract boolean tailSafe(int i, int tail);
+
+        /**
+         * @return The state following this one, null for the final state
+         */
+        abstract RuleState next();
     }
 
     /**
      * Final (accepting) state of a morphological rule automaton.
      */
-    private class FinalState implements RuleState {
+    private class FinalState extends RuleState {
 
         FinalState() {}
 
         @Override
-        public boolean match(String s, int i, Map<String, String> vars, TCharList seps) {
-            return s.length() <= i || (isSeparator(s.charAt(i)) && this.match(s, i+1, vars, seps));
+        boolean accept(String s, int i, MatchContext ctx) {
+            return s.length() <= i || (isSeparator(s.charAt(i)) && this.match(s, i+1, ctx));
+        }
+
+        @Override
+        boolean tailSafe(int i, int tail) {
+            // Only reached after the stand-in if a variable swallowed it
+            return i > tail;
+        }
+
+        @Override
+        RuleState next() {
+            return null;
         }
     }
 
     /**
      * State accepting a single literal character (ignoring intervening separators).
      */
-    private class LiteralState implements RuleState {
+    private class LiteralState extends RuleState {
         char transition;
         private RuleState toState;
 
@@ -223,26 +653,37 @@ public class MorphRule extends Rule {
         }
 
         @Override
-        public boolean match(String s, int i, Map<String, String> vars, TCharList seps) {
+        boolean accept(String s, int i, MatchContext ctx) {
             if (s.length() <= i)
                 return false;
             char c = s.charAt(i);
-            if (c == ' ' && isSeparator(transition) && toState.match(s, (transition == '<') ? i : i+1, vars, seps)) {
-                seps.insert(0, transition);
+            if (c == ' ' && isSeparator(transition) && toState.match(s, (transition == '<') ? i : i+1, ctx)) {
+                ctx.addSeparator(transition);
                 return true;
             }
-            return (c == transition && toState.match(s, i+1, vars, seps)
-                    || isSeparator(c) && this.match(s, i+1, vars, seps));
+            return (c == transition && toState.match(s, i+1, ctx)
+                    || isSeparator(c) && this.match(s, i+1, ctx));
+        }
+
+        @Override
+        boolean tailSafe(int i, int tail) {
+            return i == tail && transition != ' ' && !isSeparator(transition);
+        }
+
+        @Override
+        RuleState next() {
+            return toState;
         }
     }
 
     /**
      * State accepting one of multiple literal strings, storing the matching one in a variable.
      */
-    private class DisjunctiveState implements RuleState {
+    private class DisjunctiveState extends RuleState {
         private String[] transitions;
         private RuleState toState;
         private String varName;
+        private int slot;
 
         DisjunctiveState(String[] transitions, RuleState toState, String varName) {
             this.transitions = transitions;
@@ -251,17 +692,27 @@ public class MorphRule extends Rule {
         }
 
         @Override
-        public boolean match(String s, int i, Map<String, String> vars, TCharList seps) {
+        boolean accept(String s, int i, MatchContext ctx) {
             if (s.length() <= i)
                 return false;
             char c = s.charAt(i);
             for (String sub : transitions) {
-                if (s.startsWith(sub, i) && toState.match(s, i + sub.length(), vars, seps)) {
-                    vars.put(varName, sub);
+                if (s.startsWith(sub, i) && toState.match(s, i + sub.length(), ctx)) {
+                    ctx.capture(slot, i, i + sub.length());
                     return true;
                 }
             }
-            return isSeparator(c) && this.match(s, i+1, vars, seps);
+            return isSeparator(c) && this.match(s, i+1, ctx);
+        }
+
+        @Override
+        boolean tailSafe(int i, int tail) {
+            return i == tail;
+        }
+
+        @Override
+        RuleState next() {
+            return toState;
         }
     }
 
@@ -276,11 +727,11 @@ public class MorphRule extends Rule {
         }
 
         @Override
-        public boolean match(String s, int i, Map<String, String> vars, TCharList seps) {
-            if (super.match(s, i, vars, seps))
+        boolean accept(String s, int i, MatchContext ctx) {
+            if (super.accept(s, i, ctx))
                 return true;
-            if (super.toState.match(s, i, vars, seps)) {
-                vars.put(super.varName, "");
+            if (super.toState.match(s, i, ctx)) {
+                ctx.capture(super.slot, i, i);
                 return true;
             }
             return false;
@@ -291,9 +742,10 @@ public class MorphRule extends Rule {
      * State accepting any number of arbitrary characters (or none) until the next state matches, storing the
      * accepted string in a variable.
      */
-    private class VariableState implements RuleState {
+    private class VariableState extends RuleState {
         private RuleState toState;
         private String varName;
+        private int slot;
 
         VariableState(RuleState toState, String varName) {
             this.toState = toState;
@@ -301,23 +753,158 @@ public class MorphRule extends Rule {
         }
 
         @Override
-        public boolean match(String s, int i, Map<String, String> vars, TCharList seps) {
+        boolean accept(String s, int i, MatchContext ctx) {
             if (s.length() <= i) {
-                if (toState.match(s, i, vars, seps)) {
-                    vars.put(varName, "");
+                if (toState.match(s, i, ctx)) {
+                    ctx.capture(slot, i, i);
                     return true;
                 }
                 else
                     return false;
             }
             for (int j = i; j <= s.length(); j++) {
-                if (toState.match(s, j, vars, seps)) {
-                    vars.put(varName, s.substring(i, j));
+                // The final state would fail on the stand-in, but could succeed on an empty rest instead, which
+                // gives the same capture
+                if (j == ctx.tail && toState instanceof FinalState)
+                    continue;
+                if (toState.match(s, j, ctx)) {
+                    ctx.capture(slot, i, j);
                     return true;
                 }
             }
             return false;
         }
+
+        @Override
+        boolean tailSafe(int i, int tail) {
+            return i == tail;
+        }
+
+        @Override
+        RuleState next() {
+            return toState;
+        }
     }
 
+    /**
+     * A compiled rule automaton: a sequence of instructions, one per state, except that runs of consecutive literals
+     * are merged into a single instruction. Since literal states never branch on non-separator characters, such a
+     * run is matched deterministically by a loop. Matching behaves exactly like the automaton, including the order in
+     * which alternatives are tried and the memoization of failures (with instruction indices as state ids).
+     */
+    private static class Program {
+        static final int FINAL = 0;
+        static final int RUN = 1;
+        static final int SEPARATOR = 2;
+        static final int DISJUNCTION = 3;
+        static final int OPTIONAL = 4;
+        static final int VARIABLE = 5;
+
+        // Instruction type per state
+        int[] ops;
+        // Literals of RUN instructions
+        String[] runs;
+        // Separator of SEPARATOR instructions
+        char[] seps;
+        // Alternatives of DISJUNCTION and OPTIONAL instructions
+        String[][] alts;
+        // Variable slot of DISJUNCTION, OPTIONAL and VARIABLE instructions
+        int[] slots;
+
+        Program(int size) {
+            ops = new int[size];
+            runs = new String[size];
+            seps = new char[size];
+            alts = new String[size][];
+            slots = new int[size];
+        }
+
+        /**
+         * Determine whether the string is accepted from a position on, starting with the given instruction.
+         * @param pc Index of the instruction
+         * @param s Input string
+         * @param i Current index in string
+         * @param ctx The match context
+         * @return True if string is matched, false if not
+         */
+        boolean match(int pc, String s, int i, MatchContext ctx) {
+            ctx.steps++;
+            if (ctx.hasFailed(pc, i))
+                return false;
+            if (execute(pc, s, i, ctx))
+                return true;
+            ctx.setFailed(pc, i);
+            return false;
+        }
+
+        private boolean execute(int pc, String s, int i, MatchContext ctx) {
+            int n = s.length();
+            switch (ops[pc]) {
+                case FINAL:
+                    while (i < n && isSeparator(s.charAt(i)))
+                        i++;
+                    return i >= n;
+
+                case RUN: {
+                    String run = runs[pc];
+                    for (int k = 0; k < run.length(); k++) {
+                        char t = run.charAt(k);
+                        while (i < n && s.charAt(i) != t && isSeparator(s.charAt(i)))
+                            i++;
+                        if (i >= n || s.charAt(i) != t)
+                            return false;
+                        i++;
+                    }
+                    return match(pc + 1, s, i, ctx);
+                }
+
+                case SEPARATOR: {
+                    char t = seps[pc];
+                    for (; i < n; i++) {
+                        char c = s.charAt(i);
+                        if (c == ' ' && match(pc + 1, s, (t == '<') ? i : i+1, ctx)) {
+                            ctx.addSeparator(t);
+                            return true;
+                        }
+                        if (c == t && match(pc + 1, s, i+1, ctx))
+                            return true;
+                        if (!isSeparator(c))
+                            return false;
+                    }
+                    return false;
+                }
+
+                case DISJUNCTION:
+                case OPTIONAL: {
+                    if (i < n) {
+                        for (String sub : alts[pc]) {
+                            if (s.startsWith(sub, i) && match(pc + 1, s, i + sub.length(), ctx)) {
+                                ctx.capture(slots[pc], i, i + sub.length());
+                                return true;
+                            }
+                        }
+                        if (isSeparator(s.charAt(i)) && match(pc, s, i+1, ctx))
+                            return true;
+                    }
+                    if (ops[pc] == OPTIONAL && match(pc + 1, s, i, ctx)) {
+                        ctx.capture(slots[pc], i, i);
+                        return true;
+                    }
+                    return false;
+                }
+
+                case VARIABLE:
+                    for (int j = i; j <= n; j++) {
+                        if (match(pc + 1, s, j, ctx)) {
+                            ctx.capture(slots[pc], i, j);
+                            return true;
+                        }
+                    }
+                    return false;
+
+                default:
+                    return false;
+            }
+        }
+    }
 }
@@ -1,221 +1,566 @@
-//package morphgen;
-//
-//import java.io.*;
-//import java.util.ArrayList;
-//import java.util.HashSet;
-//import java.util.List;
-//import java.util.Set;
-//
-//public class ParadigmAutomaton {
-//
-//    private ParadigmState start;
-//    private ParadigmState end;
-//
-//    public ParadigmAutomaton(String paradigmFile) {
-//        start = new ParadigmState();
-//        end = new ParadigmState();
-//        try (BufferedReader read = new BufferedReader(new InputStreamReader(new FileInputStream(new File(paradigmFile)), "UTF-8"))) {
-//            for (String line = read.readLine(); line != null; line = read.readLine()) {
-//                if (!line.isEmpty()) {
-//                    parseParadigm(line, start, end, true);
-//                }
-//            }
-//        }
-//        catch (IOException e) {
-//            e.printStackTrace();
-//        }
-//    }
-//
-//    private void parseParadigm(String regex, ParadigmState start, ParadigmState end, boolean prefix) {
-//        if (!regex.isEmpty()) {
-//            if (regex.startsWith("[")) {
-//                if (!prefix) {
-//                    System.err.println("More than one POS declaration in " + regex);
-//                }
-//                else {
-//                    int x = regex.indexOf(']');
-//                    if (x < 0) {
-//                        System.err.println("No closing bracket ] in " + regex);
-//                    }
-//                    else {
-//                        String rest = regex.substring(x + 1).trim();
-//                        ParadigmState mid = (rest.isEmpty()) ? end : new ParadigmState();
-//                        start.addTransition(new RootTransition(mid, regex.substring(1, x)));
-//                        parseParadigm(rest, mid, end, false);
-//                    }
-//                }
-//            }
-//            else if (regex.startsWith("(")) {
-//                int x = findClosingBracket(regex, 1);
-//                if (x < 0) {
-//                    System.err.println("No closing bracket ) in " + regex);
-//                }
-//                else {
-//                    List<String> items = splitLowLevel(regex.substring(1, x), " || ");
-//                    String rest = regex.substring(x + 1).trim();
-//                    ParadigmState mid = (rest.isEmpty()) ? end : new ParadigmState();
-//                    for (String item : items)
-//                        parseParadigm(item, start, mid, prefix);
-//                    parseParadigm(rest, mid, end, prefix);
-//                }
-//            }
-//            else {
-//                int x = regex.indexOf(' ');
-//                String cur = regex;
-//                String rest = "";
-//                if (x >= 0) {
-//                    cur = regex.substring(0, x);
-//                    rest = regex.substring(x + 1);
-//                }
-//                ParadigmState mid = (rest.isEmpty()) ? end : new ParadigmState();
-//                start.addTransition(new EpsilonTransition(mid));
-//                ParadigmState prev = start;
-//                String[] curs = cur.split("_");
-//                for (int i = 0; i < curs.length-1; i++) {
-//                    ParadigmState next = new ParadigmState();
-//                    prev.addTransition(new AffixTransition(next, curs[i], prefix));
-//                    prev = next;
-//                }
-//                prev.addTransition(new AffixTransition(mid, curs[curs.length-1], prefix));
-//                parseParadigm(rest, mid, end, prefix);
-//            }
-//        }
-//    }
-//
-//    /**
-//     * Find the closing bracket for the previously parsed opening bracket.
-//     * @param s The affix expression
-//     * @param start The start index (must be after opening bracket in question and before next opening/closing bracket)
-//     * @return Index of the closing bracket
-//     */
-//    private int findClosingBracket(String s, int start) {
-//        int level = 0;
-//        for (int c = start; c < s.length(); c++) {
-//            if (s.charAt(c) == '(')
-//                level++;
-//            else if (s.charAt(c) == ')') {
-//                if (level == 0)
-//                    return c;
-//                else
-//                    level--;
-//            }
-//        }
-//        return -1;
-//    }
-//
-//    /**
-//     * Split affix expression at a separator, but only on the lowest level, i.e. excluding separators occurring within
-//     * brackets.
-//     * @param s Affix expression
-//     * @param sep Separator to split on
-//     * @return Split affix expression
-//     */
-//    private List<String> splitLowLevel(String s, String sep) {
-//        List<String> splits = new ArrayList<>();
-//        int level = 0;
-//        int prev = 0;
-//        for (int c = 0; c < s.length(); c++) {
-//            if (s.charAt(c) == '(')
-//                level++;
-//            else if (s.charAt(c) == ')')
-//                level--;
-//            else if (s.startsWith(sep, c) && level == 0) {
-//                splits.add(s.substring(prev, c));
-//                prev = c + 4;
-//                c += 3;
-//            }
-//        }
-//        splits.add(s.substring(prev));
-//        return splits;
-//    }
-//
-//    public void add(String word, String pos) {
-//        if (!start.add(word, pos))
-//            System.err.println("Unknown POS: " + pos);
-//    }
-//
-//    public MorphAutomaton makeDictionary(List<MorphRule> rules) {
-//        return null;
-//    }
-//
-//
-//    private class ParadigmState {
-//
-//        List<ParadigmTransition> transitions;
-//
-//        public ParadigmState() {
-//            transitions = new ArrayList<>();
-//        }
-//
-//        public void addTransition(ParadigmTransition t) {
-//            transitions.add(t);
-//        }
-//
-//        public boolean add(String word, String pos) {
-//            for (ParadigmTransition trans : transitions) {
-//                if (trans.add(word, pos))
-//                    return true;
-//            }
-//            return false;
-//        }
-//    }
-//
-//    private interface ParadigmTransition {
-//
-//        boolean add(String word, String pos);
-//
-//    }
-//
-//    private class EpsilonTransition implements ParadigmTransition {
-//
-//        private ParadigmState to;
-//
-//        public EpsilonTransition(ParadigmState to) {
-//            this.to = to;
-//        }
-//
-//        public boolean add(String word, String pos) {
-//            return to.add(word, pos);
-//        }
-//    }
-//
-//    private class RootTransition implements ParadigmTransition {
-//
-//        private ParadigmState to;
-//        private String pos;
-//        private Set<String> words;
-//
-//        public RootTransition(ParadigmState to, String pos) {
-//            this.to = to;
-//            this.pos = pos;
-//            this.words = new HashSet<>();
-//        }
-//
-//        public boolean add(String word, String pos) {
-//            if (pos.equals(this.pos)) {
-//                words.add(word);
-//                return true;
-//            }
-//            return false;
-//        }
-//    }
-//
-//    private class AffixTransition implements ParadigmTransition {
-//
-//        private ParadigmState to;
-//        private String affix;
-//        private String sep;
-//        private boolean prefix;
-//
-//        public AffixTransition(ParadigmState to, String affix, boolean prefix) {
-//            this.to = to;
-//            this.affix = affix;
-//            this.prefix = prefix;
-//        }
-//
-//        public boolean add(String word, String pos) {
-//            return to.add(word, pos);
-//        }
-//    }
-//
-//}
+package de.tuebingen.sfs.morphgen;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * A deterministic automaton over the cells of a paradigm. Its transitions are labeled with single affix glosses and
+ * a placeholder for the root, and each cell corresponds to exactly one path, so cells can be enumerated lazily,
+ * counted without enumerating them and accessed by index.
+ */
+public class ParadigmAutomaton {
+
+    // Label of the root transition
+    static final int ROOT = 0;
+
+    // Gloss of each label
+    private String[] glosses;
+    // Index of the first transition of each state, followed by the total number of transitions
+    private int[] offsets;
+    // Transition labels, sorted per state
+    private int[] labels;
+    // Transition targets
+    private int[] targets;
+    // Whether each state ends a cell
+    private BitSet accepting;
+    // Number of cells reachable from each state
+    private long[] cells;
+    // Maximum number of transitions on a path
+    private int depth;
+
+    /**
+     * Create a paradigm automaton from string expressions representing the possible prefixes and suffixes.
+     * @param prefix The prefix expression
+     * @param suffix The suffix expression
+     */
+    public ParadigmAutomaton(String prefix, String suffix) {
+        Builder builder = new Builder();
+        int root = builder.newState();
+        int afterRoot = builder.newState();
+        int end = builder.newState();
+        builder.parseAffix(prefix, 0, root);
+        builder.addTransition(root, ROOT, afterRoot);
+        builder.parseAffix(suffix, afterRoot, end);
+        determinize(builder, end);
+    }
+
+    /**
+     * Create a paradigm automaton from all possible prefixes and suffixes.
+     * @param prefixes The prefixes
+     * @param suffixes The suffixes
+     */
+    public ParadigmAutomaton(Collection<String> prefixes, Collection<String> suffixes) {
+        Builder builder = new Builder();
+        int root = builder.newState();
+        int afterRoot = builder.newState();
+        int end = builder.newState();
+        for (String prefix : prefixes)
+            builder.addGlosses(prefix, 0, root);
+        builder.addTransition(root, ROOT, afterRoot);
+        for (String suffix : suffixes)
+            builder.addGlosses(suffix, afterRoot, end);
+        determinize(builder, end);
+    }
+
+    /**
+     * Turn the nondeterministic automaton into a deterministic one by subset construction.
+     * @param builder The nondeterministic automaton, with start state 0
+     * @param end The final state of the nondeterministic automaton
+     */
+    private void determinize(Builder builder, int end) {
+        glosses = builder.glosses.toArray(new String[0]);
+        Map<BitSet, Integer> ids = new HashMap<>();
+        List<BitSet> states = new ArrayList<>();
+        BitSet start = new BitSet();
+        start.set(0);
+        builder.close(start);
+        ids.put(start, 0);
+        states.add(start);
+
+        TIntArrayList offs = new TIntArrayList();
+        TIntArrayList labs = new TIntArrayList();
+        TIntArrayList tars = new TIntArrayList();
+        accepting = new BitSet();
+        for (int s = 0; s < states.size(); s++) {
+            BitSet state = states.get(s);
+            if (state.get(end))
+                accepting.set(s);
+            TreeMap<Integer, BitSet> next = new TreeMap<>();
+            for (int q = state.nextSetBit(0); q >= 0; q = state.nextSetBit(q + 1)) {
+                TIntArrayList ql = builder.labels.get(q);
+                for (int t = 0; t < ql.size(); t++)
+                    next.computeIfAbsent(ql.get(t), l -> new BitSet()).set(builder.targets.get(q).get(t));
+            }
+            offs.add(labs.size());
+            for (Map.Entry<Integer, BitSet> trans : next.entrySet()) {
+                BitSet target = trans.getValue();
+                builder.close(target);
+                Integer id = ids.get(target);
+                if (id == null) {
+                    id = states.size();
+                    ids.put(target, id);
+                    states.add(target);
+                }
+                labs.add(trans.getKey());
+                tars.add(id);
+            }
+        }
+        offs.add(labs.size());
+        offsets = offs.toArray();
+        labels = labs.toArray();
+        targets = tars.toArray();
+        countCells();
+    }
+
+    private ParadigmAutomaton(String[] glosses, int[] offsets, int[] labels, int[] targets, BitSet accepting) {
+        this.glosses = glosses;
+        this.offsets = offsets;
+        this.labels = labels;
+        this.targets = targets;
+        this.accepting = accepting;
+        countCells();
+    }
+
+    /**
+     * Write the automaton in the format read by {@link #read(DataInputStream)}.
+     * @param out The stream to write to
+     * @throws IOException If the automaton cannot be written
+     */
+    void write(DataOutputStream out) throws IOException {
+        // The root label has no gloss
+        MorphGen.writeStrings(out, Arrays.copyOfRange(glosses, ROOT + 1, glosses.length));
+        out.writeInt(offsets.length);
+        for (int offset : offsets)
+            out.writeInt(offset);
+        for (int t = 0; t < labels.length; t++) {
+            out.writeInt(labels[t]);
+            out.writeInt(targets[t]);
+        }
+        long[] acc = accepting.toLongArray();
+        out.writeInt(acc.length);
+        for (long word : acc)
+            out.writeLong(word);
+    }
+
+    /**
+     * Read an automaton written by {@link #write(DataOutputStream)}.
+     * @param in The stream to read from
+     * @return The automaton
+     * @throws IOException If the automaton cannot be read
+     */
+    static ParadigmAutomaton read(DataInputStream in) throws IOException {
+        String[] affixes = MorphGen.readStrings(in);
+        String[] glosses = new String[affixes.length + 1];
+        System.arraycopy(affixes, 0, glosses, ROOT + 1, affixes.length);
+        int[] offsets = new int[in.readInt()];
+        for (int s = 0; s < offsets.length; s++)
+            offsets[s] = in.readInt();
+        int n = offsets[offsets.length - 1];
+        int[] labels = new int[n];
+        int[] targets = new int[n];
+        for (int t = 0; t < n; t++) {
+            labels[t] = in.readInt();
+            targets[t] = in.readInt();
+        }
+        long[] acc = new long[in.readInt()];
+        for (int w = 0; w < acc.length; w++)
+            acc[w] = in.readLong();
+        return new ParadigmAutomaton(glosses, offsets, labels, targets, BitSet.valueOf(acc));
+    }
+
+    /**
+     * Count the cells reachable from each state and the length of the longest path.
+     */
+    private void countCells() {
+        // The automaton is acyclic, so the cells can be counted depth-first
+        int n = offsets.length - 1;
+        cells = new long[n];
+        int[] depths = new int[n];
+        boolean[] done = new boolean[n];
+        count(0, done, depths);
+        depth = depths[0];
+    }
+
+    /**
+     * Count the cells reachable from a state and the length of the longest path.
+     * @param s A state
+     * @param done Whether a state has been counted already
+     * @param depths Length of the longest path from each state
+     */
+    private void count(int s, boolean[] done, int[] depths) {
+        done[s] = true;
+        long c = accepting.get(s) ? 1 : 0;
+        int d = 0;
+        for (int t = offsets[s]; t < offsets[s + 1]; t++) {
+            int target = targets[t];
+            if (!done[target])
+                count(target, done, depths);
+            c += cells[target];
+            d = Math.max(d, depths[target] + 1);
+        }
+        cells[s] = c;
+        depths[s] = d;
+    }
+
+    /**
+     * @return The number of cells of the paradigm (more precisely, of distinct combinations of prefixes and
+     *         suffixes, which only differs if the inserted word itself looks like glosses)
+     */
+    public long count() {
+        return cells[0];
+    }
+
+    /**
+     * @return The number of states of the automaton
+     */
+    public int size() {
+        return cells.length;
+    }
+
+    /**
+     * Get a single cell of the paradigm of a word.
+     * @param word The word to get the cell for
+     * @param k The index of the cell, between 0 and count()
+     * @return The k-th cell of the paradigm
+     */
+    public String get(String word, long k) {
+        if (k < 0 || k >= count())
+            throw new IndexOutOfBoundsException("Cell " + k + " of " + count());
+        StringBuilder prefix = new StringBuilder();
+        StringBuilder suffix = new StringBuilder();
+        boolean afterRoot = false;
+        int s = 0;
+        while (true) {
+            if (accepting.get(s)) {
+                if (k == 0)
+                    break;
+                k--;
+            }
+            int t = offsets[s];
+            while (k >= cells[targets[t]]) {
+                k -= cells[targets[t]];
+                t++;
+            }
+            if (labels[t] == ROOT)
+                afterRoot = true;
+            else
+                appendGloss(afterRoot ? suffix : prefix, labels[t]);
+            s = targets[t];
+        }
+        return cell(prefix, word, suffix);
+    }
+
+    /**
+     * Enumerate the cells of the paradigm of a word lazily, in the order of their indices.
+     * @param word The word to get the cells for
+     * @return All possible realizations of the word
+     */
+    public Iterator<String> iterator(String word) {
+        return new CellIterator(word);
+    }
+
+    /**
+     * @param s A state
+     * @return Index of the first transition of the state
+     */
+    int firstTransition(int s) {
+        return offsets[s];
+    }
+
+    /**
+     * @param s A state
+     * @return Index after the last transition of the state
+     */
+    int endTransition(int s) {
+        return offsets[s + 1];
+    }
+
+    /**
+     * @param t A transition
+     * @return The label of the transition, ROOT or the index of a gloss
+     */
+    int label(int t) {
+        return labels[t];
+    }
+
+    /**
+     * @param t A transition
+     * @return The target state of the transition
+     */
+    int target(int t) {
+        return targets[t];
+    }
+
+    /**
+     * @param label A transition label other than ROOT
+     * @return The gloss of that label
+     */
+    String gloss(int label) {
+        return glosses[label];
+    }
+
+    /**
+     * @return The number of labels, including ROOT
+     */
+    int labelCount() {
+        return glosses.length;
+    }
+
+    /**
+     * @param s A state
+     * @return True if a cell ends in this state
+     */
+    boolean isFinal(int s) {
+        return accepting.get(s);
+    }
+
+    private void appendGloss(StringBuilder affix, int label) {
+        if (affix.length() > 0)
+            affix.append(' ');
+        affix.append(glosses[label]);
+    }
+
+    private static String cell(CharSequence prefix, String word, CharSequence suffix) {
+        return (prefix + " " + word + " " + suffix).trim();
+    }
+
+    /**
+     * Depth-first enumeration of the accepted paths.
+     */
+    private class CellIterator implements Iterator<String> {
+        private String word;
+        // States on the current path
+        private int[] states = new int[depth + 1];
+        // Next transition to follow from each state on the path
+        private int[] next = new int[depth + 1];
+        // Labels on the current path
+        private int[] path = new int[depth];
+        // Current depth, -1 when exhausted
+        private int top;
+        // Whether the cell ending in the top state still has to be returned
+        private boolean pending;
+
+        CellIterator(String word) {
+            this.word = word;
+            states[0] = 0;
+            next[0] = offsets[0];
+            top = (cells[0] > 0) ? 0 : -1;
+            pending = accepting.get(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!pending && top >= 0) {
+                int s = states[top];
+                if (next[top] == offsets[s + 1]) {
+                    top--;
+                    continue;
+                }
+                int t = next[top]++;
+                if (cells[targets[t]] == 0)
+                    continue;
+                path[top] = labels[t];
+                top++;
+                states[top] = targets[t];
+                next[top] = offsets[targets[t]];
+                pending = accepting.get(targets[t]);
+            }
+            return pending;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            pending = false;
+            StringBuilder prefix = new StringBuilder();
+            StringBuilder suffix = new StringBuilder();
+            boolean afterRoot = false;
+            for (int i = 0; i < top; i++) {
+                if (path[i] == ROOT)
+                    afterRoot = true;
+                else
+                    appendGloss(afterRoot ? suffix : prefix, path[i]);
+            }
+            return cell(prefix, word, suffix);
+        }
+    }
+
+    /**
+     * A nondeterministic automaton with epsilon transitions, built from affix expressions.
+     */
+    private static class Builder {
+        private List<String> glosses = new ArrayList<>();
+        private Map<String, Integer> glossIds = new HashMap<>();
+        // Labeled transitions of each state
+        private List<TIntArrayList> labels = new ArrayList<>();
+        private List<TIntArrayList> targets = new ArrayList<>();
+        // Epsilon transitions of each state
+        private List<TIntArrayList> epsilons = new ArrayList<>();
+
+        Builder() {
+            glosses.add(null);
+            newState();
+        }
+
+        int newState() {
+            labels.add(new TIntArrayList());
+            targets.add(new TIntArrayList());
+            epsilons.add(new TIntArrayList());
+            return labels.size() - 1;
+        }
+
+        void addTransition(int from, int label, int to) {
+            labels.get(from).add(label);
+            targets.get(from).add(to);
+        }
+
+        void addEpsilon(int from, int to) {
+            epsilons.get(from).add(to);
+        }
+
+        /**
+         * Add the epsilon closure of a set of states to it.
+         * @param states A set of states
+         */
+        void close(BitSet states) {
+            Deque<Integer> agenda = new ArrayDeque<>();
+            for (int q = states.nextSetBit(0); q >= 0; q = states.nextSetBit(q + 1))
+                agenda.push(q);
+            while (!agenda.isEmpty()) {
+                TIntArrayList eps = epsilons.get(agenda.pop());
+                for (int e = 0; e < eps.size(); e++) {
+                    int q = eps.get(e);
+                    if (!states.get(q)) {
+                        states.set(q);
+                        agenda.push(q);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Add a path for a sequence of glosses separated by spaces.
+         * @param affix The glosses
+         * @param from Start state of the path
+         * @param to End state of the path
+         */
+        void addGlosses(String affix, int from, int to) {
+            int prev = from;
+            String[] items = affix.trim().split(" +");
+            for (int i = 0; i < items.length; i++) {
+                if (items[i].isEmpty())
+                    continue;
+                Integer id = glossIds.get(items[i]);
+                if (id == null) {
+                    id = glosses.size();
+                    glosses.add(items[i]);
+                    glossIds.put(items[i], id);
+                }
+                int next = newState();
+                addTransition(prev, id, next);
+                prev = next;
+            }
+            addEpsilon(prev, to);
+        }
+
+        /**
+         * Add paths for all affixes described by a prefix or suffix expression. Like all of its parts, the
+         * expression as a whole is optional.
+         * @param affix The prefix or suffix expression
+         * @param from Start state of the paths
+         * @param to End state of the paths
+         */
+        void parseAffix(String affix, int from, int to) {
+            addEpsilon(from, to);
+            if (!affix.isEmpty()) {
+                int mid = newState();
+                String rest;
+                if (affix.startsWith("(")) {
+                    int x = findClosingBracket(affix, 1);
+                    if (x < 0) {
+                        System.err.println("No closing bracket in " + affix);
+                        return;
+                    }
+                    for (String item : splitLowLevel(affix.substring(1, x), " || "))
+                        parseAffix(item, from, mid);
+                    rest = affix.substring(x + 1);
+                }
+                else {
+                    int x = affix.indexOf(' ');
+                    String cur = affix;
+                    rest = "";
+                    if (x >= 0) {
+                        cur = affix.substring(0, x);
+                        rest = affix.substring(x + 1);
+                    }
+                    addEpsilon(from, mid);
+                    addGlosses(cur.replace('_', ' '), from, mid);
+                }
+                parseAffix(rest, mid, to);
+            }
+        }
+
+        /**
+         * Find the closing bracket for the previously parsed opening bracket.
+         * @param s The affix expression
+         * @param start The start index (must be after opening bracket in question and before next opening/closing bracket)
+         * @return Index of the closing bracket
+         */
+        private int findClosingBracket(String s, int start) {
+            int level = 0;
+            for (int c = start; c < s.length(); c++) {
+                if (s.charAt(c) == '(')
+                    level++;
+                else if (s.charAt(c) == ')') {
+                    if (level == 0)
+                        return c;
+                    else
+                        level--;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Split affix expression at a separator, but only on the lowest level, i.e. excluding separators occurring within
+         * brackets.
+         * @param s Affix expression
+         * @param sep Separator to split on
+         * @return Split affix expression
+         */
+        private List<String> splitLowLevel(String s, String sep) {
+            List<String> splits = new ArrayList<>();
+            int level = 0;
+            int prev = 0;
+            for (int c = 0; c < s.length(); c++) {
+                if (s.charAt(c) == '(')
+                    level++;
+                else if (s.charAt(c) == ')')
+                    level--;
+                else if (s.startsWith(sep, c) && level == 0) {
+                    splits.add(s.substring(prev, c));
+                    prev = c + 4;
+                    c += 3;
+                }
+            }
+            splits.add(s.substring(prev));
+            return splits;
+        }
+    }
+}
@@ -1,13 +1,28 @@
 package de.tuebingen.sfs.morphgen;
 
+import de.tuebingen.sfs.utils.AhoCorasick;
 import de.tuebingen.sfs.utils.StringUtils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ReplaceRule extends Rule {
 
     private String[] inPattern;
     private String[] outPattern;
+    // Compiled versions of the input patterns
+    private Pattern[] compiled;
+    // Matcher applying all replacements in a single scan, null if that would not be equivalent to applying them
+    // one after the other
+    private AhoCorasick singlePass;
+    // Replacement for each pattern of the single pass matcher
+    private String[] singlePassOut;
 
     public ReplaceRule(String lhs, String[] rhs, Map<String, String[]> groups, String name) {
         super(name);
@@ -27,6 +42,131 @@ public class ReplaceRule extends Rule {
             outPattern = resolveGroup(rhs[0], groups);
         else
             outPattern = new String[]{rhs[0]};
+
+        compilePatterns();
+    }
+
+    /**
+     * @param inPattern The patterns to replace, with groups resolved
+     * @param outPattern Their replacements, with groups resolved
+     * @param name Name of the rule
+     */
+    private ReplaceRule(String[] inPattern, String[] outPattern, String name) {
+        super(name);
+        this.inPattern = inPattern;
+        this.outPattern = outPattern;
+        compilePatterns();
+    }
+
+    private void compilePatterns() {
+        compiled = new Pattern[inPattern.length];
+        for (int i = 0; i < inPattern.length; i++)
+            compiled[i] = Pattern.compile(inPattern[i]);
+        if (inPattern.length > 1 && (inPattern.length == outPattern.length || outPattern.length == 1))
+            compileSinglePass();
+    }
+
+    /**
+     * Write the rule with its groups resolved, in the format read by {@link #read(DataInputStream)}.
+     * @param out The stream to write to
+     * @throws IOException If the rule cannot be written
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeUTF(name);
+        MorphGen.writeStrings(out, inPattern);
+        MorphGen.writeStrings(out, outPattern);
+    }
+
+    /**
+     * Read a rule written by {@link #write(DataOutputStream)}.
+     * @param in The stream to read from
+     * @return The rule
+     * @throws IOException If the rule cannot be read
+     */
+    static ReplaceRule read(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        String[] inPattern = MorphGen.readStrings(in);
+        return new ReplaceRule(inPattern, MorphGen.readStrings(in), name);
+    }
+
+    /**
+     * Try to build a matcher applying all replacements in one scan. This is only done if the result is provably
+     * the same as that of replacing the patterns one after the other: all patterns and replacements must be
+     * literals, no two distinct patterns may overlap, and no replacement may contain characters that a later
+     * pattern could match on. Later duplicates of a pattern can then never match and are dropped.
+     */
+    private void compileSinglePass() {
+        int n = inPattern.length;
+        List<String> patterns = new ArrayList<>();
+        List<String> outputs = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            String in = inPattern[i];
+            String out = outPattern[(outPattern.length == 1) ? 0 : i];
+            if (!isLiteral(in) || in.isEmpty() || out.isEmpty() || out.indexOf('$') >= 0 || out.indexOf('\\') >= 0)
+                return;
+            for (int j = i + 1; j < n; j++) {
+                if (sharesCharacters(out, inPattern[j]))
+                    return;
+            }
+            if (patterns.contains(in))
+                continue;
+            for (String other : patterns) {
+                if (overlap(in, other))
+                    return;
+            }
+            patterns.add(in);
+            outputs.add(out);
+        }
+        singlePass = new AhoCorasick(patterns.toArray(new String[0]));
+        singlePassOut = outputs.toArray(new String[0]);
+    }
+
+    /**
+     * @param pattern A regular expression
+     * @return True if the expression contains no special characters
+     */
+    private static boolean isLiteral(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("\\^$.|?*+()[]{}".indexOf(pattern.charAt(i)) >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param s1 A string
+     * @param s2 Another string
+     * @return True if some character occurs in both strings
+     */
+    private static boolean sharesCharacters(String s1, String s2) {
+        for (int i = 0; i < s1.length(); i++) {
+            if (s2.indexOf(s1.charAt(i)) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param s1 A string
+     * @param s2 Another string
+     * @return True if an occurrence of one string can overlap with an occurrence of the other
+     */
+    private static boolean overlap(String s1, String s2) {
+        if (s1.contains(s2) || s2.contains(s1))
+            return true;
+        for (int k = 1; k < Math.min(s1.length(), s2.length()); k++) {
+            if (s1.endsWith(s2.substring(0, k)) || s2.endsWith(s1.substring(0, k)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if all replacements of this rule are applied in a single scan, false if the patterns are
+     *         replaced one after the other
+     */
+    public boolean isSinglePass() {
+        return singlePass != null;
     }
 
     private String[] resolveGroup(String group, Map<String, String[]> groups) {
@@ -57,22 +197,25 @@ public class ReplaceRule extends Rule {
      */
     @Override
     public MorphRuleResult apply(String orig, String s) {
-        System.err.println(name + " " + s);
         String[] results;
-        if (inPattern.length > 0 && inPattern.length == outPattern.length) {
+        if (singlePass != null)
+            results = new String[]{replaceAll(s)};
+        else if (inPattern.length > 0 && inPattern.length == outPattern.length) {
             String res = s;
             for (int i = 0; i < inPattern.length; i++)
-                res = res.replaceAll(inPattern[i], outPattern[i]);
+                res = compiled[i].matcher(res).replaceAll(outPattern[i]);
             results = new String[]{res};
         } else if (inPattern.length == 1) {
             results = new String[outPattern.length];
+            Matcher m = compiled[0].matcher(s);
             for (int i = 0; i < outPattern.length; i++) {
-                results[i] = s.replaceAll(inPattern[0], outPattern[i]);
+                m.reset();
+                results[i] = m.replaceAll(outPattern[i]);
             }
         } else if (outPattern.length == 1) {
             String res = s;
             for (int i = 0; i < inPattern.length; i++) {
-                res = res.replaceAll(inPattern[i], outPattern[0]);
+                res = compiled[i].matcher(res).replaceAll(outPattern[0]);
             }
             results = new String[]{res};
         } else
@@ -80,4 +223,31 @@ public class ReplaceRule extends Rule {
 
         return new MorphRuleResult(orig, s, results);
     }
+
+    /**
+     * Replace the leftmost non-overlapping occurrences of all patterns in a single scan.
+     * @param s Input string
+     * @return The string with all patterns replaced
+     */
+    private String replaceAll(String s) {
+        StringBuilder res = null;
+        int copied = 0;
+        int state = singlePass.start();
+        for (int i = 0; i < s.length(); i++) {
+            state = singlePass.step(state, s.charAt(i));
+            for (int p : singlePass.matches(state)) {
+                int start = i + 1 - singlePass.length(p);
+                if (start >= copied) {
+                    if (res == null)
+                        res = new StringBuilder(s.length() + 16);
+                    res.append(s, copied, start).append(singlePassOut[p]);
+                    copied = i + 1;
+                    break;
+                }
+            }
+        }
+        if (res == null)
+            return s;
+        return res.append(s, copied, s.length()).toString();
+    }
 }
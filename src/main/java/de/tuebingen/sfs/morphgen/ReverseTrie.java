@@ -1,262 +1,281 @@
-//package morphgen;
-//
-//import java.io.Serializable;
-//import java.util.ArrayList;
-//import java.util.List;
-//import java.util.Map;
-//import java.util.Set;
-//
-//import gnu.trove.list.TCharList;
-//import gnu.trove.list.array.TCharArrayList;
-//
-///**
-// * A trie that stores strings in reverse order.
-// */
-//public class ReverseTrie implements Serializable {
-//
-//    // The start state
-//    private TrieNode start;
-//
-//    /**
-//     * Initialize the trie to an empty start state
-//     */
-//    public ReverseTrie() {
-//        start = new TrieNode();
-//    }
-//
-//    /**
-//     * Create a trie corresponding to a hash map dictionary
-//     * @param glosses The dictionary data
-//     */
-//    public ReverseTrie(Map<String, Set<Split>> glosses) {
-//        this();
-//        addAll(glosses);
-//    }
-//
-//    /**
-//     * Add a string to the trie.
-//     * @param word A word
-//     * @param gloss A gloss of the word
-//     */
-//    public void add(String word, Split gloss) {
-//        start.add(word, word.length()-1, gloss);
-//    }
-//
-//    /**
-//     * Add all entries of a hash map ictionary to the trie.
-//     * @param glosses The dictionary data
-//     */
-//    public void addAll(Map<String, Set<Split>> glosses) {
-//        for (String form : glosses.keySet()) {
-//            for (Split gloss : glosses.get(form)) {
-//                start.add(form, form.length()-1, gloss);
-//            }
-//        }
-//    }
-//
-//    /**
-//     * @param s A word
-//     * @return True if the word is stored in the trie, false if not
-//     */
-//    public boolean contains(String s) {
-//        return start.contains(s, s.length()-1);
-//    }
-//
-//    /**
-//     * @param s A word
-//     * @return Its glosses
-//     */
-//    public List<Split> get(String s) {
-//        return start.get(s, s.length()-1);
-//    }
-//
-//    /**
-//     * @param s A word
-//     * @return The start index of the longest known suffix of the word
-//     */
-//    public int suffixSearch(String s) {
-//        return start.suffixSearch(s, s.length()-1);
-//    }
-//
-//    /**
-//     * A node in the reverse trie.
-//     */
-//    private class TrieNode implements Serializable {
-//        // The chars that lead to the next nodes
-//        private List<String> chars;
-//        // The next nodes that can be reached from this node
-//        private List<TrieNode> nextNodes;
-//        private List<Split> add;
-//        private List<Split> finish;
-//        // The glosses for the string ending at this node
-////        private List<Split> splits;
-//
-//        public TrieNode() {
-//            this.chars = new ArrayList<>();
-//            this.nextNodes = new ArrayList<>();
-//            this.add = new ArrayList<>();
-//            this.finish = null;
-//        }
-//
-//        public TrieNode(String s, int i, Split g) {
-//            this();
-//            add(s, i, g);
-//        }
-//
-//        /**
-//         * Add a string to this trie
-//         * @param s The string to add
-//         * @param i The current index in the string
-//         * @param g A gloss for the string
-//         */
-//        public void add(String s, int i, Split g) {
-//            // If the string ends here, add gloss to list of glosses
-//            if (i < 0) {
-//                if (finish == null)
-//                    finish = new ArrayList<>();
-//                finish.add(g);
-//            }
-//            // Else hand string to appropriate next node (and create that node if necessary)
-//            else {
-//                boolean match = false;
-//                int longestSuffix = 0;
-//                int matchingNext = -1;
-//                for (int j = 0; j < nextNodes.size(); j++) {
-//                    if (s.endsWith(chars.get(j))) {
-//                        match = true;
-//                        longestSuffix = chars.get(j).length();
-//                        matchingNext = j;
-//                    }
-//                    else {
-//                        int commonSuffix = longestCommonSuffix(s, chars.get(j));
-//                        if (commonSuffix > longestSuffix) {
-//                            longestSuffix = commonSuffix;
-//                            matchingNext = j;
-//                        }
-//                    }
-//                }
-//                if (matchingNext >= 0) {
-//                    Split h = add.get(matchingNext);
-//                    int formSplit = longestCommonSuffix(g.form, h.form);
-//                    int glossSplit = longestCommonSuffix(g.gloss, h.gloss);
-//                    Split newG = new Split(h.form.substring(0, formSplit), h.gloss.substring(0, glossSplit));
-//                    Split nextG = new Split(g.form.substring(formSplit), g.gloss.substring(glossSplit));
-//                    if (match) {
-//                        if (!newG.equals(h)) {
-//                            nextNodes.get(matchingNext).push(h.form.substring(formSplit), h.gloss.substring(glossSplit));
-//                            add.set(matchingNext, newG);
-//                        }
-//                    }
-//                    else {
-//                        TrieNode nextNode = new TrieNode();
-//                        int x = this.chars.get(matchingNext).length() - longestSuffix;
-//                        nextNode.chars.add(this.chars.get(matchingNext).substring(x));
-//                        nextNode.nextNodes.add(this.nextNodes.get(matchingNext));
-//                        nextNode.add.add(new Split(h.form.substring(formSplit), h.gloss.substring(glossSplit)));
-//                        nextNodes.set(matchingNext, nextNode);
-//                    }
-//                    nextNodes.get(matchingNext).add(s, i-longestSuffix, nextG);
-//                }
-//                char c = s.charAt(i);
-//                int j = chars.binarySearch(c);
-//                if (j < 0) {
-//                    j = -j - 1;
-//                    chars.insert(j, c);
-//                    nextNodes.add(j, new TrieNode(s, --i, g));
-//                }
-//                else
-//                    nextNodes.get(j).add(s, --i, g);
-//            }
-//        }
-//
-//        /**
-//         * @param s A string
-//         * @param i The current index in that string
-//         * @return True if the string is represented in this trie, false if not
-//         */
-//        public boolean contains(String s, int i) {
-//            // If the string ends here, it is contained if there is a gloss for it
-//            if (i < 0)
-//                return splits != null;
-//                // Else hand string to appropriate next node (if there is any)
-//            else {
-//                int j = chars.binarySearch(s.charAt(i));
-//                return j >= 0 && nextNodes.get(j) != null && nextNodes.get(j).contains(s, --i);
-//            }
-//        }
-//
-//        /**
-//         * @param s A string
-//         * @param i The current index in that string
-//         * @return The glosses for that string
-//         */
-//        public List<Split> get(String s, int i) {
-//            // If the string ends here, return glosses saved in this node
-//            if (i < 0)
-//                return (splits == null) ? null : new ArrayList<>(splits);
-//                // Else hand string to appropriate next node (if there is any)
-//            else {
-//                int j = chars.binarySearch(s.charAt(i));
-//                if (j < 0 || nextNodes.get(j) == null)
-//                    return null;
-//                return nextNodes.get(j).get(s, --i);
-//            }
-//        }
-//
-//        /**
-//         * @param s A string
-//         * @param i The current index in that string
-//         * @return The start index of the longest known suffix of the word
-//         */
-//        public int suffixSearch(String s, int i) {
-//            // If the string ends here, check whether there are any glosses stored in this node
-//            if (i < 0)
-//                return (splits == null) ? -1 : 0;
-//                // Else hand string to appropriate next node (if there is any)
-//            else {
-//                int j = chars.binarySearch(s.charAt(i));
-//                // If there is no matching next node, check whether the current node has any glosses (i.e. contains this string)
-//                if (j < 0 || nextNodes.get(j) == null)
-//                    return (splits == null) ? -1 : i+1;
-//                    // Else check whether any of the following nodes contains a suffix
-//                else {
-//                    int k = nextNodes.get(j).suffixSearch(s, i-1);
-//                    if (k < 0 && splits != null)
-//                        return i+1;
-//                    return k;
-//                }
-//            }
-//        }
-//    }
-//
-//    public int longestCommonSuffix(String s1, String s2) {
-//        int i = 0;
-//        int j1 = s1.length() - 1;
-//        int j2 = s1.length() - 1;
-//        while (i <= j1 && i <= j2 && s1.charAt(j1-i) == s2.charAt(j2-i)) {
-//            i++;
-//        }
-//        return i;
-//    }
-//
-//    private class Split {
-//
-//        private String form;
-//        private String gloss;
-//
-//        public Split(String form, String gloss) {
-//            this.form = form;
-//            this.gloss = gloss;
-//        }
-//
-//        @Override
-//        public boolean equals(Object obj) {
-//            if (obj instanceof Split) {
-//                Split other = (Split) obj;
-//                return this.form.equals(other.form) && this.gloss.equals(other.gloss);
-//            }
-//            return false;
-//        }
-//    }
-//
-//}
+package de.tuebingen.sfs.morphgen;
+
+import de.tuebingen.sfs.utils.IOUtils;
+import gnu.trove.list.array.TCharArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * A trie that stores the forms of an unfolded lexicon in reverse order, so that forms sharing an ending share
+ * nodes, and maps each form to its analyses. Once built, the trie consists of a few primitive arrays: the
+ * transitions of all nodes in one sorted block per node, and the analyses as indices into a pool of distinct
+ * strings (segmented forms, glosses and translations repeat a lot). It can be written to and read from a compact
+ * binary snapshot.
+ */
+public class ReverseTrie implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    // Marks the beginning of a snapshot
+    private static final int MAGIC = 0x52545231;
+    // Number of pooled fields per analysis: segmented form, prefixes, translations and suffixes
+    private static final int FIELDS = UnfoldedLexicon.FIELDS;
+
+    // Index of the first transition of each node, plus the total number of transitions
+    private int[] offsets;
+    // Label of each transition, sorted within each node
+    private char[] labels;
+    // Target node of each transition
+    private int[] targets;
+    // Index of the first analysis of each node, plus the total number of analyses
+    private int[] analysisOffsets;
+    // Pool indices of the fields of each analysis
+    private int[] analyses;
+    // Distinct field values
+    private String[] pool;
+
+    private ReverseTrie(int[] offsets, char[] labels, int[] targets, int[] analysisOffsets, int[] analyses,
+                        String[] pool) {
+        this.offsets = offsets;
+        this.labels = labels;
+        this.targets = targets;
+        this.analysisOffsets = analysisOffsets;
+        this.analyses = analyses;
+        this.pool = pool;
+    }
+
+    /**
+     * Build a trie from the output of {@link MorphGen#unfoldVocabulary(String, String)}.
+     * @param unfoldedFile Path to the unfolded lexicon
+     * @return The trie
+     * @throws IOException If the file cannot be read
+     */
+    public static ReverseTrie readUnfolded(String unfoldedFile) throws IOException {
+        Builder builder = new Builder();
+        try (BufferedReader read = IOUtils.newReader(Paths.get(unfoldedFile))) {
+            for (String line = read.readLine(); line != null; line = read.readLine())
+                builder.addLine(line);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Read a trie from a snapshot written by {@link #write(String)}.
+     * @param snapshotFile Path to the snapshot
+     * @return The trie
+     * @throws IOException If the file cannot be read or is not a snapshot
+     */
+    public static ReverseTrie read(String snapshotFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a trie snapshot: " + snapshotFile);
+            int[] offsets = readInts(in);
+            char[] labels = new char[in.readInt()];
+            for (int i = 0; i < labels.length; i++)
+                labels[i] = in.readChar();
+            int[] targets = readInts(in);
+            int[] analysisOffsets = readInts(in);
+            int[] analyses = readInts(in);
+            String[] pool = new String[in.readInt()];
+            for (int i = 0; i < pool.length; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                pool[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return new ReverseTrie(offsets, labels, targets, analysisOffsets, analyses, pool);
+        }
+    }
+
+    /**
+     * Write a snapshot of the trie.
+     * @param snapshotFile Path to write the snapshot to
+     * @throws IOException If the file cannot be written
+     */
+    public void write(String snapshotFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(snapshotFile)))) {
+            out.writeInt(MAGIC);
+            writeInts(out, offsets);
+            out.writeInt(labels.length);
+            for (char c : labels)
+                out.writeChar(c);
+            writeInts(out, targets);
+            writeInts(out, analysisOffsets);
+            writeInts(out, analyses);
+            out.writeInt(pool.length);
+            for (String s : pool) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] ints = new int[in.readInt()];
+        for (int i = 0; i < ints.length; i++)
+            ints[i] = in.readInt();
+        return ints;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] ints) throws IOException {
+        out.writeInt(ints.length);
+        for (int i : ints)
+            out.writeInt(i);
+    }
+
+    /**
+     * @param s A word
+     * @return True if the word is stored in the trie, false if not
+     */
+    public boolean contains(String s) {
+        int node = find(s);
+        return node >= 0 && analysisOffsets[node] < analysisOffsets[node + 1];
+    }
+
+    /**
+     * @param s A word
+     * @return Its analyses, each consisting of the segmented form, prefixes, translations and suffixes (as in the
+     *         columns of an unfolded lexicon), null if the word is not stored in the trie
+     */
+    public List<String[]> get(String s) {
+        int node = find(s);
+        if (node < 0 || analysisOffsets[node] == analysisOffsets[node + 1])
+            return null;
+        List<String[]> result = new ArrayList<>(analysisOffsets[node + 1] - analysisOffsets[node]);
+        for (int a = analysisOffsets[node]; a < analysisOffsets[node + 1]; a++) {
+            String[] analysis = new String[FIELDS];
+            for (int f = 0; f < FIELDS; f++)
+                analysis[f] = pool[analyses[a * FIELDS + f]];
+            result.add(analysis);
+        }
+        return result;
+    }
+
+    /**
+     * @param s A word
+     * @return The start index of the longest suffix of the word that is stored in the trie, -1 if there is none
+     */
+    public int suffixSearch(String s) {
+        int node = 0;
+        int longest = (analysisOffsets[0] < analysisOffsets[1]) ? s.length() : -1;
+        for (int i = s.length() - 1; i >= 0; i--) {
+            node = next(node, s.charAt(i));
+            if (node < 0)
+                break;
+            if (analysisOffsets[node] < analysisOffsets[node + 1])
+                longest = i;
+        }
+        return longest;
+    }
+
+    /**
+     * @return The number of words stored in the trie
+     */
+    public int size() {
+        int size = 0;
+        for (int node = 0; node < analysisOffsets.length - 1; node++)
+            if (analysisOffsets[node] < analysisOffsets[node + 1])
+                size++;
+        return size;
+    }
+
+    /**
+     * @param s A word
+     * @return The node reached by reading the word backwards, -1 if there is none
+     */
+    private int find(String s) {
+        int node = 0;
+        for (int i = s.length() - 1; i >= 0 && node >= 0; i--)
+            node = next(node, s.charAt(i));
+        return node;
+    }
+
+    private int next(int node, char c) {
+        int t = Arrays.binarySearch(labels, offsets[node], offsets[node + 1], c);
+        return (t < 0) ? -1 : targets[t];
+    }
+
+    /**
+     * Collects the lines of an unfolded lexicon and builds a trie from them.
+     */
+    public static class Builder {
+        private UnfoldedLexicon lexicon = new UnfoldedLexicon();
+
+        /**
+         * Add a line of an unfolded lexicon, i.e. a form followed by its segmented form, prefixes, translations
+         * and suffixes, separated by tabs. Empty lines are ignored.
+         * @param line The line
+         */
+        public void addLine(String line) {
+            lexicon.addLine(line);
+        }
+
+        /**
+         * Add several lines of an unfolded lexicon at once.
+         * @param lines The lines, separated by line breaks
+         */
+        void addLines(String lines) {
+            lexicon.addLines(lines);
+        }
+
+        /**
+         * @return A trie containing all lines added so far, without duplicate analyses
+         */
+        public ReverseTrie build() {
+            String[] keys = lexicon.reversedForms();
+            // Sorting the reversed forms lays out the nodes in depth-first order
+            int[] order = lexicon.sortedRows(keys);
+            TIntArrayList parents = new TIntArrayList();
+            TCharArrayList chars = new TCharArrayList();
+            TIntArrayList analysisNodes = new TIntArrayList();
+            TIntArrayList analyses = new TIntArrayList();
+            parents.add(-1);
+            chars.add('\0');
+            // Nodes on the path of the previous key
+            TIntArrayList path = new TIntArrayList();
+            path.add(0);
+            String prev = "";
+            for (int a : order) {
+                String key = keys[a];
+                int common = 0;
+                while (common < key.length() && common < prev.length() && key.charAt(common) == prev.charAt(common))
+                    common++;
+                path.remove(common + 1, path.size() - common - 1);
+                for (int i = common; i < key.length(); i++) {
+                    parents.add(path.get(i));
+                    chars.add(key.charAt(i));
+                    path.add(parents.size() - 1);
+                }
+                analysisNodes.add(path.get(key.length()));
+                for (int f = 0; f < FIELDS; f++)
+                    analyses.add(lexicon.field(a, f));
+                prev = key;
+            }
+            int nodes = parents.size();
+            // Children are created in order of their labels, so counting them gives sorted blocks
+            int[] offsets = new int[nodes + 1];
+            for (int n = 1; n < nodes; n++)
+                offsets[parents.get(n) + 1]++;
+            for (int n = 0; n < nodes; n++)
+                offsets[n + 1] += offsets[n];
+            char[] labels = new char[nodes - 1];
+            int[] targets = new int[nodes - 1];
+            int[] fill = Arrays.copyOf(offsets, nodes);
+            for (int n = 1; n < nodes; n++) {
+                int t = fill[parents.get(n)]++;
+                labels[t] = chars.get(n);
+                targets[t] = n;
+            }
+            int[] analysisOffsets = new int[nodes + 1];
+            for (int i = 0; i < analysisNodes.size(); i++)
+                analysisOffsets[analysisNodes.get(i) + 1]++;
+            for (int n = 0; n < nodes; n++)
+                analysisOffsets[n + 1] += analysisOffsets[n];
+            return new ReverseTrie(offsets, labels, targets, analysisOffsets, analyses.toArray(), lexicon.pool());
+        }
+    }
+}
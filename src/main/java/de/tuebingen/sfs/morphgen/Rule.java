@@ -12,6 +12,13 @@ public abstract class Rule {
         this.name = name;
     }
 
+    /**
+     * @return The name of the rule
+     */
+    public String getName() {
+        return name;
+    }
+
     /**
      * Apply rule to a string input.
      * @param s Input string
@@ -27,4 +34,40 @@ public abstract class Rule {
      * @return Outputs generated by the rule, null if rule not applicable
      */
     public abstract MorphRuleResult apply(String orig, String s);
+
+    /**
+     * Apply rule to a string input, reusing a match context.
+     * @param orig Original input (gloss)
+     * @param s Input string
+     * @param ctx The match context
+     * @return Outputs generated by the rule, null if rule not applicable
+     */
+    MorphRuleResult apply(String orig, String s, MatchContext ctx) {
+        return apply(orig, s);
+    }
+
+    /**
+     * Apply rule to an input whose last character stands for an unknown rest of the input, and find out whether the
+     * result depends on that rest. It does not if, for every possible rest, applying the rule to the complete input
+     * gives the same result as substituting the rest into the result obtained here; in particular, the stand-in
+     * must then end every output. Otherwise, the dependent flag of the context is set. Rules that cannot tell
+     * always set it.
+     * @param orig Original input (gloss), ending in the same stand-in
+     * @param s Input string, ending in a stand-in that does not occur anywhere else
+     * @param ctx The match context
+     * @return Outputs generated by the rule, null if rule not applicable
+     */
+    MorphRuleResult applyTail(String orig, String s, MatchContext ctx) {
+        ctx.dependent = true;
+        return null;
+    }
+
+    /**
+     * Get literal strings that must occur in an input (ignoring morphological separators) for this rule to be
+     * applicable. Rules that cannot tell return an empty array and are always attempted.
+     * @return The required literals
+     */
+    String[] requiredLiterals() {
+        return new String[0];
+    }
 }
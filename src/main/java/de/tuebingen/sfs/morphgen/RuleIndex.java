@@ -0,0 +1,143 @@
+package de.tuebingen.sfs.morphgen;
+
+import de.tuebingen.sfs.utils.AhoCorasick;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index over the literals required by a list of rules, used to skip rules that cannot possibly match an input.
+ * Each input gets a signature, a bitset over the literal vocabulary of all rules, and a rule is only attempted if
+ * the signature contains all of its required literals.
+ */
+class RuleIndex {
+
+    // Automaton recognizing the literal vocabulary
+    private AhoCorasick literals;
+    // Number of longs per signature
+    private int words;
+    // Required literals for each rule as a bitset, null if the rule must always be attempted
+    private long[][] required;
+    // Literals containing spaces, which can span several glosses
+    private long[] spaced;
+
+    /**
+     * Compile the index for a list of rules.
+     * @param rules The rules, in order of application
+     */
+    RuleIndex(List<Rule> rules) {
+        this(requiredLiterals(rules));
+    }
+
+    /**
+     * Compile the index from the literals required by each rule.
+     * @param ruleLiterals The required literals of each rule, in order of application
+     */
+    RuleIndex(String[][] ruleLiterals) {
+        Map<String, Integer> vocabulary = new LinkedHashMap<>();
+        int[][] ids = new int[ruleLiterals.length][];
+        for (int r = 0; r < ruleLiterals.length; r++) {
+            String[] req = ruleLiterals[r];
+            ids[r] = new int[req.length];
+            for (int l = 0; l < req.length; l++) {
+                Integer id = vocabulary.get(req[l]);
+                if (id == null) {
+                    id = vocabulary.size();
+                    vocabulary.put(req[l], id);
+                }
+                ids[r][l] = id;
+            }
+        }
+
+        literals = new AhoCorasick(vocabulary.keySet().toArray(new String[0]));
+        words = (vocabulary.size() + 63) / 64;
+        spaced = new long[words];
+        for (Map.Entry<String, Integer> literal : vocabulary.entrySet())
+            if (literal.getKey().indexOf(' ') >= 0)
+                spaced[literal.getValue() >>> 6] |= 1L << literal.getValue();
+        required = new long[ruleLiterals.length][];
+        for (int r = 0; r < ruleLiterals.length; r++) {
+            if (ids[r].length > 0) {
+                required[r] = new long[words];
+                for (int id : ids[r])
+                    required[r][id >>> 6] |= 1L << id;
+            }
+        }
+    }
+
+    /**
+     * @param rules A list of rules
+     * @return The literals required by each rule
+     */
+    static String[][] requiredLiterals(List<Rule> rules) {
+        String[][] literals = new String[rules.size()][];
+        for (int r = 0; r < literals.length; r++)
+            literals[r] = rules.get(r).requiredLiterals();
+        return literals;
+    }
+
+    /**
+     * Compute the signature of a form, i.e. the set of vocabulary literals occurring in it once separators are
+     * removed.
+     * @param form A (partially) generated form
+     * @return The signature of the form
+     */
+    long[] signature(String form) {
+        long[] sig = new long[words];
+        int state = literals.start();
+        for (int i = 0; i < form.length(); i++) {
+            char c = form.charAt(i);
+            if (c == '|' || c == '&' || c == '<' || c == '>')
+                continue;
+            state = literals.step(state, c);
+            for (int id : literals.matches(state))
+                sig[id >>> 6] |= 1L << id;
+        }
+        return sig;
+    }
+
+    /**
+     * Compute the signature of an unknown rest of a form, i.e. the set of vocabulary literals that might occur in
+     * it or across its boundaries, given the glosses the rest consists of (separated by spaces).
+     * @param glosses All glosses that might occur in the rest
+     * @return The signature of the rest
+     */
+    long[] tailSignature(Iterable<String> glosses) {
+        long[] sig = spaced.clone();
+        for (String gloss : glosses) {
+            long[] glossSig = signature(gloss);
+            for (int w = 0; w < words; w++)
+                sig[w] |= glossSig[w];
+        }
+        return sig;
+    }
+
+    /**
+     * @param rule Index of a rule
+     * @param in An input word
+     * @return False if the rule cannot match the input, true if it might
+     */
+    boolean mayApply(int rule, GlossedWord in) {
+        return mayApply(rule, in, null);
+    }
+
+    /**
+     * @param rule Index of a rule
+     * @param in An input word, possibly ending in a stand-in for an unknown rest
+     * @param tail Signature of the unknown rest, null if there is none
+     * @return False if the rule cannot match the input with any rest, true if it might
+     */
+    boolean mayApply(int rule, GlossedWord in, long[] tail) {
+        long[] req = required[rule];
+        if (req == null)
+            return true;
+        long[] sig = in.getSignature(this);
+        for (int w = 0; w < req.length; w++) {
+            long present = (tail == null) ? sig[w] : sig[w] | tail[w];
+            if ((req[w] & ~present) != 0)
+                return false;
+        }
+        return true;
+    }
+}
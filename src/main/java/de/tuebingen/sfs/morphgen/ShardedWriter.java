@@ -0,0 +1,229 @@
+package de.tuebingen.sfs.morphgen;
+
+import de.tuebingen.sfs.utils.IOUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the lines of an unfolded lexicon into a fixed number of compressed shards in a directory, along with a
+ * manifest listing the shards. Lines are assigned to shards by the hash of their form, so all analyses of a form end
+ * up in the same shard. Each shard is a sequence of independent gzip members of a bounded size followed by an empty
+ * one marking the end, so it can be read as a whole by any gzip reader or split at member boundaries: like in BGZF,
+ * every member stores its own compressed size in an extra header field, see {@link #blocks(Path)}.
+ */
+public class ShardedWriter implements Closeable {
+
+    // Name of the manifest file in the output directory
+    public static final String MANIFEST = "manifest.tsv";
+    // Maximum number of uncompressed bytes per gzip member
+    private static final int BLOCK_SIZE = 1 << 16;
+    // Number of bytes of a gzip member besides the compressed data: header, extra field and trailer
+    private static final int MEMBER_OVERHEAD = 28;
+
+    private Path dir;
+    private OutputStream[] shards;
+    // Uncompressed bytes of the current block of each shard
+    private ByteArrayOutputStream[] blocks;
+    private long[] rows;
+    private long[] sizes;
+    private long[] uncompressed;
+    private int[] blockCounts;
+    private Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private CRC32 crc = new CRC32();
+    // First error that occurred while writing, thrown on closing
+    private IOException error;
+
+    /**
+     * Create the shards in a directory, which is created if needed. Existing shards are overwritten.
+     * @param dir The output directory
+     * @param n The number of shards
+     * @throws IOException If the shards cannot be created
+     */
+    public ShardedWriter(Path dir, int n) throws IOException {
+        if (n < 1)
+            throw new IllegalArgumentException("Number of shards must be positive: " + n);
+        this.dir = dir;
+        Files.createDirectories(dir);
+        shards = new OutputStream[n];
+        blocks = new ByteArrayOutputStream[n];
+        rows = new long[n];
+        sizes = new long[n];
+        uncompressed = new long[n];
+        blockCounts = new int[n];
+        for (int s = 0; s < n; s++) {
+            shards[s] = new BufferedOutputStream(Files.newOutputStream(dir.resolve(shardName(s, n))),
+                    IOUtils.BUFFER_SIZE);
+            blocks[s] = new ByteArrayOutputStream(BLOCK_SIZE + BLOCK_SIZE / 4);
+        }
+    }
+
+    /**
+     * @param s Index of a shard
+     * @param n Number of shards
+     * @return The file name of the shard
+     */
+    public static String shardName(int s, int n) {
+        return String.format("part-%05d-of-%05d.tsv.gz", s, n);
+    }
+
+    /**
+     * Add a line of an unfolded lexicon, i.e. a form followed by its segmented form, prefixes, translations and
+     * suffixes, separated by tabs. Empty lines are ignored. Write errors are thrown by {@link #close()}.
+     * @param line The line
+     */
+    public void addLine(String line) {
+        if (line.isEmpty() || error != null)
+            return;
+        int tab = line.indexOf('\t');
+        String form = (tab < 0) ? line : line.substring(0, tab);
+        int s = Math.floorMod(form.hashCode(), shards.length);
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        blocks[s].write(bytes, 0, bytes.length);
+        rows[s]++;
+        uncompressed[s] += bytes.length;
+        if (blocks[s].size() >= BLOCK_SIZE) {
+            try {
+                flushBlock(s);
+            }
+            catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Add several lines of an unfolded lexicon at once.
+     * @param lines The lines, separated by line breaks
+     */
+    void addLines(String lines) {
+        for (String line : lines.split("\\R"))
+            addLine(line);
+    }
+
+    /**
+     * Compress the current block of a shard into a gzip member and write it.
+     * @param s Index of the shard
+     * @throws IOException If the member cannot be written
+     */
+    private void flushBlock(int s) throws IOException {
+        byte[] data = blocks[s].toByteArray();
+        blocks[s].reset();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] buf = new byte[8192];
+        while (!deflater.finished())
+            deflated.write(buf, 0, deflater.deflate(buf));
+        crc.reset();
+        crc.update(data, 0, data.length);
+
+        OutputStream out = shards[s];
+        int size = MEMBER_OVERHEAD + deflated.size();
+        // ID1, ID2, deflate, FEXTRA, no modification time, no extra flags, unknown OS
+        out.write(new byte[]{0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 255});
+        // Extra field of 8 bytes with one subfield 'MG' of 4 bytes holding the size of the member
+        writeShort(out, 8);
+        out.write('M');
+        out.write('G');
+        writeShort(out, 4);
+        writeInt(out, size);
+        deflated.writeTo(out);
+        writeInt(out, (int) crc.getValue());
+        writeInt(out, data.length);
+        sizes[s] += size;
+        blockCounts[s]++;
+    }
+
+    private static void writeShort(OutputStream out, int n) throws IOException {
+        out.write(n);
+        out.write(n >>> 8);
+    }
+
+    private static void writeInt(OutputStream out, int n) throws IOException {
+        writeShort(out, n);
+        writeShort(out, n >>> 16);
+    }
+
+    /**
+     * Write the remaining blocks and the end marker of each shard, close them and write the manifest, with the file
+     * name, number of lines, compressed and uncompressed size and number of non-empty gzip members of each shard.
+     * @throws IOException If a shard or the manifest cannot be written, or writing a line failed before
+     */
+    @Override
+    public void close() throws IOException {
+        for (int s = 0; s < shards.length; s++) {
+            try {
+                if (error == null && blocks[s].size() > 0)
+                    flushBlock(s);
+                if (error == null) {
+                    // The end marker is an empty member
+                    flushBlock(s);
+                    blockCounts[s]--;
+                }
+            }
+            catch (IOException e) {
+                error = e;
+            }
+            try {
+                shards[s].close();
+            }
+            catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        deflater.end();
+        if (error != null)
+            throw error;
+        try (PrintWriter manifest = IOUtils.newWriter(dir.resolve(MANIFEST), false)) {
+            manifest.println("#shard\trows\tbytes\tuncompressed\tblocks");
+            for (int s = 0; s < shards.length; s++)
+                manifest.println(shardName(s, shards.length) + "\t" + rows[s] + "\t" + sizes[s] + "\t"
+                        + uncompressed[s] + "\t" + blockCounts[s]);
+            if (manifest.checkError())
+                throw new IOException("Manifest could not be written");
+        }
+    }
+
+    /**
+     * Find the gzip members of a shard without decompressing them, e.g. to split it between several readers. The
+     * end marker is not included.
+     * @param shard Path to a shard
+     * @return The offset of each member in the shard
+     * @throws IOException If the shard cannot be read or was not written by a sharded writer
+     */
+    public static List<Long> blocks(Path shard) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(shard)))) {
+            long offset = 0;
+            byte[] header = new byte[16];
+            while (true) {
+                in.readFully(header);
+                if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[3] != 4
+                        || header[12] != 'M' || header[13] != 'G')
+                    throw new IOException("Not a sharded writer block at offset " + offset + ": " + shard);
+                int size = Integer.reverseBytes(in.readInt());
+                // Only the empty end marker compresses to the two bytes of an empty final deflate block
+                if (size == MEMBER_OVERHEAD + 2)
+                    return offsets;
+                offsets.add(offset);
+                long skip = size - header.length - 4;
+                while (skip > 0) {
+                    long skipped = in.skip(skip);
+                    if (skipped <= 0)
+                        throw new EOFException("Truncated shard: " + shard);
+                    skip -= skipped;
+                }
+                offset += size;
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package de.tuebingen.sfs.morphgen;
+
+import de.tuebingen.sfs.utils.IOUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Writes the lines of an unfolded lexicon to a file sorted by form, using a bounded amount of memory. Lines are
+ * collected until they exceed the memory limit, then sorted and spilled as a run to a temporary file; on closing,
+ * the runs are merged. All lines of the same form are merged into a single line consisting of the form followed by
+ * the segmented form, prefixes, translations and suffixes of each distinct analysis, in sorted order.
+ */
+public class SortedWriter implements Closeable {
+
+    // Default maximum number of characters of lines kept in memory
+    public static final long DEFAULT_MEMORY = 1L << 24;
+    // Maximum number of runs merged at once
+    private static final int FAN_IN = 64;
+    // Memory used by a line besides its characters, roughly
+    private static final int LINE_OVERHEAD = 32;
+
+    // Sorts lines by form, and lines with the same form by their analyses, without splitting them
+    private static final Comparator<String> ORDER = (a, b) -> {
+        int n = Math.min(a.length(), b.length());
+        for (int i = 0; i < n; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x != y)
+                return (x == '\t') ? -1 : (y == '\t') ? 1 : x - y;
+            if (x == '\t')
+                return a.compareTo(b);
+        }
+        return a.length() - b.length();
+    };
+
+    private Path outfile;
+    private long memory;
+    private List<String> lines = new ArrayList<>();
+    // Memory used by the lines, roughly
+    private long used;
+    // Directory of the runs, null until the first run is spilled
+    private Path tmpDir;
+    // All runs that exist, including those of an unfinished merge
+    private List<Path> runs = new ArrayList<>();
+    // Number of runs created by merging
+    private int merges;
+    // First error that occurred while writing, thrown on closing
+    private IOException error;
+
+    /**
+     * @param outfile The file to write the sorted lines to
+     * @param memory Maximum number of characters of lines to keep in memory
+     */
+    public SortedWriter(Path outfile, long memory) {
+        this.outfile = outfile;
+        this.memory = memory;
+    }
+
+    /**
+     * @param outfile The file to write the sorted lines to
+     */
+    public SortedWriter(Path outfile) {
+        this(outfile, DEFAULT_MEMORY);
+    }
+
+    /**
+     * Add a line of an unfolded lexicon, i.e. a form followed by its segmented form, prefixes, translations and
+     * suffixes, separated by tabs. Empty lines are ignored. Write errors are thrown by {@link #close()}.
+     * @param line The line
+     */
+    public void addLine(String line) {
+        if (line.isEmpty() || error != null)
+            return;
+        lines.add(line);
+        used += line.length() + LINE_OVERHEAD;
+        if (used >= memory) {
+            try {
+                spill();
+            }
+            catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Add several lines of an unfolded lexicon at once.
+     * @param lines The lines, separated by line breaks
+     */
+    void addLines(String lines) {
+        for (String line : lines.split("\\R"))
+            addLine(line);
+    }
+
+    /**
+     * Sort the lines in memory and write them to a new run.
+     * @throws IOException If the run cannot be written
+     */
+    private void spill() throws IOException {
+        if (tmpDir == null)
+            tmpDir = Files.createTempDirectory(outfile.toAbsolutePath().getParent(), "sort");
+        lines.sort(ORDER);
+        Path run = tmpDir.resolve("run-" + runs.size());
+        try (PrintWriter writ = IOUtils.newWriter(run, false)) {
+            for (String line : lines)
+                writ.println(line);
+            if (writ.checkError())
+                throw new IOException("Run could not be written: " + run);
+        }
+        runs.add(run);
+        lines.clear();
+        used = 0;
+    }
+
+    /**
+     * Sort all lines, merge the lines of each form and write them to the output file. Temporary files are deleted,
+     * also if writing fails.
+     * @throws IOException If the output or a run cannot be written, or writing a line failed before
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        try {
+            if (error != null)
+                throw error;
+            if (runs.isEmpty()) {
+                lines.sort(ORDER);
+                write(lines.iterator());
+            }
+            else {
+                if (!lines.isEmpty())
+                    spill();
+                // Merge the first runs into a new one until few enough are left to merge them all at once
+                while (runs.size() > FAN_IN) {
+                    List<Path> merged = new ArrayList<>(runs.subList(0, FAN_IN));
+                    Path run = tmpDir.resolve("merge-" + merges++);
+                    runs.add(run);
+                    try (Merge merge = new Merge(merged);
+                         PrintWriter writ = IOUtils.newWriter(run, false)) {
+                        while (merge.hasNext())
+                            writ.println(merge.next());
+                        if (writ.checkError())
+                            throw new IOException("Run could not be written: " + run);
+                    }
+                    for (Path m : merged)
+                        Files.delete(m);
+                    runs.subList(0, FAN_IN).clear();
+                }
+                try (Merge merge = new Merge(runs)) {
+                    write(merge);
+                }
+            }
+        }
+        catch (UncheckedIOException e) {
+            failure = e.getCause();
+        }
+        catch (IOException e) {
+            failure = e;
+        }
+        finally {
+            lines = null;
+            if (tmpDir != null) {
+                for (Path run : runs)
+                    failure = delete(run, failure);
+                failure = delete(tmpDir, failure);
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Delete a temporary file if it exists.
+     * @param file The file
+     * @param failure The error that occurred so far, null if none
+     * @return The error that occurred so far, to which an error deleting the file is added as suppressed
+     */
+    private static IOException delete(Path file, IOException failure) {
+        try {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e) {
+            if (failure == null)
+                return e;
+            failure.addSuppressed(e);
+        }
+        return failure;
+    }
+
+    /**
+     * Write sorted lines to the output file, merging the lines of each form.
+     * @param sorted The sorted lines
+     * @throws IOException If the output cannot be written
+     */
+    private void write(Iterator<String> sorted) throws IOException {
+        try (PrintWriter writ = IOUtils.newWriter(outfile, false)) {
+            String form = null;
+            String prev = null;
+            StringBuilder entry = new StringBuilder();
+            while (sorted.hasNext()) {
+                String line = sorted.next();
+                if (line.equals(prev))
+                    continue;
+                String f = form(line);
+                if (!f.equals(form)) {
+                    if (form != null)
+                        writ.println(entry);
+                    entry.setLength(0);
+                    entry.append(line);
+                    form = f;
+                }
+                else
+                    entry.append(line, f.length(), line.length());
+                prev = line;
+            }
+            if (form != null)
+                writ.println(entry);
+            if (writ.checkError())
+                throw new IOException("Sorted lexicon could not be written: " + outfile);
+        }
+    }
+
+    /**
+     * Merges sorted runs, iterating over the lines of all runs in sorted order. Reading errors are thrown as
+     * {@link UncheckedIOException}s. Runs are closed once they are used up, and all of them on closing.
+     */
+    private static class Merge implements Iterator<String>, Closeable {
+        private List<RunReader> readers = new ArrayList<>();
+        private PriorityQueue<RunReader> heap;
+
+        /**
+         * @param runs The runs
+         * @throws IOException If a run cannot be opened
+         */
+        Merge(List<Path> runs) throws IOException {
+            heap = new PriorityQueue<>(runs.size(), (a, b) -> ORDER.compare(a.line, b.line));
+            try {
+                for (Path run : runs) {
+                    RunReader reader = new RunReader(run);
+                    readers.add(reader);
+                    if (reader.advance())
+                        heap.add(reader);
+                }
+            }
+            catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if (heap.isEmpty())
+                throw new NoSuchElementException();
+            RunReader reader = heap.poll();
+            String line = reader.line;
+            try {
+                if (reader.advance())
+                    heap.add(reader);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = close(null);
+            if (failure != null)
+                throw failure;
+        }
+
+        /**
+         * Close all runs.
+         * @param failure The error that occurred so far, null if none
+         * @return The error that occurred so far, to which errors closing the runs are added as suppressed
+         */
+        private IOException close(IOException failure) {
+            for (RunReader reader : readers) {
+                try {
+                    reader.read.close();
+                }
+                catch (IOException e) {
+                    if (failure == null)
+                        failure = e;
+                    else
+                        failure.addSuppressed(e);
+                }
+            }
+            return failure;
+        }
+    }
+
+    /**
+     * @param line A line of an unfolded lexicon
+     * @return Its form
+     */
+    private static String form(String line) {
+        int tab = line.indexOf('\t');
+        return (tab < 0) ? line : line.substring(0, tab);
+    }
+
+    /**
+     * Reads the lines of a run one after the other.
+     */
+    private static class RunReader {
+        private BufferedReader read;
+        // The current line
+        String line;
+
+        RunReader(Path run) throws IOException {
+            read = IOUtils.newReader(run);
+        }
+
+        /**
+         * Read the next line, closing the run at its end.
+         * @return False if the run is used up
+         * @throws IOException If the run cannot be read
+         */
+        boolean advance() throws IOException {
+            line = read.readLine();
+            if (line == null)
+                read.close();
+            return line != null;
+        }
+    }
+}
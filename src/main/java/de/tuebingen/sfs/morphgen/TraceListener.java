@@ -0,0 +1,30 @@
+package de.tuebingen.sfs.morphgen;
+
+import java.io.PrintStream;
+
+/**
+ * A listener printing every rule attempt, for debugging rule files.
+ */
+public class TraceListener implements GenerationListener {
+
+    private PrintStream out;
+
+    /**
+     * Create a listener printing to standard error.
+     */
+    public TraceListener() {
+        this(System.err);
+    }
+
+    /**
+     * @param out The stream to print to
+     */
+    public TraceListener(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void ruleAttempted(Rule rule, GlossedWord in) {
+        out.println(rule.getName() + " " + in.getForm());
+    }
+}
@@ -0,0 +1,211 @@
+package de.tuebingen.sfs.morphgen;
+
+import de.tuebingen.sfs.utils.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A checkpoint of an unfolding run, stored next to the output file, from which an interrupted run can be resumed.
+ * It holds the byte offset in the dictionary after the last entry written, the length of the output up to that entry
+ * and the inflected forms of all entries so far. The forms are kept in a log next to the checkpoint, to which every
+ * checkpoint only appends the forms added since the previous one, as a block of sorted, front-coded, i.e. each form
+ * only stores the characters following the prefix it shares with the previous one, and compressed forms. The
+ * checkpoint itself records how much of the log belongs to it, so a block written by an interrupted checkpoint is
+ * ignored and overwritten.
+ */
+class UnfoldCheckpoint {
+
+    // File extension of checkpoints
+    static final String SUFFIX = ".ckpt";
+    // File extension of the forms log, appended to that of the checkpoint
+    static final String LOG_SUFFIX = ".forms";
+    private static final int MAGIC = 0x4d474332;
+
+    // Size of the dictionary, to notice changes to it
+    long inputSize;
+    // Byte offset in the dictionary after the last entry written
+    long inputOffset;
+    // Byte length of the output up to the last entry written
+    long outputOffset;
+    // Number of entries written
+    long entries;
+    // Byte length of the forms log up to the last checkpoint
+    private long logLength;
+
+    // The inflected forms of all entries so far
+    private Set<String> all = new HashSet<>();
+    // Forms added since the last checkpoint
+    private List<String> pending = new ArrayList<>();
+    private Set<String> forms = new AbstractSet<String>() {
+        @Override
+        public boolean add(String form) {
+            if (!all.add(form))
+                return false;
+            pending.add(form);
+            return true;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return all.contains(o);
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return Collections.unmodifiableSet(all).iterator();
+        }
+
+        @Override
+        public int size() {
+            return all.size();
+        }
+    };
+
+    /**
+     * @param outfile An output file
+     * @return The path of its checkpoint
+     */
+    static Path path(Path outfile) {
+        return outfile.resolveSibling(outfile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * @param outfile An output file
+     * @return The path of the forms log of its checkpoint
+     */
+    static Path logPath(Path outfile) {
+        return outfile.resolveSibling(outfile.getFileName() + SUFFIX + LOG_SUFFIX);
+    }
+
+    /**
+     * @return The inflected forms of all entries so far, to be updated while unfolding; forms added to it are
+     *         appended to the log by the next checkpoint
+     */
+    Set<String> forms() {
+        return forms;
+    }
+
+    /**
+     * Read the checkpoint of an output file, replaying the forms log up to it.
+     * @param outfile The output file
+     * @return The checkpoint, null if there is none
+     * @throws IOException If the checkpoint or its log cannot be read
+     */
+    static UnfoldCheckpoint read(Path outfile) throws IOException {
+        Path file = path(outfile);
+        if (!Files.exists(file))
+            return null;
+        UnfoldCheckpoint checkpoint = new UnfoldCheckpoint();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not an unfolding checkpoint: " + file);
+            checkpoint.inputSize = in.readLong();
+            checkpoint.inputOffset = in.readLong();
+            checkpoint.outputOffset = in.readLong();
+            checkpoint.entries = in.readLong();
+            checkpoint.logLength = in.readLong();
+        }
+        Path log = logPath(outfile);
+        if (checkpoint.logLength > 0 && (!Files.exists(log) || Files.size(log) < checkpoint.logLength))
+            throw new IOException("Forms log is shorter than at the checkpoint: " + log);
+        if (checkpoint.logLength > 0) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log),
+                    IOUtils.BUFFER_SIZE))) {
+                for (long pos = 0; pos < checkpoint.logLength; ) {
+                    int length = in.readInt();
+                    byte[] block = new byte[length];
+                    in.readFully(block);
+                    readBlock(block, checkpoint.all);
+                    pos += 4 + length;
+                }
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @param block A compressed block of front-coded forms
+     * @param forms Receives the forms
+     * @throws IOException If the block is corrupt
+     */
+    private static void readBlock(byte[] block, Set<String> forms) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(block)))) {
+            int n = in.readInt();
+            String prev = "";
+            for (int i = 0; i < n; i++) {
+                String form = prev.substring(0, in.readUnsignedShort()) + in.readUTF();
+                forms.add(form);
+                prev = form;
+            }
+        }
+    }
+
+    /**
+     * Write the checkpoint for an output file. The forms added since the previous checkpoint are appended to the log
+     * and forced to disk first, then the checkpoint replaces the previous one once it is complete.
+     * @param outfile The output file
+     * @throws IOException If the checkpoint or its log cannot be written
+     */
+    void write(Path outfile) throws IOException {
+        String[] sorted = pending.toArray(new String[0]);
+        Arrays.sort(sorted);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(sorted.length);
+            String prev = "";
+            for (String form : sorted) {
+                int shared = 0;
+                int max = Math.min(Math.min(prev.length(), form.length()), 0xffff);
+                while (shared < max && prev.charAt(shared) == form.charAt(shared))
+                    shared++;
+                out.writeShort(shared);
+                out.writeUTF(form.substring(shared));
+                prev = form;
+            }
+        }
+        // Anything after the previous checkpoint's part of the log was written by an interrupted checkpoint
+        try (FileChannel log = FileChannel.open(logPath(outfile), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            log.truncate(logLength).position(logLength);
+            ByteBuffer length = ByteBuffer.allocate(4).putInt(0, bytes.size());
+            while (length.hasRemaining())
+                log.write(length);
+            bytes.writeTo(Channels.newOutputStream(log));
+            log.force(false);
+            logLength = log.size();
+        }
+        pending.clear();
+
+        Path file = path(outfile);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(inputSize);
+            out.writeLong(inputOffset);
+            out.writeLong(outputOffset);
+            out.writeLong(entries);
+            out.writeLong(logLength);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete the checkpoint of an output file and its log.
+     * @param outfile The output file
+     * @throws IOException If a file cannot be deleted
+     */
+    static void delete(Path outfile) throws IOException {
+        Files.deleteIfExists(path(outfile));
+        Files.deleteIfExists(logPath(outfile));
+    }
+}
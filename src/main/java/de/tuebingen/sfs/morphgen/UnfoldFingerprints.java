@@ -0,0 +1,467 @@
+package de.tuebingen.sfs.morphgen;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.BiFunction;
+
+/**
+ * Fingerprints of an unfolded dictionary, stored next to the unfolded file, from which an incremental run can tell
+ * which entries it has to generate again and which it can copy from the previous output. The fingerprints consist of
+ * a hash of every rule, of every paradigm and of the gloss vocabulary, and for each entry of its fields, the position
+ * of its lines in the output, the rules that were attempted while generating it and a filter over the substrings of
+ * up to three characters of all forms generated on the way, ignoring separators like the {@link RuleIndex} does.
+ * <p>
+ * An entry can be copied if its fields and paradigm did not change, the rules attempted on it still exist unchanged
+ * in the same order, and no other rule can be attempted on it now: a rule that did not exist before must require a
+ * literal that none of its forms can contain according to the filter, and a rule that was not attempted before must
+ * either require such a literal or stay between the same attempted rules, where it sees the same forms as before.
+ */
+class UnfoldFingerprints {
+
+    // File extension of the fingerprints
+    static final String SUFFIX = ".fp";
+    private static final int MAGIC = 0x4d474631;
+    // Maximum length of the substrings in the filter of an entry
+    private static final int GRAM = 3;
+
+    private long glossHash;
+    private long[] ruleHashes;
+    // Index of each current rule, only known for the current rules
+    private Map<Rule, Integer> ruleIndices;
+    // Required literals of each rule, only known for the current rules
+    private String[][] ruleLiterals;
+    private Map<String, Long> paradigmHashes = new HashMap<>();
+    // Entries in output order
+    private List<Entry> entries = new ArrayList<>();
+    // Size of the output the fingerprints belong to
+    private long size;
+
+    // Entries of previous fingerprints by their fields, in output order
+    private Map<String, Deque<Entry>> byFields;
+    // Index of each previous rule in the current rules and vice versa, -1 if it has none
+    private int[] toCurrent;
+    private int[] fromCurrent;
+
+    private UnfoldFingerprints() {}
+
+    /**
+     * Compute the fingerprints of a rule set for a new run, without any entries.
+     * @param rules The rules
+     * @param paradigms The paradigms by POS
+     * @param strWithGloss The gloss filter
+     */
+    UnfoldFingerprints(List<Rule> rules, Map<String, Paradigm> paradigms, GlossFilter strWithGloss) {
+        String[] glosses = strWithGloss.vocabulary();
+        if (glosses != null) {
+            glosses = glosses.clone();
+            Arrays.sort(glosses);
+            glossHash = hash(String.join("\n", glosses).getBytes(StandardCharsets.UTF_8));
+        }
+        ruleHashes = new long[rules.size()];
+        for (int r = 0; r < ruleHashes.length; r++)
+            ruleHashes[r] = hash(rules.get(r));
+        ruleLiterals = RuleIndex.requiredLiterals(rules);
+        ruleIndices = new IdentityHashMap<>();
+        for (int r = 0; r < rules.size(); r++)
+            ruleIndices.put(rules.get(r), r);
+        for (Map.Entry<String, Paradigm> paradigm : paradigms.entrySet())
+            paradigmHashes.put(paradigm.getKey(), hash(paradigm.getValue()));
+    }
+
+    /**
+     * @param outfile An unfolded file
+     * @return The path of its fingerprints
+     */
+    static Path path(Path outfile) {
+        return outfile.resolveSibling(outfile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * A rule is identified by its compiled form, so changes to the groups it uses are noticed as well. Other rules
+     * than {@link MorphRule}s and {@link ReplaceRule}s are identified by their name.
+     * @param rule A rule
+     * @return The hash of the rule
+     */
+    private static long hash(Rule rule) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            if (rule instanceof MorphRule)
+                ((MorphRule) rule).write(out);
+            else if (rule instanceof ReplaceRule)
+                ((ReplaceRule) rule).write(out);
+            else {
+                out.writeUTF(rule.getClass().getName());
+                out.writeUTF(rule.getName());
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return hash(bytes.toByteArray());
+    }
+
+    private static long hash(Paradigm paradigm) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            paradigm.getAutomaton().write(out);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return hash(bytes.toByteArray());
+    }
+
+    /**
+     * 64-bit FNV-1a hash.
+     * @param bytes Some bytes
+     * @return Their hash
+     */
+    private static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Read the fingerprints of an unfolded file.
+     * @param outfile The unfolded file
+     * @return Its fingerprints, null if there are none or the file was changed since they were written
+     * @throws IOException If the fingerprints cannot be read
+     */
+    static UnfoldFingerprints read(Path outfile) throws IOException {
+        Path file = path(outfile);
+        if (!Files.exists(file) || !Files.exists(outfile))
+            return null;
+        UnfoldFingerprints fp = new UnfoldFingerprints();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not an unfolding fingerprint file: " + file);
+            fp.size = in.readLong();
+            if (fp.size != Files.size(outfile))
+                return null;
+            fp.glossHash = in.readLong();
+            fp.ruleHashes = new long[in.readInt()];
+            for (int r = 0; r < fp.ruleHashes.length; r++)
+                fp.ruleHashes[r] = in.readLong();
+            int p = in.readInt();
+            for (int i = 0; i < p; i++)
+                fp.paradigmHashes.put(in.readUTF(), in.readLong());
+            int n = in.readInt();
+            fp.byFields = new HashMap<>();
+            for (int e = 0; e < n; e++) {
+                Entry entry = new Entry(new String[]{in.readUTF(), in.readUTF(), in.readUTF()});
+                entry.offset = in.readLong();
+                entry.length = in.readInt();
+                entry.grams = new long[in.readInt()];
+                for (int w = 0; w < entry.grams.length; w++)
+                    entry.grams[w] = in.readLong();
+                entry.rules = new int[in.readInt()];
+                for (int r = 0; r < entry.rules.length; r++)
+                    entry.rules[r] = in.readInt();
+                fp.byFields.computeIfAbsent(entry.key(), k -> new ArrayDeque<>()).add(entry);
+            }
+        }
+        return fp;
+    }
+
+    /**
+     * Write the fingerprints.
+     * @param file The file to write them to
+     * @param size Size of the output they belong to
+     * @throws IOException If the file cannot be written
+     */
+    void write(Path file, long size) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(size);
+            out.writeLong(glossHash);
+            out.writeInt(ruleHashes.length);
+            for (long h : ruleHashes)
+                out.writeLong(h);
+            out.writeInt(paradigmHashes.size());
+            for (Map.Entry<String, Long> paradigm : paradigmHashes.entrySet()) {
+                out.writeUTF(paradigm.getKey());
+                out.writeLong(paradigm.getValue());
+            }
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                for (String field : entry.fields)
+                    out.writeUTF(field);
+                out.writeLong(entry.offset);
+                out.writeInt(entry.length);
+                out.writeInt(entry.grams.length);
+                for (long w : entry.grams)
+                    out.writeLong(w);
+                out.writeInt(entry.rules.length);
+                for (int r : entry.rules)
+                    out.writeInt(r);
+            }
+        }
+    }
+
+    /**
+     * Match previous fingerprints with these, so previous entries can be looked up with {@link #reuse(String[],
+     * UnfoldFingerprints)}. Rules are matched by their hashes; rules that occur several times are not matched.
+     * @param previous Fingerprints of a previous run
+     * @return False if nothing can be reused because the gloss vocabulary changed
+     */
+    boolean match(UnfoldFingerprints previous) {
+        if (previous.glossHash != glossHash)
+            return false;
+        Map<Long, Integer> current = unique(ruleHashes);
+        Map<Long, Integer> before = unique(previous.ruleHashes);
+        previous.toCurrent = new int[previous.ruleHashes.length];
+        fromCurrent = new int[ruleHashes.length];
+        Arrays.fill(previous.toCurrent, -1);
+        Arrays.fill(fromCurrent, -1);
+        for (Map.Entry<Long, Integer> rule : before.entrySet()) {
+            Integer r = current.get(rule.getKey());
+            if (r != null) {
+                previous.toCurrent[rule.getValue()] = r;
+                fromCurrent[r] = rule.getValue();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param hashes Rule hashes
+     * @return The index of each hash that occurs only once
+     */
+    private static Map<Long, Integer> unique(long[] hashes) {
+        Map<Long, Integer> indices = new HashMap<>();
+        Set<Long> repeated = new HashSet<>();
+        for (int r = 0; r < hashes.length; r++)
+            if (indices.put(hashes[r], r) != null)
+                repeated.add(hashes[r]);
+        indices.keySet().removeAll(repeated);
+        return indices;
+    }
+
+    /**
+     * Find the previous output of a dictionary entry and check whether it can be reused, see
+     * {@link UnfoldFingerprints}. Each previous entry is only found once.
+     * @param fields Lemma, pos and translations of the entry
+     * @param previous Fingerprints of a previous run, matched with these
+     * @return The entry with the rules attempted on it translated to the current ones, null if it has to be generated
+     */
+    Entry reuse(String[] fields, UnfoldFingerprints previous) {
+        Deque<Entry> candidates = previous.byFields.get(String.join("\t", fields));
+        Entry old = (candidates == null) ? null : candidates.poll();
+        if (old == null || !Objects.equals(paradigmHashes.get(fields[1]), previous.paradigmHashes.get(fields[1])))
+            return null;
+        int[] attempted = new int[old.rules.length];
+        for (int i = 0; i < attempted.length; i++) {
+            attempted[i] = previous.toCurrent[old.rules[i]];
+            if (attempted[i] < 0 || (i > 0 && attempted[i] <= attempted[i-1]))
+                return null;
+        }
+        for (int r = 0, next = 0; r < ruleHashes.length; r++) {
+            if (next < attempted.length && attempted[next] == r)
+                next++;
+            else if (mayApply(r, old.grams)) {
+                // The rule may see other forms than before unless it stays between the same attempted rules
+                int o = fromCurrent[r];
+                if (o < 0 || rank(old.rules, o) != next)
+                    return null;
+            }
+        }
+        Entry entry = new Entry(fields);
+        entry.offset = old.offset;
+        entry.length = old.length;
+        entry.grams = old.grams;
+        entry.rules = attempted;
+        return entry;
+    }
+
+    /**
+     * @param rule Index of a rule
+     * @param grams The substring filter of an entry
+     * @return False if the rule requires a literal none of the forms of the entry contain
+     */
+    private boolean mayApply(int rule, long[] grams) {
+        for (String literal : ruleLiterals[rule]) {
+            // A literal can only occur if its substrings of the longest recorded length all do
+            int n = Math.min(GRAM, literal.length());
+            for (int i = 0; i + n <= literal.length(); i++) {
+                int bit = bit(gram(literal, i, n), grams.length);
+                if ((grams[bit >>> 6] & (1L << bit)) == 0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param s A string
+     * @param from Start of a substring
+     * @param n Length of the substring, at most {@link #GRAM}
+     * @return The substring packed into a long
+     */
+    private static long gram(CharSequence s, int from, int n) {
+        long gram = n;
+        for (int i = from; i < from + n; i++)
+            gram = (gram << 16) | s.charAt(i);
+        return gram;
+    }
+
+    /**
+     * @param gram A packed substring
+     * @param words Size of a filter in longs, a power of two
+     * @return The bit of the substring in the filter
+     */
+    private static int bit(long gram, int words) {
+        return (int) ((gram * 0x9e3779b97f4a7c15L) >>> 32) & (words * 64 - 1);
+    }
+
+    /**
+     * @param sorted Sorted rule indices
+     * @param rule A rule index
+     * @return The number of indices before the rule
+     */
+    private static int rank(int[] sorted, int rule) {
+        int i = Arrays.binarySearch(sorted, rule);
+        return (i < 0) ? -i - 1 : i;
+    }
+
+    /**
+     * Read the lines of a previous entry from the previous output.
+     * @param output The previous output
+     * @param entry The entry
+     * @return Its lines
+     * @throws IOException If the output cannot be read
+     */
+    static String lines(FileChannel output, Entry entry) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(entry.length);
+        while (bytes.hasRemaining())
+            if (output.read(bytes, entry.offset + bytes.position()) < 0)
+                throw new EOFException("Unfolded file is shorter than its fingerprints");
+        return new String(bytes.array(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Add an entry to these fingerprints.
+     * @param entry The entry
+     * @param offset Byte offset of its lines in the output
+     * @param length Byte length of its lines
+     */
+    void add(Entry entry, long offset, int length) {
+        entry.offset = offset;
+        entry.length = length;
+        entries.add(entry);
+    }
+
+    /**
+     * @return A new trace for an entry generated with the current rules
+     */
+    Trace trace() {
+        return new Trace(ruleIndices);
+    }
+
+    /**
+     * The fingerprint of an unfolded dictionary entry.
+     */
+    static class Entry {
+        // Lemma, pos and translations
+        String[] fields;
+        long offset;
+        int length;
+        // Filter over the short substrings of all forms generated for the entry
+        long[] grams;
+        // Sorted indices of the rules attempted on the entry
+        int[] rules;
+
+        Entry(String[] fields) {
+            this.fields = fields;
+        }
+
+        String key() {
+            return String.join("\t", fields);
+        }
+    }
+
+    /**
+     * Records the rules attempted on a dictionary entry and the characters of its forms while it is generated. It
+     * listens only to the generation run through {@link #generate(String, Paradigm, BiFunction)}, so other callers of
+     * the generator are neither recorded nor slowed down.
+     */
+    static class Trace implements GenerationListener {
+        // Index of each rule
+        private Map<Rule, Integer> indices;
+        private BitSet rules = new BitSet();
+        private Set<Long> grams = new HashSet<>();
+
+        private Trace(Map<Rule, Integer> indices) {
+            this.indices = indices;
+        }
+
+        /**
+         * Generate the inflections of a word and record them.
+         * @param word A word
+         * @param paradigm Its paradigm
+         * @param generate Runs a set of templates through the rules, bypassing the cache, and notifies the given
+         *                 listener besides those of the generator
+         * @return The inflections of the word
+         */
+        Set<GlossedWord> generate(String word, Paradigm paradigm,
+                                  BiFunction<Set<GlossedWord>, GenerationListener, Set<GlossedWord>> generate) {
+            Set<GlossedWord> templates = new HashSet<>();
+            for (Iterator<String> it = paradigm.iterator(word); it.hasNext(); ) {
+                String template = it.next();
+                templates.add(new GlossedWord(template, template));
+                add(template);
+            }
+            return generate.apply(templates, this);
+        }
+
+        @Override
+        public void ruleAttempted(Rule rule, GlossedWord in) {
+            Integer r = indices.get(rule);
+            if (r != null)
+                rules.set(r);
+        }
+
+        @Override
+        public void ruleMatched(Rule rule, GlossedWord in, String[] outputs) {
+            for (String out : outputs)
+                add(out);
+        }
+
+        private void add(String form) {
+            StringBuilder chars = new StringBuilder(form.length());
+            for (int i = 0; i < form.length(); i++) {
+                char c = form.charAt(i);
+                if (c != '|' && c != '&' && c != '<' && c != '>')
+                    chars.append(c);
+            }
+            for (int n = 1; n <= GRAM; n++)
+                for (int i = 0; i + n <= chars.length(); i++)
+                    grams.add(gram(chars, i, n));
+        }
+
+        /**
+         * @param fields Lemma, pos and translations of the traced entry
+         * @return The fingerprint of the entry, without its position in the output
+         */
+        Entry toEntry(String[] fields) {
+            Entry entry = new Entry(fields);
+            entry.rules = rules.stream().toArray();
+            // About 16 bits per substring, so few substrings that do not occur pass the filter
+            int words = Integer.highestOneBit(Math.max(1, grams.size() / 4) * 2 - 1);
+            entry.grams = new long[words];
+            for (long gram : grams) {
+                int bit = bit(gram, words);
+                entry.grams[bit >>> 6] |= 1L << bit;
+            }
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package de.tuebingen.sfs.morphgen;
+
+import de.tuebingen.sfs.utils.IOUtils;
+import de.tuebingen.sfs.utils.StringUtils;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The lines of an unfolded lexicon, collected for building a lexicon index. Each line consists of a form followed
+ * by its segmented form, prefixes, translations and suffixes; the latter four fields are stored as indices into a
+ * pool of distinct strings.
+ */
+class UnfoldedLexicon {
+
+    // Number of pooled fields per line
+    static final int FIELDS = 4;
+
+    // Form of each line
+    private List<String> forms = new ArrayList<>();
+    // Pool indices of the fields of each line
+    private TIntArrayList fields = new TIntArrayList();
+    private Map<String, Integer> poolIds = new HashMap<>();
+    private List<String> pool = new ArrayList<>();
+
+    /**
+     * Read the output of {@link MorphGen#unfoldVocabulary(String, String)}.
+     * @param unfoldedFile Path to the unfolded lexicon
+     * @return The lines of the lexicon
+     * @throws IOException If the file cannot be read
+     */
+    static UnfoldedLexicon read(String unfoldedFile) throws IOException {
+        UnfoldedLexicon lexicon = new UnfoldedLexicon();
+        try (BufferedReader read = IOUtils.newReader(Paths.get(unfoldedFile))) {
+            for (String line = read.readLine(); line != null; line = read.readLine())
+                lexicon.addLine(line);
+        }
+        return lexicon;
+    }
+
+    /**
+     * Add a line of an unfolded lexicon, with the fields separated by tabs. A line may hold several analyses of its
+     * form, as written by {@link SortedWriter}, each of which is added as a line of its own. Empty lines are ignored.
+     * @param line The line
+     */
+    void addLine(String line) {
+        if (line.isEmpty())
+            return;
+        String[] columns = line.split("\t", -1);
+        if (columns.length < FIELDS + 1 || (columns.length - 1) % FIELDS != 0) {
+            System.err.println("Unknown unfolded lexicon format: " + line);
+            return;
+        }
+        for (int a = 1; a < columns.length; a += FIELDS) {
+            forms.add(columns[0]);
+            for (int f = 0; f < FIELDS; f++)
+                fields.add(poolId(columns[a + f]));
+        }
+    }
+
+    /**
+     * Add several lines of an unfolded lexicon at once.
+     * @param lines The lines, separated by line breaks
+     */
+    void addLines(String lines) {
+        for (String line : lines.split("\\R"))
+            addLine(line);
+    }
+
+    private int poolId(String s) {
+        Integer id = poolIds.get(s);
+        if (id == null) {
+            id = pool.size();
+            pool.add(s);
+            poolIds.put(s, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param row Index of a line
+     * @return The form of the line
+     */
+    String form(int row) {
+        return forms.get(row);
+    }
+
+    /**
+     * @param row Index of a line
+     * @param f Index of a pooled field
+     * @return The pool index of the field
+     */
+    int field(int row, int f) {
+        return fields.get(row * FIELDS + f);
+    }
+
+    /**
+     * @return The distinct field values
+     */
+    String[] pool() {
+        return pool.toArray(new String[0]);
+    }
+
+    /**
+     * Write the pool as the number of bytes before each value (plus the total number of bytes) followed by the UTF-8
+     * encoded values, as read by {@link #poolString(ByteBuffer, int, int, int)}.
+     * @param out The stream to write to
+     * @throws IOException If the pool cannot be written
+     */
+    void writePool(DataOutputStream out) throws IOException {
+        byte[][] bytes = poolBytes();
+        int offset = 0;
+        out.writeInt(offset);
+        for (byte[] value : bytes) {
+            offset += value.length;
+            out.writeInt(offset);
+        }
+        for (byte[] value : bytes)
+            out.write(value);
+    }
+
+    /**
+     * @return The number of bytes written by {@link #writePool(DataOutputStream)} before the encoded values
+     */
+    int poolHeaderSize() {
+        return 4 * (pool.size() + 1);
+    }
+
+    private byte[][] poolBytes() {
+        byte[][] bytes = new byte[pool.size()][];
+        for (int p = 0; p < bytes.length; p++)
+            bytes[p] = pool.get(p).getBytes(StandardCharsets.UTF_8);
+        return bytes;
+    }
+
+    /**
+     * Read a value from a pool written by {@link #writePool(DataOutputStream)}.
+     * @param buffer The buffer containing the pool
+     * @param offsets Position of the byte offsets in the buffer
+     * @param data Position of the encoded values in the buffer
+     * @param id The pool index of the value
+     * @return The value
+     */
+    static String poolString(ByteBuffer buffer, int offsets, int data, int id) {
+        int from = buffer.getInt(offsets + 4 * id);
+        int to = buffer.getInt(offsets + 4 * (id + 1));
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(data + from + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sort the lines by form, and lines with the same form by their fields, leaving out duplicate lines.
+     * @param keys The key to sort each line by, e.g. its form or reversed form
+     * @return The indices of the distinct lines in sorted order
+     */
+    int[] sortedRows(String[] keys) {
+        Integer[] order = new Integer[forms.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> {
+            int c = keys[a].compareTo(keys[b]);
+            for (int f = 0; c == 0 && f < FIELDS; f++)
+                c = Integer.compare(field(a, f), field(b, f));
+            return c;
+        });
+        TIntArrayList rows = new TIntArrayList(order.length);
+        for (int i = 0; i < order.length; i++)
+            if (i == 0 || !forms.get(order[i]).equals(forms.get(order[i - 1])) || !sameFields(order[i], order[i - 1]))
+                rows.add(order[i]);
+        return rows.toArray();
+    }
+
+    /**
+     * @return The form of each line
+     */
+    String[] forms() {
+        return forms.toArray(new String[0]);
+    }
+
+    /**
+     * @return The form of each line, reversed char by char as the analyzer reads it
+     */
+    String[] reversedForms() {
+        String[] reversed = new String[forms.size()];
+        for (int i = 0; i < reversed.length; i++)
+            reversed[i] = StringUtils.reverse(forms.get(i));
+        return reversed;
+    }
+
+    private boolean sameFields(int a, int b) {
+        for (int f = 0; f < FIELDS; f++)
+            if (field(a, f) != field(b, f))
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,165 @@
+package de.tuebingen.sfs.utils;
+
+import gnu.trove.list.array.TCharArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An Aho-Corasick automaton for finding occurrences of a fixed set of literal strings in a single scan.
+ */
+public class AhoCorasick {
+
+    private static final int[] NONE = new int[0];
+
+    // Sorted transition labels of each state
+    private char[][] labels;
+    // Target states corresponding to the labels
+    private int[][] targets;
+    // Failure link of each state
+    private int[] fail;
+    // Patterns ending in each state (including those reachable via failure links)
+    private int[][] outputs;
+    // Length of each pattern
+    private int[] lengths;
+
+    /**
+     * Build the automaton for a set of patterns. Pattern ids are the indices in the array.
+     * @param patterns The literal strings to search for (empty strings are ignored)
+     */
+    public AhoCorasick(String[] patterns) {
+        List<TCharArrayList> lab = new ArrayList<>();
+        List<TIntArrayList> tar = new ArrayList<>();
+        List<TIntArrayList> out = new ArrayList<>();
+        lab.add(new TCharArrayList());
+        tar.add(new TIntArrayList());
+        out.add(new TIntArrayList());
+        lengths = new int[patterns.length];
+
+        // Build the trie
+        for (int p = 0; p < patterns.length; p++) {
+            String pattern = patterns[p];
+            lengths[p] = pattern.length();
+            if (pattern.isEmpty())
+                continue;
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                TCharArrayList l = lab.get(state);
+                int j = l.binarySearch(c);
+                if (j < 0) {
+                    j = -j - 1;
+                    l.insert(j, c);
+                    tar.get(state).insert(j, lab.size());
+                    lab.add(new TCharArrayList());
+                    tar.add(new TIntArrayList());
+                    out.add(new TIntArrayList());
+                }
+                state = tar.get(state).get(j);
+            }
+            out.get(state).add(p);
+        }
+
+        int n = lab.size();
+        labels = new char[n][];
+        targets = new int[n][];
+        for (int s = 0; s < n; s++) {
+            labels[s] = lab.get(s).toArray();
+            targets[s] = tar.get(s).toArray();
+        }
+
+        // Compute failure links breadth-first
+        fail = new int[n];
+        int[] queue = new int[n];
+        int head = 0;
+        int tail = 0;
+        for (int t : targets[0])
+            queue[tail++] = t;
+        while (head < tail) {
+            int s = queue[head++];
+            for (int j = 0; j < labels[s].length; j++) {
+                int t = targets[s][j];
+                int f = fail[s];
+                int next = step(f, labels[s][j]);
+                fail[t] = (next == t) ? 0 : next;
+                queue[tail++] = t;
+            }
+            out.get(s).addAll(out.get(fail[s]));
+        }
+
+        outputs = new int[n][];
+        for (int s = 0; s < n; s++)
+            outputs[s] = out.get(s).isEmpty() ? NONE : out.get(s).toArray();
+    }
+
+    /**
+     * @return The number of patterns
+     */
+    public int size() {
+        return lengths.length;
+    }
+
+    /**
+     * @param pattern A pattern id
+     * @return The length of that pattern
+     */
+    public int length(int pattern) {
+        return lengths[pattern];
+    }
+
+    /**
+     * @return The start state
+     */
+    public int start() {
+        return 0;
+    }
+
+    /**
+     * Follow the transition for a character, falling back along failure links if necessary.
+     * @param state The current state
+     * @param c The next input character
+     * @return The next state
+     */
+    public int step(int state, char c) {
+        while (true) {
+            int j = Arrays.binarySearch(labels[state], c);
+            if (j >= 0)
+                return targets[state][j];
+            if (state == 0)
+                return 0;
+            state = fail[state];
+        }
+    }
+
+    /**
+     * @param state A state
+     * @return The ids of all patterns ending in this state
+     */
+    public int[] matches(int state) {
+        return outputs[state];
+    }
+
+    /**
+     * @param state A state
+     * @return True if at least one pattern ends in this state
+     */
+    public boolean isMatch(int state) {
+        return outputs[state].length > 0;
+    }
+
+    /**
+     * @param s A string
+     * @return True if any of the patterns occurs in the string
+     */
+    public boolean containsAny(CharSequence s) {
+        int state = 0;
+        for (int i = 0; i < s.length(); i++) {
+            state = step(state, s.charAt(i));
+            if (outputs[state].length > 0)
+                return true;
+        }
+        return false;
+    }
+}
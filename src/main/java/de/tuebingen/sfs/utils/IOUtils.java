@@ -0,0 +1,108 @@
+package de.tuebingen.sfs.utils;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * UTF-8 readers and writers for large text files, using NIO channels and large buffers.
+ */
+public class IOUtils {
+
+    // Size of the buffers of readers and writers, in chars
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Open a file for reading through a file channel.
+     * @param file The file
+     * @return A buffered reader
+     * @throws IOException If the file cannot be opened
+     */
+    public static BufferedReader newReader(Path file) throws IOException {
+        return new BufferedReader(Channels.newReader(FileChannel.open(file, StandardOpenOption.READ), decoder(),
+                BUFFER_SIZE), BUFFER_SIZE);
+    }
+
+    /**
+     * Open a file for reading through a memory mapping, which avoids copying it from the kernel for large files.
+     * @param file The file
+     * @return A buffered reader
+     * @throws IOException If the file cannot be opened
+     */
+    public static BufferedReader newMappedReader(Path file) throws IOException {
+        return new BufferedReader(new MappedReader(file), BUFFER_SIZE);
+    }
+
+    /**
+     * @param in A stream of UTF-8 text
+     * @return A buffered reader for the stream
+     */
+    public static BufferedReader newReader(InputStream in) {
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Open a file for writing through a file channel. Write errors are not thrown by the writer, but must be
+     * checked with {@link PrintWriter#checkError()}.
+     * @param file The file
+     * @param append True to append to the file, false to overwrite it
+     * @return A buffered writer
+     * @throws IOException If the file cannot be opened
+     */
+    public static PrintWriter newWriter(Path file, boolean append) throws IOException {
+        return newWriter(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                (append) ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Create a writer for an open file channel, which writes at the current position of the channel. Write errors
+     * are not thrown by the writer, but must be checked with {@link PrintWriter#checkError()}.
+     * @param channel A channel of a file opened for writing
+     * @return A buffered writer, which closes the channel when it is closed
+     */
+    public static PrintWriter newWriter(FileChannel channel) {
+        return new PrintWriter(new BufferedWriter(Channels.newWriter(channel, encoder(), BUFFER_SIZE), BUFFER_SIZE));
+    }
+
+    /**
+     * Create a writer for a stream. Write errors are not thrown by the writer, but must be checked with
+     * {@link PrintWriter#checkError()}.
+     * @param out A stream to write UTF-8 text to
+     * @return A buffered writer for the stream
+     */
+    public static PrintWriter newWriter(OutputStream out) {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE));
+    }
+
+    /**
+     * @param out A writer
+     * @return A buffered writer writing to out
+     */
+    public static PrintWriter newWriter(Writer out) {
+        return (out instanceof PrintWriter) ? (PrintWriter) out : new PrintWriter(new BufferedWriter(out, BUFFER_SIZE));
+    }
+
+    /**
+     * @return A UTF-8 decoder replacing malformed input, like {@link InputStreamReader} does
+     */
+    static CharsetDecoder decoder() {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * @return A UTF-8 encoder replacing unmappable input, like {@link OutputStreamWriter} does
+     */
+    static CharsetEncoder encoder() {
+        return StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+}
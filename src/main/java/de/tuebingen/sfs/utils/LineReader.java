@@ -0,0 +1,79 @@
+package de.tuebingen.sfs.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the lines of a UTF-8 file and keeps track of the byte offset after the last line read, so reading can later
+ * be resumed from there. Lines end with a line feed, optionally preceded by a carriage return.
+ */
+public class LineReader implements Closeable {
+
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(IOUtils.BUFFER_SIZE);
+    // Bytes of the current line that were read so far
+    private byte[] line = new byte[256];
+    // Offset after the last line read
+    private long offset;
+
+    /**
+     * @param file The file to read
+     * @param offset The offset to start reading at, which should be the beginning of a line
+     * @throws IOException If the file cannot be opened
+     */
+    public LineReader(Path file, long offset) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        channel.position(offset);
+        this.offset = offset;
+        buffer.flip();
+    }
+
+    /**
+     * @return The next line without its line break, null at the end of the file
+     * @throws IOException If the file cannot be read
+     */
+    public String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int n = channel.read(buffer);
+                buffer.flip();
+                if (n < 0) {
+                    if (length == 0)
+                        return null;
+                    offset += length;
+                    return new String(line, 0, length, StandardCharsets.UTF_8);
+                }
+            }
+            byte b = buffer.get();
+            if (b == '\n') {
+                offset += length + 1;
+                if (length > 0 && line[length-1] == '\r')
+                    length--;
+                return new String(line, 0, length, StandardCharsets.UTF_8);
+            }
+            if (length == line.length)
+                line = Arrays.copyOf(line, 2 * length);
+            line[length++] = b;
+        }
+    }
+
+    /**
+     * @return The byte offset after the last line read
+     */
+    public long offset() {
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
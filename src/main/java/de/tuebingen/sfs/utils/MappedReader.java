@@ -0,0 +1,98 @@
+package de.tuebingen.sfs.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A reader decoding a UTF-8 file from memory mappings. Files larger than a single mapping can hold are mapped window
+ * by window.
+ */
+public class MappedReader extends Reader {
+
+    // Maximum number of bytes mapped at once
+    private static final long WINDOW = 1L << 28;
+
+    private FileChannel channel;
+    private long size;
+    // Offset of the current window in the file
+    private long start;
+    private MappedByteBuffer window;
+    private CharsetDecoder decoder = IOUtils.decoder();
+    // Decoded characters that have not been read yet
+    private CharBuffer chars = CharBuffer.allocate(IOUtils.BUFFER_SIZE);
+    // Whether the end of the file has been decoded completely
+    private boolean done;
+
+    /**
+     * @param file The file to read
+     * @throws IOException If the file cannot be opened or mapped
+     */
+    public MappedReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        size = channel.size();
+        map(0);
+        chars.flip();
+    }
+
+    /**
+     * Map the window starting at an offset.
+     * @param from The offset
+     * @throws IOException If the window cannot be mapped
+     */
+    private void map(long from) throws IOException {
+        start = from;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(WINDOW, size - from));
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (window == null)
+            throw new IOException("Reader closed");
+        if (len == 0)
+            return 0;
+        if (!chars.hasRemaining() && !fill())
+            return -1;
+        int n = Math.min(len, chars.remaining());
+        chars.get(cbuf, off, n);
+        return n;
+    }
+
+    /**
+     * Decode the next characters into the buffer.
+     * @return False if the end of the file has been reached
+     * @throws IOException If a window cannot be mapped
+     */
+    private boolean fill() throws IOException {
+        chars.clear();
+        while (chars.position() == 0 && !done) {
+            boolean last = start + window.limit() >= size;
+            CoderResult result = decoder.decode(window, chars, last);
+            if (result.isError())
+                result.throwException();
+            if (chars.position() > 0)
+                break;
+            if (last) {
+                decoder.flush(chars);
+                done = true;
+            }
+            else
+                // The window is used up except for an incomplete character, which the next one starts with
+                map(start + window.position());
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
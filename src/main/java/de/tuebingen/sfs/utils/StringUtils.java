@@ -71,6 +71,20 @@ public class StringUtils {
         return s.delete(s.length()-c.length(), s.length()).toString();
     }
 
+    /**
+     * Reverse a string char by char. Unlike {@link StringBuilder#reverse()}, surrogate pairs are reversed as well, so
+     * the result matches a string read one char at a time from its end.
+     * @param s A string
+     * @return The chars of s in reverse order
+     */
+    public static String reverse(CharSequence s) {
+        int n = s.length();
+        char[] reversed = new char[n];
+        for (int i = 0; i < n; i++)
+            reversed[n - 1 - i] = s.charAt(i);
+        return new String(reversed);
+    }
+
     public static void main(String[] args) {
         for (String s : split("aaaabbaaabbaabba", "bb"))
             System.out.println(s);
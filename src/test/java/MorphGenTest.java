@@ -1,14 +1,33 @@
 import junit.framework.TestCase;
+import de.tuebingen.sfs.morphgen.ColumnarLexicon;
+import de.tuebingen.sfs.morphgen.GenerationCache;
+import de.tuebingen.sfs.morphgen.GenerationListener;
+import de.tuebingen.sfs.morphgen.GenerationMetrics;
+import de.tuebingen.sfs.morphgen.GlossFilter;
 import de.tuebingen.sfs.morphgen.GlossedWord;
+import de.tuebingen.sfs.morphgen.HashedLexicon;
+import de.tuebingen.sfs.morphgen.MappedLexicon;
 import de.tuebingen.sfs.morphgen.MorphGen;
 import de.tuebingen.sfs.morphgen.MorphRule;
+import de.tuebingen.sfs.morphgen.MorphRuleResult;
+import de.tuebingen.sfs.morphgen.Paradigm;
+import de.tuebingen.sfs.morphgen.ReplaceRule;
+import de.tuebingen.sfs.morphgen.ReverseTrie;
+import de.tuebingen.sfs.morphgen.Rule;
+import de.tuebingen.sfs.morphgen.ShardedWriter;
+import de.tuebingen.sfs.morphgen.TraceListener;
 
 import static org.junit.Assert.assertThat;
 import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
 import static org.hamcrest.CoreMatchers.*;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class MorphGenTest extends TestCase {
@@ -247,4 +266,838 @@ public class MorphGenTest extends TestCase {
         assertEquals("hethel|er", new ArrayList<>(rykGen.generate("hethel|INE")).get(0).getForm());
         assertEquals("hethe<the>l|er", new ArrayList<>(rykGen.generate("hethel<>PC|INE")).get(0).getForm());
     }
+
+    /**
+     * Test that listeners are notified about rule applications and that the trace listener prints them.
+     */
+    public void testListenersMal() {
+        MorphGen malGen = new MorphGen("/mal-rules-simple.tsv", "/mal-affixes.tsv");
+        List<String> matched = new ArrayList<>();
+        malGen.addListener(new GenerationListener() {
+            @Override
+            public void ruleMatched(Rule rule, GlossedWord in, String[] outputs) {
+                matched.add(rule.getName());
+            }
+        });
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        malGen.addListener(new TraceListener(new PrintStream(trace)));
+
+        malGen.generate("pa_la;m|PL|GEN");
+        assertEquals(Arrays.asList("[*];m|PL\t[1];n|;na.l", "[*].l|GEN\t[1].l|u.te"), matched);
+        assertTrue(trace.toString().contains("[*];m|PL\t[1];n|;na.l pa_la;m|PL|GEN"));
+    }
+
+    /**
+     * Test the per-rule metrics of the Malayalam morph gen.
+     */
+    public void testMetricsMal() {
+        MorphGen malGen = new MorphGen("/mal-rules-simple.tsv", "/mal-affixes.tsv");
+        GenerationMetrics metrics = malGen.enableMetrics();
+        malGen.generate("pa_la;m|PL|GEN");
+        malGen.generate("ka.tal GEN");
+        malGen.generate("ka.tal DAT");
+
+        List<Rule> unused = metrics.getUnusedRules();
+        assertThat(unused, hasSize(1));
+        assertEquals("[*]|GEN\t[1]|u.te", unused.get(0).getName());
+        assertEquals(1, metrics.getFiltered());
+        String report = metrics.report();
+        assertTrue(report.contains("[*];m|PL [1];n|;na.l"));
+        assertTrue(report.contains("Never matched:\n3\t[*]|GEN [1]|u.te"));
+    }
+
+    /**
+     * Test that rules whose literals do not occur in an input are skipped without changing the output, also when
+     * words are shared between threads.
+     */
+    public void testRuleIndexMal() {
+        Map<String, String[]> malGroups = new HashMap<>();
+        List<Rule> rules = Arrays.asList(
+                new MorphRule("[*];m|PL", new String[]{"[1];n|;na.l"}, malGroups),
+                new MorphRule("[*][!l r]|GEN", new String[]{"[1][2]|in_re"}, malGroups),
+                new MorphRule("[*]|GEN", new String[]{"[1]|u.te"}, malGroups),
+                new MorphRule("[*]|DAT", new String[]{"[1]|kk^u"}, malGroups));
+        // Wrapped rules do not tell their literals, so they are always attempted
+        List<Rule> wrapped = new ArrayList<>();
+        for (Rule rule : rules)
+            wrapped.add(new Rule(rule.getName()) {
+                @Override
+                public MorphRuleResult apply(String orig, String s) {
+                    return rule.apply(orig, s);
+                }
+            });
+        MorphGen indexed = new MorphGen(rules);
+        MorphGen unindexed = new MorphGen(wrapped);
+        int[] attempts = new int[2];
+        indexed.addListener(new GenerationListener() {
+            @Override
+            public void ruleAttempted(Rule rule, GlossedWord in) {
+                attempts[0]++;
+            }
+        });
+        unindexed.addListener(new GenerationListener() {
+            @Override
+            public void ruleAttempted(Rule rule, GlossedWord in) {
+                attempts[1]++;
+            }
+        });
+
+        String[] ins = {"pa_la;m|PL|GEN", "ka.tal|GEN", "ka.tal|DAT", "pa_la;m|PL"};
+        for (String in : ins)
+            assertEquals(unindexed.generate(in), indexed.generate(in));
+        assertEquals(4 * ins.length, attempts[1]);
+        assertTrue(attempts[0] < attempts[1]);
+
+        // Each generator has its own index, so the signatures cached in the shared words keep being replaced
+        Set<GlossedWord> shared = new HashSet<>();
+        for (String in : ins)
+            shared.add(new GlossedWord(in, in));
+        Set<GlossedWord> expected = unindexed.generate(shared);
+        assertTrue(java.util.stream.IntStream.range(0, 200).parallel()
+                .allMatch(i -> new MorphGen(rules).generate(shared).equals(expected)));
+    }
+
+    /**
+     * Test that rules with many variables fail quickly on long inputs instead of backtracking exponentially.
+     */
+    public void testLongInputMatching() {
+        MorphRule many = new MorphRule("[*]a[*]a[*]a[*]a[*]a[*]a[*]b", new String[]{"[1]"}, new HashMap<>());
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 300; i++)
+            s.append("a|");
+        assertNull(many.apply(s.toString()));
+        assertEquals("xy", many.apply("xyaaaaaaz|b").getResults()[0]);
+    }
+
+    /**
+     * Test replace rules, with and without a single pass over the input.
+     */
+    public void testReplaceRule() {
+        Map<String, String[]> groups = new HashMap<>();
+        groups.put("#C", new String[]{"k", "t", "p", "ṭ", "t"});
+        groups.put("#G", new String[]{"g", "d", "b", "ḍ", "r"});
+        groups.put("#L", new String[]{"a", "b"});
+        groups.put("#M", new String[]{"b", "c"});
+        String in = "kaṭṭi|patt|tak";
+
+        ReplaceRule voicing = new ReplaceRule("[#C]", new String[]{"[#G]"}, groups, "");
+        assertTrue(voicing.isSinglePass());
+        assertEquals("gaḍḍi|badd|dag", voicing.apply(in).getResults()[0]);
+
+        ReplaceRule chain = new ReplaceRule("[#L]", new String[]{"[#M]"}, groups, "");
+        assertFalse(chain.isSinglePass());
+        assertEquals("ccc", chain.apply("abc").getResults()[0]);
+
+        ReplaceRule regex = new ReplaceRule("[!t+ k]", new String[]{"x"}, groups, "");
+        assertFalse(regex.isSinglePass());
+        assertEquals("xaṭṭi|pax|xax", regex.apply(in).getResults()[0]);
+    }
+
+    /**
+     * Test that the gloss filter finds glosses and adjacent separators in generated forms.
+     */
+    public void testGlossFilter() {
+        GlossFilter filter = new GlossFilter(Arrays.asList("PL", "GEN", "AFF:joy", "C+"));
+        assertTrue(filter.test("pala|GEN"));
+        assertTrue(filter.test("a AFF:joy"));
+        assertTrue(filter.test("xC+y"));
+        assertTrue(filter.test("pala|&ka"));
+        assertFalse(filter.test("pala|ka&ḷ"));
+        assertFalse(filter.test("AFF:jo"));
+        assertFalse(GlossFilter.NONE.test("pala|GEN"));
+
+        MorphGen gen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        assertTrue(gen.getGlossFilter().test("pala;n|GEN"));
+        assertFalse(gen.getGlossFilter().test("palayuṭe"));
+    }
+
+    /**
+     * Test that unfolding with several threads gives the same output as a single-threaded run.
+     */
+    public void testParallelUnfoldMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        File sequential = tempFile("unfold", ".tsv");
+        File parallel = tempFile("unfold", ".tsv");
+
+        malGen.unfoldVocabulary("/mal-dict-overlap.tsv", sequential.getPath());
+        malGen.unfoldVocabulary("/mal-dict-overlap.tsv", parallel.getPath(), 4);
+        List<String> expected = Files.readAllLines(sequential.toPath());
+        assertEquals(expected, Files.readAllLines(parallel.toPath()));
+
+        Set<String> translations = expected.stream().map(line -> line.split("\t")[3]).collect(Collectors.toSet());
+        assertEquals(new HashSet<>(Arrays.asList("cat", "have_become_recently/temporarily_be")), translations);
+    }
+
+    /**
+     * Test that streamed inflections equal the complete paradigm and that taking only a few of them does little work.
+     */
+    public void testStreamingGenMal() {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        for (String[] entry : new String[][]{{"puucca", "n"}, {"aayirikkuka", "v"}, {"ayaykkuka", "v"}}) {
+            Set<GlossedWord> expected = malGen.getInflections(entry[0], entry[1]);
+            List<GlossedWord> streamed = malGen.getInflectionStream(entry[0], entry[1], true).collect(Collectors.toList());
+            assertEquals(expected.size(), streamed.size());
+            assertEquals(expected, new HashSet<>(streamed));
+        }
+        assertEquals(malGen.generate("pala;m|PL|GEN"), malGen.generateStream("pala;m|PL|GEN", false).collect(Collectors.toSet()));
+
+        int[] attempts = new int[1];
+        malGen.addListener(new GenerationListener() {
+            @Override
+            public void ruleAttempted(Rule rule, GlossedWord in) {
+                attempts[0]++;
+            }
+        });
+        malGen.getInflections("aayirikkuka", "v");
+        int all = attempts[0];
+        attempts[0] = 0;
+        assertThat(malGen.getInflectionStream("aayirikkuka", "v", false).limit(3).collect(Collectors.toList()), hasSize(3));
+        assertTrue(attempts[0] < all / 10);
+    }
+
+    /**
+     * Test that cached generation results are reused, unmodifiable and evicted once the cache is full.
+     */
+    public void testGenerationCacheMal() {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        Set<GlossedWord> expected = malGen.getInflections("puucca", "n");
+        Set<GlossedWord> expectedGen = malGen.generate("pala;m|PL|GEN");
+        GenerationCache cache = malGen.enableCache(1000);
+
+        Set<GlossedWord> first = malGen.getInflections("puucca", "n");
+        assertEquals(expected, first);
+        assertSame(first, malGen.getInflections("puucca", "n"));
+        assertEquals(expectedGen, malGen.generate("pala;m|PL|GEN"));
+        assertEquals(expectedGen, malGen.generate("pala;m|PL|GEN"));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        try {
+            first.clear();
+            fail("Cached results must be unmodifiable");
+        }
+        catch (UnsupportedOperationException e) {
+            assertEquals(expected, malGen.getInflections("puucca", "n"));
+        }
+
+        for (int i = 0; i < 2000; i++)
+            malGen.generate("pala" + i + ";m|PL|GEN");
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getWeight() <= 1000);
+    }
+
+    /**
+     * Test that paradigm automata enumerate, count and index the cells of a large paradigm without expanding it.
+     */
+    public void testParadigmAutomatonRyk() {
+        Paradigm verbs = new Paradigm("(APPL&ESS || APPL&DIR || APPL&LAT || APPL&TRA)",
+                "PST (AFF:fear || AFF:joy || AFF:sad || AFF:regret || AFF:hopeful || AFF:longing || AFF:dissatisfied || AFF:disgust || AFF:amused || AFF:pleased || AFF:angry || AFF:admiring || AFF:determined || AFF:shock || AFF:curious) PASS (ADE || ALL || ABL || INE || ILL || ELA || INS || COM || ABE || CAU || TER || TMP) (REL&P || REL&A || ARG&FAC&P || ARG&FAC&A || ARG&INT&P || ARG&INT&A)");
+        assertEquals(5L * 2 * 16 * 2 * 13 * 7, verbs.size());
+
+        List<String> cells = new ArrayList<>();
+        for (Iterator<String> it = verbs.iterator("jara"); it.hasNext(); )
+            cells.add(it.next());
+        assertEquals(verbs.size(), cells.size());
+        assertEquals(cells.size(), new HashSet<>(cells).size());
+        for (int k = 0; k < cells.size(); k += 97)
+            assertEquals(cells.get(k), verbs.get("jara", k));
+        assertTrue(cells.contains("APPL&DIR jara PST AFF:joy PASS ILL REL&A"));
+        assertTrue(cells.contains("jara"));
+
+        Paradigm numbers = new Paradigm("", "(+1_*10 || +2) (*10 || *100_+1)");
+        assertEquals(new HashSet<>(Arrays.asList("6", "6 +1 *10", "6 +2", "6 *10", "6 *100 +1", "6 +1 *10 *10",
+                "6 +1 *10 *100 +1", "6 +2 *10", "6 +2 *100 +1")), numbers.getParadigm("6"));
+        assertEquals(9, numbers.size());
+    }
+
+    /**
+     * Test that inflecting several words in a single pass gives the same paradigms as inflecting them one by one.
+     */
+    public void testBatchInflectionsMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        List<String[]> entries = new ArrayList<>();
+        try (BufferedReader read = new BufferedReader(new InputStreamReader(new FileInputStream(new File("src/test/resources/mal-dict.tsv")), "UTF-8"))) {
+            for (String line = read.readLine(); line != null && entries.size() < 60; line = read.readLine()) {
+                String[] fields = line.split("\t");
+                if (fields.length == 3)
+                    entries.add(fields);
+            }
+        }
+        entries.add(new String[]{"pala;m", "n"});
+        entries.add(new String[]{"pala;m", "n"});
+        List<Set<GlossedWord>> batch = malGen.getInflections(entries);
+        assertEquals(entries.size(), batch.size());
+        for (int e = 0; e < entries.size(); e++)
+            assertEquals(malGen.getInflections(entries.get(e)[0], entries.get(e)[1]), batch.get(e));
+        assertFalse(batch.get(entries.size() - 1).isEmpty());
+    }
+
+    /**
+     * Test that analyzers built while unfolding, from an unfolded file and from a snapshot all hold the unfolded
+     * analyses.
+     */
+    public void testReverseTrieMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        File unfolded = tempFile("unfold", ".tsv");
+        File snapshot = tempFile("trie", ".bin");
+        Map<String, Set<List<String>>> expected = unfold(malGen, "/mal-dict-overlap.tsv", unfolded);
+        ReverseTrie analyzer = malGen.buildAnalyzer("/mal-dict-overlap.tsv");
+        analyzer.write(snapshot.getPath());
+        ReverseTrie fromFile = ReverseTrie.readUnfolded(unfolded.getPath());
+        ReverseTrie fromSnapshot = ReverseTrie.read(snapshot.getPath());
+
+        assertEquals(expected.size(), analyzer.size());
+        for (ReverseTrie trie : Arrays.asList(analyzer, fromFile, fromSnapshot)) {
+            assertTrue(expected.keySet().stream().allMatch(trie::contains));
+            assertAnalyses(expected, trie::get);
+        }
+
+        String form = expected.keySet().iterator().next();
+        assertNull(analyzer.get("xyz" + form.substring(1)));
+        assertEquals(3, analyzer.suffixSearch("xyz" + form));
+        assertEquals(-1, analyzer.suffixSearch(""));
+
+        // Forms are read char by char from the end, also across surrogate pairs
+        ReverseTrie.Builder builder = new ReverseTrie.Builder();
+        builder.addLine("ka\uD835\uDC00\tka|\uD835\uDC00\t\tword\t|X");
+        ReverseTrie astral = builder.build();
+        assertTrue(astral.contains("ka\uD835\uDC00"));
+        assertEquals(0, astral.suffixSearch("ka\uD835\uDC00"));
+    }
+
+    /**
+     * Test that a memory-mapped lexicon holds exactly the analyses of the unfolded forms.
+     */
+    public void testMappedLexiconMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        File unfolded = tempFile("unfold", ".tsv");
+        File compiled = tempFile("lexicon", ".bin");
+        TreeMap<String, Set<List<String>>> expected = unfold(malGen, "/mal-dict-overlap.tsv", unfolded);
+        MappedLexicon.compile(unfolded.getPath(), compiled.getPath());
+        MappedLexicon lexicon = MappedLexicon.open(compiled.getPath());
+
+        assertEquals(expected.size(), lexicon.size());
+        assertTrue(expected.keySet().stream().allMatch(lexicon::contains));
+        assertAnalyses(expected, lexicon::get);
+
+        String form = expected.firstKey();
+        assertNull(lexicon.get("xyz" + form.substring(1)));
+        assertEquals(3, lexicon.suffixSearch("xyz" + form));
+        assertEquals(new ArrayList<>(expected.keySet()), lexicon.getWithPrefix(""));
+        String prefix = form.substring(0, 2);
+        assertEquals(new ArrayList<>(expected.subMap(prefix, prefix + Character.MAX_VALUE).keySet()),
+                lexicon.getWithPrefix(prefix));
+        String suffix = form.substring(form.length() - 2);
+        Set<String> endings = new HashSet<>();
+        for (String f : expected.keySet())
+            if (f.endsWith(suffix))
+                endings.add(f);
+        assertEquals(endings, new HashSet<>(lexicon.getWithSuffix(suffix)));
+
+        // Suffixes are read char by char from the end, also across surrogate pairs
+        File astralUnfolded = tempFile("unfold", ".tsv");
+        File astralCompiled = tempFile("lexicon", ".bin");
+        Files.write(astralUnfolded.toPath(), Arrays.asList("ka\uD835\uDC00\tka|\uD835\uDC00\t\tword\t|X"));
+        MappedLexicon.compile(astralUnfolded.getPath(), astralCompiled.getPath());
+        MappedLexicon astral = MappedLexicon.open(astralCompiled.getPath());
+        assertTrue(astral.contains("ka\uD835\uDC00"));
+        assertEquals(0, astral.suffixSearch("ka\uD835\uDC00"));
+        assertEquals(Collections.singletonList("ka\uD835\uDC00"), astral.getWithSuffix("\uD835\uDC00"));
+    }
+
+    /**
+     * Test that a hashed lexicon holds exactly the analyses of the unfolded forms and rejects other words.
+     */
+    public void testHashedLexiconMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        File unfolded = tempFile("unfold", ".tsv");
+        File compiled = tempFile("lexicon", ".bin");
+        Map<String, Set<List<String>>> expected = unfold(malGen, "/mal-dict-overlap.tsv", unfolded);
+        HashedLexicon.compile(unfolded.getPath(), compiled.getPath());
+        HashedLexicon lexicon = HashedLexicon.open(compiled.getPath());
+
+        assertEquals(expected.size(), lexicon.size());
+        assertTrue(expected.keySet().stream().allMatch(lexicon::contains));
+        assertAnalyses(expected, lexicon::get);
+        for (String form : expected.keySet()) {
+            assertFalse(lexicon.contains("xyz" + form));
+            assertNull(lexicon.get(form + "xyz"));
+        }
+    }
+
+    /**
+     * Test a hashed lexicon with enough forms that the last buckets have to search long for free slots.
+     */
+    public void testLargeHashedLexicon() throws IOException {
+        File unfolded = tempFile("unfold", ".tsv");
+        File compiled = tempFile("lexicon", ".bin");
+        int n = 300000;
+        try (PrintWriter writ = new PrintWriter(Files.newBufferedWriter(unfolded.toPath()))) {
+            for (int i = 0; i < n; i++)
+                writ.println("form" + i + "\tform|" + i + "\t\tword\t" + (i % 7));
+        }
+        HashedLexicon.compile(unfolded.getPath(), compiled.getPath());
+        HashedLexicon lexicon = HashedLexicon.open(compiled.getPath());
+        assertEquals(n, lexicon.size());
+        for (int i = 0; i < n; i++) {
+            List<String[]> analyses = lexicon.get("form" + i);
+            assertEquals(1, analyses.size());
+            assertEquals("form|" + i, analyses.get(0)[0]);
+            assertEquals(String.valueOf(i % 7), analyses.get(0)[3]);
+        }
+        for (int i = n; i < 2 * n; i++)
+            assertFalse(lexicon.contains("form" + i));
+    }
+
+    /**
+     * Test that incremental generation gives the same inflections as generating each template on its own, with less
+     * than half the rule applications for verbs, counting those to partial templates.
+     */
+    public void testIncrementalGenMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        MorphGen incGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        incGen.setIncremental(true);
+        assertTrue(incGen.isIncremental());
+        assertSameInflections(malGen, incGen);
+
+        int[] attempts = new int[1];
+        GenerationListener counter = new GenerationListener() {
+            @Override
+            public void ruleAttempted(Rule rule, GlossedWord in) {
+                attempts[0]++;
+            }
+        };
+        malGen.addListener(counter);
+        incGen.addListener(counter);
+        // Verb templates share long prefixes, so more than half of the rule applications are saved
+        List<String> verbs = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get("src/test/resources/mal-dict.tsv"))) {
+            String[] fields = line.split("\t");
+            if (fields.length == 3 && fields[1].equals("v"))
+                verbs.add(fields[0]);
+        }
+        assertFalse(verbs.isEmpty());
+        for (String verb : verbs)
+            malGen.getInflections(verb, "v");
+        int all = attempts[0];
+        attempts[0] = 0;
+        for (String verb : verbs)
+            incGen.getInflections(verb, "v");
+        assertTrue(2 * attempts[0] < all);
+    }
+
+    /**
+     * Test that compiled rules generate exactly the same inflections as the rule automata.
+     */
+    public void testCompiledRulesMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        MorphGen compiledGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        assertTrue(compiledGen.setCompiled(true) > 0);
+        assertSameInflections(malGen, compiledGen);
+
+        Map<String, String[]> rykGroups = new HashMap<>();
+        rykGroups.put("#C", new String[]{"kh","th","ph","sh","h","k","t","p","r","q","g","d","b","l"});
+        rykGroups.put("#sep", new String[]{"|","&","<",">","<>"});
+        MorphRule rykINE1 = new MorphRule("[stem][?#sep][#C]|INE", new String[]{"[stem][1][2]|er"}, rykGroups);
+        assertTrue(rykINE1.setCompiled(true));
+        assertEquals("hethe<the>l|er", rykINE1.apply("hethe<the>l|INE").getResults()[0]);
+    }
+
+    /**
+     * Test that a generator read from a compiled rule set generates and unfolds exactly like the original one.
+     */
+    public void testCompiledRuleSetMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        File compiled = tempFile("rules", ".bin");
+        malGen.write(compiled.getPath());
+        MorphGen loadedGen = MorphGen.read(compiled.getPath());
+
+        assertSameInflections(malGen, loadedGen);
+        assertEquals(malGen.generate("kaa.nuka{pst=tu}|PST|STAT|NEG"), loadedGen.generate("kaa.nuka{pst=tu}|PST|STAT|NEG"));
+        assertTrue(loadedGen.getGlossFilter().test("pala;n|GEN"));
+        assertTrue(loadedGen.setCompiled(true) > 0);
+
+        File unfolded = tempFile("unfold", ".tsv");
+        File loadedUnfolded = tempFile("unfold", ".tsv");
+        malGen.unfoldVocabulary("/mal-dict-overlap.tsv", unfolded.getPath());
+        loadedGen.unfoldVocabulary("/mal-dict-overlap.tsv", loadedUnfolded.getPath());
+        assertEquals(Files.readAllLines(unfolded.toPath()),
+                Files.readAllLines(loadedUnfolded.toPath()));
+
+        try (FileOutputStream out = new FileOutputStream(compiled)) {
+            out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        }
+        try {
+            MorphGen.read(compiled.getPath());
+            fail("Read a file that is not a compiled rule set");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that rules, paradigms and dictionaries read from files, readers and streams give the same results as from
+     * resources.
+     */
+    public void testFileAndStreamIOMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        MorphGen pathGen = new MorphGen(Paths.get("src/main/resources/mal-rules.tsv"),
+                Paths.get("src/main/resources/mal-affixes.tsv"));
+        MorphGen readerGen;
+        try (Reader rules = new InputStreamReader(new FileInputStream("src/main/resources/mal-rules.tsv"), "UTF-8");
+             Reader paradigms = new InputStreamReader(new FileInputStream("src/main/resources/mal-affixes.tsv"), "UTF-8")) {
+            readerGen = new MorphGen(rules, paradigms);
+        }
+        assertEquals(malGen.getInflections("puucca", "n"), pathGen.getInflections("puucca", "n"));
+        assertEquals(malGen.getInflections("aayirikkuka", "v"), readerGen.getInflections("aayirikkuka", "v"));
+
+        Path dict = Paths.get("src/test/resources/mal-dict-overlap.tsv");
+        File resource = tempFile("unfold", ".tsv");
+        File path = tempFile("unfold", ".tsv");
+        File mapped = tempFile("unfold", ".tsv");
+        malGen.unfoldVocabulary("/mal-dict-overlap.tsv", resource.getPath());
+        List<String> expected = Files.readAllLines(resource.toPath());
+        malGen.unfoldVocabulary(dict, path.toPath(), false, 1);
+        assertEquals(expected, Files.readAllLines(path.toPath()));
+        malGen.unfoldVocabulary(dict, mapped.toPath(), false, 2, true);
+        assertEquals(expected, Files.readAllLines(mapped.toPath()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(dict.toFile())) {
+            malGen.unfoldVocabulary(in, out, 1);
+        }
+        assertEquals(new String(Files.readAllBytes(resource.toPath()), "UTF-8"), out.toString("UTF-8"));
+
+        // Appending the rest of a dictionary gives the same output as unfolding all of it at once
+        List<String> entries = Files.readAllLines(dict);
+        File first = tempFile("dict", ".tsv");
+        File rest = tempFile("dict", ".tsv");
+        Files.write(first.toPath(), entries.subList(0, 1));
+        Files.write(rest.toPath(), entries.subList(1, entries.size()));
+        malGen.unfoldVocabulary(first.toPath(), path.toPath(), false, 1);
+        malGen.unfoldVocabulary(rest.toPath(), path.toPath(), true, 1);
+        assertEquals(expected, Files.readAllLines(path.toPath()));
+        assertEquals(malGen.buildAnalyzer("/mal-dict-overlap.tsv").size(), malGen.buildAnalyzer(dict, 1).size());
+    }
+
+    /**
+     * Test that a columnar lexicon is much smaller than the unfolded file and holds exactly its lines.
+     */
+    public void testColumnarLexiconMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        File unfolded = tempFile("unfold", ".tsv");
+        File compiled = tempFile("lexicon", ".bin");
+        File direct = tempFile("lexicon", ".bin");
+        Map<String, Set<List<String>>> expected = unfold(malGen, "/mal-dict.tsv", unfolded);
+        ColumnarLexicon.compile(unfolded.getPath(), compiled.getPath());
+        malGen.unfoldColumnar("/mal-dict.tsv", direct.getPath(), 2);
+        assertTrue(Arrays.equals(Files.readAllBytes(compiled.toPath()),
+                Files.readAllBytes(direct.toPath())));
+        assertTrue(compiled.length() < unfolded.length() / 4);
+        ColumnarLexicon lexicon = ColumnarLexicon.open(compiled.getPath());
+
+        TreeSet<List<String>> lines = new TreeSet<>((a, b) -> {
+            for (int i = 0; i < a.size(); i++) {
+                int c = a.get(i).compareTo(b.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        });
+        for (String line : Files.readAllLines(unfolded.toPath()))
+            lines.add(Arrays.asList(line.split("\t", -1)));
+        assertEquals(expected.size(), lexicon.size());
+        assertEquals(lines.size(), lexicon.rows());
+        Set<List<String>> rows = new HashSet<>();
+        String prev = "";
+        for (String[] row : lexicon) {
+            assertTrue(prev.compareTo(row[0]) <= 0);
+            prev = row[0];
+            rows.add(Arrays.asList(row));
+        }
+        assertEquals(new HashSet<>(lines), rows);
+        assertAnalyses(expected, lexicon::get);
+        assertNull(lexicon.get(""));
+        assertFalse(lexicon.contains(lines.first().get(0) + "xyz"));
+        assertFalse(lexicon.contains("\uffff"));
+    }
+
+    /**
+     * Test that sharded output holds all unfolded lines, with shards and blocks as listed in the manifest.
+     */
+    public void testShardedUnfoldMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        File unfolded = tempFile("unfold", ".tsv");
+        Path dir = Files.createTempDirectory("shards");
+        malGen.unfoldVocabulary("/mal-dict.tsv", unfolded.getPath());
+        malGen.unfoldSharded("/mal-dict.tsv", dir.toString(), 3, 2);
+
+        List<String> expected = Files.readAllLines(unfolded.toPath());
+        List<String> manifest = Files.readAllLines(dir.resolve(ShardedWriter.MANIFEST));
+        assertEquals(4, manifest.size());
+        List<String> lines = new ArrayList<>();
+        long rows = 0;
+        for (int s = 0; s < 3; s++) {
+            Path shard = dir.resolve(ShardedWriter.shardName(s, 3));
+            String[] entry = manifest.get(s + 1).split("\t");
+            assertEquals(shard.getFileName().toString(), entry[0]);
+            assertEquals(Files.size(shard), Long.parseLong(entry[2]));
+            List<Long> blocks = ShardedWriter.blocks(shard);
+            assertEquals(Integer.parseInt(entry[4]), blocks.size());
+            List<String> shardLines = new ArrayList<>();
+            try (BufferedReader read = new BufferedReader(new InputStreamReader(
+                    new java.util.zip.GZIPInputStream(new FileInputStream(shard.toFile())), "UTF-8"))) {
+                for (String line = read.readLine(); line != null; line = read.readLine()) {
+                    assertEquals(s, Math.floorMod(line.substring(0, line.indexOf('\t')).hashCode(), 3));
+                    shardLines.add(line);
+                }
+            }
+            // Every block can be read on its own
+            List<String> blockLines = new ArrayList<>();
+            try (RandomAccessFile file = new RandomAccessFile(shard.toFile(), "r")) {
+                for (int b = 0; b < blocks.size(); b++) {
+                    long end = (b + 1 < blocks.size()) ? blocks.get(b + 1) : Files.size(shard);
+                    byte[] member = new byte[(int) (end - blocks.get(b))];
+                    file.seek(blocks.get(b));
+                    file.readFully(member);
+                    try (BufferedReader read = new BufferedReader(new InputStreamReader(
+                            new java.util.zip.GZIPInputStream(new ByteArrayInputStream(member)), "UTF-8"))) {
+                        for (String line = read.readLine(); line != null; line = read.readLine())
+                            blockLines.add(line);
+                    }
+                }
+            }
+            assertEquals(shardLines, blockLines);
+            assertEquals(Long.parseLong(entry[1]), shardLines.size());
+            rows += shardLines.size();
+            lines.addAll(shardLines);
+        }
+        assertEquals(expected.size(), rows);
+        Collections.sort(expected);
+        Collections.sort(lines);
+        assertEquals(expected, lines);
+    }
+
+    /**
+     * Test that sorted output merges the analyses of each form, whether it is sorted in memory or in spilled runs.
+     */
+    public void testSortedUnfoldMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        File inMemory = tempFile("sorted", ".tsv");
+        File spilled = tempFile("sorted", ".tsv");
+        TreeMap<String, Set<List<String>>> expected = unfold(malGen, "/mal-dict.tsv", tempFile("unfold", ".tsv"));
+        malGen.unfoldSorted("/mal-dict.tsv", inMemory.getPath(), 2);
+        // A tiny memory limit spills hundreds of runs, which are merged in several passes
+        malGen.unfoldSorted(Paths.get("src/test/resources/mal-dict.tsv"), spilled.toPath(), 4000, 1);
+        List<String> sorted = Files.readAllLines(inMemory.toPath());
+        assertEquals(sorted, Files.readAllLines(spilled.toPath()));
+
+        assertEquals(expected.size(), sorted.size());
+        Iterator<Map.Entry<String, Set<List<String>>>> entries = expected.entrySet().iterator();
+        boolean merged = false;
+        for (String line : sorted) {
+            Map.Entry<String, Set<List<String>>> entry = entries.next();
+            String[] fields = line.split("\t", -1);
+            assertEquals(entry.getKey(), fields[0]);
+            assertEquals(0, (fields.length - 1) % 4);
+            Set<List<String>> analyses = new HashSet<>();
+            for (int a = 1; a < fields.length; a += 4)
+                analyses.add(Arrays.asList(fields).subList(a, a + 4));
+            assertEquals(entry.getValue(), analyses);
+            assertEquals(analyses.size(), (fields.length - 1) / 4);
+            merged |= analyses.size() > 1;
+        }
+        assertTrue(merged);
+
+        // Merged lines are read like separate ones
+        File fromSorted = tempFile("lexicon", ".bin");
+        HashedLexicon.compile(inMemory.getPath(), fromSorted.getPath());
+        HashedLexicon lexicon = HashedLexicon.open(fromSorted.getPath());
+        assertEquals(expected.size(), lexicon.size());
+        for (Map.Entry<String, Set<List<String>>> entry : expected.entrySet())
+            assertEquals(entry.getValue().size(), lexicon.get(entry.getKey()).size());
+    }
+
+    /**
+     * Test that incremental unfolding only regenerates entries affected by changes to the dictionary or rules, and
+     * produces the same output as a complete run.
+     */
+    public void testIncrementalUnfoldMal() throws IOException {
+        Path dir = Files.createTempDirectory("incremental");
+        Path rules = dir.resolve("rules.tsv");
+        Path affixes = dir.resolve("affixes.tsv");
+        Path dict = dir.resolve("dict.tsv");
+        Path unfolded = dir.resolve("unfolded.tsv");
+        Path expected = dir.resolve("expected.tsv");
+        Files.copy(Paths.get("src/test/resources/mal-rules.tsv"), rules);
+        Files.copy(Paths.get("src/test/resources/mal-affixes.tsv"), affixes);
+        Files.copy(Paths.get("src/test/resources/mal-dict.tsv"), dict);
+        try {
+            MorphGen malGen = new MorphGen(rules, affixes);
+            int entries = malGen.unfoldIncremental(dict, unfolded, 1);
+            assertTrue(entries > 250);
+            malGen.unfoldVocabulary(dict, expected, false, 1);
+            assertEquals(Files.readAllLines(expected),
+                    Files.readAllLines(unfolded));
+
+            // Nothing changed
+            assertEquals(0, malGen.unfoldIncremental(dict, unfolded, 2));
+            assertEquals(Files.readAllLines(expected),
+                    Files.readAllLines(unfolded));
+
+            // A changed and a new entry
+            List<String> lines = new ArrayList<>(Files.readAllLines(dict));
+            lines.replaceAll(line -> line.equals("nii\tprn\tyou") ? "nii\tprn\tthou" : line);
+            lines.add("kuppi\tn\tbottle");
+            Files.write(dict, lines);
+            assertEquals(2, malGen.unfoldIncremental(dict, unfolded, 1));
+            malGen.unfoldVocabulary(dict, expected, false, 1);
+            assertEquals(Files.readAllLines(expected),
+                    Files.readAllLines(unfolded));
+
+            // A changed rule only affects the entries it was attempted on
+            lines = new ArrayList<>(Files.readAllLines(rules));
+            lines.replaceAll(line -> line.equals("#nii|ACC\tninn|e") ? "#nii|ACC\tninn|ee" : line);
+            Files.write(rules, lines);
+            malGen = new MorphGen(rules, affixes);
+            int regenerated = malGen.unfoldIncremental(dict, unfolded, 2);
+            assertTrue(regenerated > 0 && regenerated < 20);
+            malGen.unfoldVocabulary(dict, expected, false, 1);
+            assertEquals(Files.readAllLines(expected),
+                    Files.readAllLines(unfolded));
+            assertTrue(Files.readAllLines(unfolded).stream().anyMatch(line -> line.contains("ninnee")));
+        }
+        finally {
+            for (Path file : Files.list(dir).collect(Collectors.toList()))
+                Files.delete(file);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Test that an interrupted unfolding run can be resumed from its last checkpoint with the same result as an
+     * uninterrupted run.
+     */
+    public void testResumableUnfoldMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        Path dict = Paths.get("src/test/resources/mal-dict.tsv");
+        File expected = tempFile("unfold", ".tsv");
+        File resumed = tempFile("resumed", ".tsv");
+        Path checkpoint = Paths.get(resumed.getPath() + ".ckpt");
+        Path log = Paths.get(resumed.getPath() + ".ckpt.forms");
+        malGen.unfoldVocabulary(dict, expected.toPath(), false, 1);
+
+        for (int threads : new int[]{1, 3}) {
+            // Interrupt the run in the middle of an entry, after some checkpoints
+            GenerationListener crash = new GenerationListener() {
+                int attempts = 0;
+                @Override
+                public void ruleAttempted(Rule rule, GlossedWord in) {
+                    if (++attempts == 100000)
+                        throw new IllegalStateException("Interrupted");
+                }
+            };
+            malGen.addListener(crash);
+            try {
+                malGen.unfoldResumable(dict, resumed.toPath(), threads, 10);
+                fail("Run was not interrupted");
+            }
+            catch (RuntimeException e) {
+                assertTrue(Files.exists(checkpoint));
+                assertTrue(Files.exists(log));
+                // A block of an interrupted checkpoint after the last one is ignored
+                Files.write(log, new byte[]{0, 0, 0, 9, 1, 2}, StandardOpenOption.APPEND);
+            }
+            finally {
+                malGen.removeListener(crash);
+            }
+            malGen.unfoldResumable(dict, resumed.toPath(), threads, 10);
+            assertFalse(Files.exists(checkpoint));
+            assertFalse(Files.exists(log));
+            assertEquals(Files.readAllLines(expected.toPath()),
+                    Files.readAllLines(resumed.toPath()));
+            Files.delete(resumed.toPath());
+        }
+    }
+
+    /**
+     * Test that appending entries to a previous output gives the same result as unfolding all entries at once, and
+     * skips new entries that are inflected forms of previous ones.
+     */
+    public void testAppendUnfoldMal() throws IOException {
+        MorphGen malGen = new MorphGen("/mal-rules.tsv", "/mal-affixes.tsv");
+        for (String name : new String[]{"mal-dict-overlap.tsv", "mal-dict.tsv"}) {
+            List<String> entries = Files.readAllLines(
+                    Paths.get("src/test/resources", name));
+            File first = tempFile("dict", ".tsv");
+            File second = tempFile("dict", ".tsv");
+            File expected = tempFile("unfold", ".tsv");
+            File appended = tempFile("appended", ".tsv");
+            int split = (entries.size() + 1) / 4;
+            Files.write(first.toPath(), entries.subList(0, split));
+            Files.write(second.toPath(), entries.subList(split, entries.size()));
+
+            malGen.unfoldVocabulary("/" + name, expected.getPath());
+            malGen.unfoldVocabulary(first.toPath(), appended.toPath(), false, 1);
+            malGen.unfoldVocabulary(second.toPath(), appended.toPath(), true, 2);
+            assertEquals(Files.readAllLines(expected.toPath()),
+                    Files.readAllLines(appended.toPath()));
+        }
+    }
+
+    /**
+     * Create a temporary file that is deleted on exit.
+     */
+    private static File tempFile(String prefix, String suffix) throws IOException {
+        File file = File.createTempFile(prefix, suffix);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Unfold a dictionary and collect the analyses of each form, i.e. the last four columns of its lines.
+     * @param gen The generator
+     * @param dict The dictionary resource
+     * @param unfolded The file to unfold to
+     * @return The analyses by form
+     */
+    private static TreeMap<String, Set<List<String>>> unfold(MorphGen gen, String dict, File unfolded)
+            throws IOException {
+        gen.unfoldVocabulary(dict, unfolded.getPath());
+        TreeMap<String, Set<List<String>>> analyses = new TreeMap<>();
+        for (String line : Files.readAllLines(unfolded.toPath())) {
+            String[] fields = line.split("\t", -1);
+            analyses.computeIfAbsent(fields[0], f -> new HashSet<>()).add(Arrays.asList(fields).subList(1, 5));
+        }
+        return analyses;
+    }
+
+    /**
+     * Assert that two generators give the same inflections for every entry of the Malayalam dictionary.
+     * @param expected The reference generator
+     * @param actual The generator to test
+     */
+    private static void assertSameInflections(MorphGen expected, MorphGen actual) throws IOException {
+        for (String line : Files.readAllLines(Paths.get("src/test/resources/mal-dict.tsv"))) {
+            String[] fields = line.split("\t");
+            if (fields.length == 3)
+                assertEquals(expected.getInflections(fields[0], fields[1]), actual.getInflections(fields[0], fields[1]));
+        }
+    }
+
+    /**
+     * Assert that a lexicon returns exactly the expected analyses for each form.
+     * @param expected The analyses by form
+     * @param get Looks up the analyses of a form in the lexicon
+     */
+    private static void assertAnalyses(Map<String, Set<List<String>>> expected, Function<String, List<String[]>> get) {
+        for (Map.Entry<String, Set<List<String>>> entry : expected.entrySet()) {
+            List<String[]> found = get.apply(entry.getKey());
+            assertNotNull(found);
+            Set<List<String>> analyses = new HashSet<>();
+            for (String[] analysis : found)
+                analyses.add(Arrays.asList(analysis));
+            assertEquals(entry.getValue(), analyses);
+        }
+    }
 }